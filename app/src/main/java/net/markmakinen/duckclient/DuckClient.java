@@ -1,10 +1,15 @@
 package net.markmakinen.duckclient;
 
 import android.app.Application;
+import android.content.Context;
 import android.util.Log;
 
-import net.danlew.android.joda.JodaTimeAndroid;
+import net.markmakinen.duckclient.backend.BackendClient;
+import net.markmakinen.duckclient.backend.ClientMetrics;
+import net.markmakinen.duckclient.backend.DiskResponseCache;
+import net.markmakinen.duckclient.storage.SightingRepository;
 
+import java.io.File;
 import java.net.URI;
 import java.net.URISyntaxException;
 
@@ -16,7 +21,11 @@ public class DuckClient extends Application {
 
     public static final String BACKEND_ADDRESS = "http://192.168.11.3:8081/";
 
+    private static final long RESPONSE_CACHE_SIZE = 10 * 1024 * 1024;   // Max size of cached backend responses in bytes
+
     public static URI backendURI;
+    private static BackendClient backendClient;
+    private static final ClientMetrics metrics = new ClientMetrics();
 
     @Override
     public void onCreate() {
@@ -28,7 +37,32 @@ public class DuckClient extends Application {
             Log.e("DuckClient", "Invalid backend address!");
             return;
         }
-        JodaTimeAndroid.init(this); // Initialize JodaTime (our datetime lib)
+        Startup.begin(this);    // Initializes JodaTime (our datetime lib) and the BackendClient in the background
+    }
+
+    /**
+     * Gets the BackendClient shared by the whole app.
+     * Sharing it lets identical requests from different Activity instances (e.g. before and after a rotation) be coalesced.
+     * The client is created during startup, so after Startup is ready this returns right away.
+     * @param context Any Context
+     * @return BackendClient
+     */
+    public static synchronized BackendClient getBackendClient(Context context) {
+        if (backendClient == null) {
+            backendClient = new BackendClient(backendURI);
+            backendClient.setResponseCache(new DiskResponseCache(new File(context.getCacheDir(), "responses"), RESPONSE_CACHE_SIZE));
+            backendClient.enableOutbox(SightingRepository.getInstance(context));    // Saves survive being offline and app restarts
+            backendClient.setMetricsListener(metrics);
+        }
+        return backendClient;
+    }
+
+    /**
+     * Gets the request metrics of the shared BackendClient, e.g. for logging refresh latencies
+     * @return ClientMetrics
+     */
+    public static ClientMetrics getMetrics() {
+        return metrics;
     }
 
 }
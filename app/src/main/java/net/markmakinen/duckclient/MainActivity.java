@@ -2,33 +2,51 @@ package net.markmakinen.duckclient;
 
 import android.app.DatePickerDialog;
 import android.app.TimePickerDialog;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.DialogInterface;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.support.design.widget.FloatingActionButton;
 import android.support.design.widget.Snackbar;
+import android.support.v4.view.MenuItemCompat;
 import android.support.v4.widget.SwipeRefreshLayout;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
 import android.os.Bundle;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.util.Log;
 import android.view.LayoutInflater;
+import android.view.Menu;
 import android.view.View;
-import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.DatePicker;
 import android.widget.EditText;
-import android.widget.ListView;
 import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.TimePicker;
 
 import net.markmakinen.duckclient.backend.BackendClient;
-import net.markmakinen.duckclient.backend.GotSightingsListener;
-import net.markmakinen.duckclient.backend.GotSpeciesListener;
+import net.markmakinen.duckclient.backend.LiveUpdateListener;
+import net.markmakinen.duckclient.backend.OutboxListener;
+import net.markmakinen.duckclient.backend.RefreshListener;
+import net.markmakinen.duckclient.backend.RefreshResult;
+import net.markmakinen.duckclient.backend.RequestGroup;
+import net.markmakinen.duckclient.backend.SightingDelta;
 import net.markmakinen.duckclient.backend.SightingSaveListener;
 import net.markmakinen.duckclient.model.Sighting;
+import net.markmakinen.duckclient.model.SightingQuery;
+import net.markmakinen.duckclient.model.SightingStats;
+import net.markmakinen.duckclient.model.SortedSightings;
 import net.markmakinen.duckclient.model.Species;
+import net.markmakinen.duckclient.storage.LocalDataListener;
+import net.markmakinen.duckclient.storage.SightingRepository;
 
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
@@ -36,20 +54,64 @@ import org.joda.time.LocalDateTime;
 import org.joda.time.format.DateTimeFormat;
 
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimeZone;
 
 /**
  * The Main Activity of the Application
  */
 public class MainActivity extends AppCompatActivity {
 
-    private SightingArrayAdapter saa;                   // Custom ArrayAdapter for Sightings
+    private SightingListAdapter sla;                    // RecyclerView adapter for Sightings
     private BackendClient bc;                           // Backend client instance
-    private SwipeRefreshLayout refreshLayout;           // Layout containing the ListView
+    private SwipeRefreshLayout refreshLayout;           // Layout containing the RecyclerView
     private boolean userRefresh = false;                // True if the refresh was done by the user
     private ArrayList<Species> allowedSpecies;          // List of allowed species; comes from the backend
     private boolean currentSortingAscending = false;    // Defaults to descending; greater dates are on top of the listing
-    private ListView sightingListView;                  // ListView containing the Sightings
+    private RecyclerView sightingListView;              // RecyclerView containing the Sightings
+    private SightingRepository repository;              // Local copy of the backend data
+    private boolean gotBackendSightings = false;        // True after the first Sightings from the backend arrived
+    private ArrayList<Sighting> pendingSightings = new ArrayList<>();   // Saved locally, not sent to the backend yet
+    private boolean started = false;                    // True once the startup-dependent setup has run
+    private boolean liveUpdatesOn = false;              // True while this Activity has the event stream open
+    private boolean destroyed = false;
+    private final RequestGroup requests = new RequestGroup();   // Backend calls whose callbacks need this Activity
+
+    // Sends the waiting Sightings as soon as the device is online again
+    private final BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            ConnectivityManager cm = (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            NetworkInfo network = cm.getActiveNetworkInfo();
+            if (network != null && network.isConnected() && bc != null) bc.flushOutbox();
+        }
+    };
+
+    // Shows the dates in the new time zone
+    private final BroadcastReceiver timeZoneReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // JodaTimeAndroid's own receiver may not have run yet, so update Joda's default zone first
+            DateTimeZone.setDefault(DateTimeZone.forTimeZone(TimeZone.getDefault()));
+            if (sla != null) sla.invalidateDisplays();
+        }
+    };
+
+    // Merges the Sightings from the backend's event stream, and syncs everything if some may have been missed
+    private final LiveUpdateListener liveUpdateListener = new LiveUpdateListener() {
+        @Override
+        public void gotLiveUpdate(SightingDelta delta) {
+            Log.d("DuckClient", "Live update: " + delta.getAdded().size() + " new sightings");
+            applySightingDelta(delta);
+        }
+
+        @Override
+        public void liveGap() {
+            bc.requestFullSync();
+            refreshSightings();
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -76,7 +138,8 @@ public class MainActivity extends AppCompatActivity {
             @Override
             public void onClick(View view) {
                 currentSortingAscending = !currentSortingAscending;
-                sortSightings(currentSortingAscending);
+                sla.setAscending(currentSortingAscending);
+                sightingListView.scrollToPosition(0);
             }
         });
 
@@ -91,42 +154,156 @@ public class MainActivity extends AppCompatActivity {
             }
         });
 
-        // Initialize Sighting ListView
-        saa = new SightingArrayAdapter(this, new ArrayList<Sighting>());
-        sightingListView = (ListView)findViewById(R.id.sightingListView);
-        sightingListView.setAdapter(saa);
+        // Initialize Sighting RecyclerView
+        sla = new SightingListAdapter(this);
+        sightingListView = (RecyclerView)findViewById(R.id.sightingListView);
+        sightingListView.setLayoutManager(new LinearLayoutManager(this));
+        sightingListView.setHasFixedSize(true);
+        sightingListView.setAdapter(sla);
 
-        sightingListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        sla.setOnSightingClickListener(new SightingListAdapter.OnSightingClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> adapterView, View view, int i, long l) {
-                Sighting sighting = saa.getItem(i);
+            public void sightingClicked(Sighting sighting) {
                 Log.d("DuckClient", "User clicked Sighting: " + sighting.getSightingId() + ", " + sighting.getDescription());
 
                 showSightingInfoDialog(sighting);
             }
         });
 
-        // Create a new BackendClient instance
-        bc = new BackendClient(DuckClient.backendURI);
+        Startup.trackFirstFrame(sightingListView);
+
+        // Read the locally stored data while the rest of the startup finishes.
+        // Everything that needs the time zone data or the BackendClient waits for Startup, in the order it was queued.
+        repository = SightingRepository.getInstance(this);
+        Startup.whenReady(new Runnable() {
+            @Override
+            public void run() {
+                if (!destroyed) onStartupReady();
+            }
+        });
+        repository.load(new LocalDataListener() {
+            @Override
+            public void loaded(final ArrayList<Species> species, final ArrayList<Sighting> stored, final ArrayList<Sighting> pending) {
+                Startup.whenReady(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!destroyed) showLocalData(species, stored, pending);
+                    }
+                });
+            }
+        });
+
+    }
+
+    /**
+     * Connects the Activity to the BackendClient and starts the first refresh. Runs once Startup is ready.
+     */
+    private void onStartupReady() {
+        started = true;
+
+        // Get the shared BackendClient instance, Startup has already created it
+        bc = DuckClient.getBackendClient(this);
+
+        // Keep the listing in step with the outbox
+        bc.setOutboxListener(new OutboxListener() {
+            @Override
+            public void sightingSent(Sighting pending, Sighting saved) {
+                confirmPendingSighting(pending, saved);
+            }
+
+            @Override
+            public void sightingDropped(Sighting pending, String msg) {
+                removePendingSighting(pending, null);
+            }
+        });
+        registerReceiver(connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        registerReceiver(timeZoneReceiver, new IntentFilter(Intent.ACTION_TIMEZONE_CHANGED));
+
+        // Subscribe before the first sync, so no new Sighting falls between the two
+        startLiveUpdates();
 
         // Get species from the server
         refreshSightings();
+    }
+
+    /**
+     * Shows the locally stored data, the refresh updates it
+     */
+    private void showLocalData(ArrayList<Species> species, ArrayList<Sighting> stored, ArrayList<Sighting> pending) {
+        Log.i("DuckClient", "Loaded " + stored.size() + " sightings and " + pending.size() + " unsent sightings from local storage");
+        Startup.mark("localData");
+        if (allowedSpecies.isEmpty()) allowedSpecies = species;
+        bc.seedSpecies(species);            // Lets saves be validated before the backend answers
+        bc.seedSightings(stored);           // Lets the backend sync skip what we already have
+        pendingSightings.addAll(pending);
+        ArrayList<Sighting> shown = new ArrayList<>(pending);   // The backend doesn't have these, so show them in any case
+        if (!gotBackendSightings) shown.addAll(stored);         // Unless the backend was faster with fresher data
+        sla.update(shown, Collections.<String>emptyList());
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // Resumes the stream closed in onStop. The first start is in onStartupReady, which runs before
+        // this when the Activity is recreated after startup, e.g. after a rotation.
+        if (started) startLiveUpdates();
+    }
 
+    @Override
+    protected void onStop() {
+        super.onStop();
+        // Don't keep a connection open in the background
+        if (started) {
+            bc.stopLiveUpdates();
+            liveUpdatesOn = false;
+        }
     }
 
     /**
-     * Sorts the Sighting listing by datetime ascending or descending
-     * @param ascending true if sorting must be ascending, false if descending
+     * Opens the event stream unless it is already open, starting it again would drop the connection
      */
-    private void sortSightings(final boolean ascending) {
-        saa.sort(new Comparator<Sighting>() {
+    private void startLiveUpdates() {
+        if (liveUpdatesOn) return;
+        liveUpdatesOn = true;
+        bc.startLiveUpdates(liveUpdateListener);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        destroyed = true;
+        // A rotated Activity makes the same calls again and joins the ones still running, anything else is wasted
+        if (isChangingConfigurations()) {
+            requests.detachAll();
+        } else {
+            requests.cancelAll();
+        }
+        if (!started) return;
+        unregisterReceiver(connectivityReceiver);
+        unregisterReceiver(timeZoneReceiver);
+        bc.setOutboxListener(null);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_main, menu);
+
+        // Narrow the listing while the user types, the matching runs on the adapter's update thread
+        SearchView searchView = (SearchView)MenuItemCompat.getActionView(menu.findItem(R.id.action_search));
+        searchView.setQueryHint(getResources().getString(R.string.search_sightings));
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
             @Override
-            public int compare(Sighting a, Sighting b) {
-                if (ascending) return a.getDateTime().compareTo(b.getDateTime());
-                return b.getDateTime().compareTo(a.getDateTime());
+            public boolean onQueryTextSubmit(String text) {
+                return false;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String text) {
+                sla.setQuery(SightingQuery.all().withText(text));
+                return true;
             }
         });
-        sightingListView.startLayoutAnimation();
+        return true;
     }
 
     /**
@@ -140,62 +317,132 @@ public class MainActivity extends AppCompatActivity {
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
+                if (destroyed) return;  // Posted before onDestroy, nobody would get the result
                 refreshLayout.setRefreshing(true);
 
-                bc.getSpecies(new GotSpeciesListener() {
+                // Get species and sync sightings at the same time.
+                // The first sync compares everything to notice removals, later ones only fetch new sightings.
+                // The client remembers whether that was done, so a rotated Activity doesn't do it again.
+                requests.add(bc.refresh(bc.needsFullSync(), new RefreshListener() {
+
+                    @Override
+                    public void gotSightingsChunk(ArrayList<Sighting> chunk) {
+                        // Start filling the list before the whole response has been read.
+                        // Stored Sightings that the backend no longer has are removed when the sync is done.
+                        gotBackendSightings = true;
+                        sla.addChunk(chunk);
+                    }
+
                     @Override
-                    public void gotSpecies(ArrayList<Species> species) {
-                        Log.i("DuckClient", "Got " + species.size() + " species!");
+                    public void refreshDone(RefreshResult result) {
+                        refreshLayout.setRefreshing(false);
+                        String snackMsg = null;
+
+                        ArrayList<Species> species = result.getSpecies();
+                        if (species != null) {
+                            Log.i("DuckClient", "Got " + species.size() + " species!");
+                            // Set allowed species
+                            allowedSpecies = species;
+                            repository.saveSpecies(species);
+                        } else {
+                            Log.e("DuckClient", "Species getting failed with error: " + result.getSpeciesError());
+                            snackMsg = getResources().getString(R.string.species_get_failed, result.getSpeciesError());
+                        }
 
-                        // Set allowed species
-                        allowedSpecies = species;
+                        SightingDelta delta = result.getDelta();
+                        if (delta != null) {
+                            Log.i("DuckClient", "Sightings synced: " + delta.getAdded().size() + " added, " +
+                                    delta.getChanged().size() + " changed, " + delta.getRemoved().size() + " removed");
+                            gotBackendSightings = true;
+                            applySightingDelta(delta);
+                        } else {
+                            snackMsg = getResources().getString(R.string.sightings_get_failed, result.getSightingsError());
+                        }
 
-                        // Get sightings
-                        bc.getSightings(new GotSightingsListener() {
-                            @Override
-                            public void gotSightings(ArrayList<Sighting> sightings) {
-                                // Populate the Sighting ListView
-                                Log.i("DuckClient", "Got " + sightings.size() + " sightings!");
-                                saa.clear();
-                                saa.addAll(sightings);
-                                sortSightings(currentSortingAscending);
-                                refreshLayout.setRefreshing(false);
-                                if (userRefresh) Snackbar.make(refreshLayout, R.string.sightings_updated, Snackbar.LENGTH_SHORT).show();
-                                userRefresh = false;
-                            }
+                        if (snackMsg != null) {
+                            Snackbar.make(refreshLayout, snackMsg, Snackbar.LENGTH_LONG).show();
+                        } else if (userRefresh) {
+                            Snackbar.make(refreshLayout, R.string.sightings_updated, Snackbar.LENGTH_SHORT).show();
+                        }
+                        userRefresh = false;
 
-                            // Couldn't get sightings
+                        if (Startup.mark("firstRefresh")) Log.i("DuckClient", "Startup: " + Startup.summary());
+                        Log.d("DuckClient", "Request metrics:\n" + DuckClient.getMetrics().dump());
+                        sla.requestStats(new SightingListAdapter.OnStatsListener() {
                             @Override
-                            public void gotError(String msg) {
-                                refreshLayout.setRefreshing(false);
-                                String snackMsg = getResources().getString(R.string.sightings_get_failed, msg);
-                                Snackbar.make(refreshLayout, snackMsg, Snackbar.LENGTH_LONG).show();
-                                userRefresh = false;
+                            public void gotStats(SightingStats.Snapshot stats) {
+                                Log.d("DuckClient", "Sighting stats: " + stats.getTotalSightings() + " sightings, " + stats.getTotalDucks() +
+                                        " ducks, by species " + stats.getDucksBySpecies() + ", busiest hour " + stats.getBusiestHour());
                             }
                         });
                     }
-
-                    // Couldn't get species
-                    @Override
-                    public void gotError(String msg) {
-                        Log.e("DuckClient", "Species getting failed with error: " + msg);
-                        refreshLayout.setRefreshing(false);
-                        String snackMsg = getResources().getString(R.string.species_get_failed, msg);
-                        Snackbar.make(refreshLayout, snackMsg, Snackbar.LENGTH_LONG).show();
-                        userRefresh = false;
-                    }
-                });
+                }));
 
             }
         });
 
     }
 
+    /**
+     * Applies synced changes to the Sighting listing and to the local storage
+     * @param delta Changes from the backend
+     */
+    private void applySightingDelta(SightingDelta delta) {
+        if (delta.isEmpty()) return;    // Nothing to redraw or store
+
+        // Sightings that are already shown (e.g. from chunks) are replaced by ID
+        ArrayList<Sighting> upserts = new ArrayList<>(delta.getAdded());
+        upserts.addAll(delta.getChanged());
+        sla.update(upserts, delta.getRemoved());
+
+        // Store for the next start
+        repository.saveSightingChanges(upserts, delta.getRemoved());
+    }
+
+    /**
+     * Replaces the pending row of a sent Sighting with the saved one from the backend.
+     * If the backend didn't return it, the listing is synced instead, unless the event stream brings it.
+     * @param pending Sighting that was sent
+     * @param saved Sighting as the backend stored it, may be null
+     */
+    private void confirmPendingSighting(Sighting pending, Sighting saved) {
+        // The outbox and the save listener both report a sent Sighting, only the first one counts
+        if (!removePendingSighting(pending, saved)) return;
+
+        if (saved != null) {
+            repository.saveSightingChanges(Collections.singletonList(saved), Collections.<String>emptyList());
+        } else if (!bc.isLiveConnected()) {
+            // The sent Sighting may be older than the newest one, so only a full sync is sure to bring it back
+            bc.requestFullSync();
+            refreshSightings();
+        }
+    }
+
+    /**
+     * Removes the row of a pending Sighting that was sent, dropped or failed
+     * @param pending Pending Sighting
+     * @param replacement Row to show instead in the same update, or null to just remove it
+     * @return false if the Sighting wasn't pending (anymore)
+     */
+    private boolean removePendingSighting(Sighting pending, Sighting replacement) {
+        for (int i = 0; i < pendingSightings.size(); i++) {
+            if (pendingSightings.get(i).getLocalId().equals(pending.getLocalId())) {
+                Sighting removed = pendingSightings.remove(i);
+                // One update, so a confirmed Sighting doesn't blink out of the list
+                List<Sighting> upserts = (replacement != null ? Collections.singletonList(replacement) : Collections.<Sighting>emptyList());
+                sla.update(upserts, Collections.singletonList(SortedSightings.keyOf(removed)));
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Create and display Sighting info dialog
      * @param sighting Sighting to show
      */
     private void showSightingInfoDialog(Sighting sighting) {
+        Startup.awaitReady();   // Formatting needs the time zone data
 
         // Use custom layout
         LayoutInflater inflater = LayoutInflater.from(MainActivity.this);
@@ -221,6 +468,7 @@ public class MainActivity extends AppCompatActivity {
      * Create and display Sighting creation dialog
      */
     private void showCreateNewSightingDialog(ArrayList<Species> allowedSpecies) {
+        Startup.awaitReady();   // The date fields need the time zone data, this only waits if the user was very quick
 
         // Use custom layout
         LayoutInflater inflater = LayoutInflater.from(MainActivity.this);
@@ -303,22 +551,29 @@ public class MainActivity extends AppCompatActivity {
                         newSighting.setDescription(desc);
 
                         // Save the created Sighting
-                        bc.saveSighting(newSighting, new SightingSaveListener() {
+                        requests.add(bc.saveSighting(newSighting, new SightingSaveListener() {
                             @Override
-                            public void saveCompleted() {
+                            public void saveCompleted(Sighting saved) {
                                 Log.i("DuckClient", "New Sighting saved!");
                                 Snackbar.make(refreshLayout, R.string.new_sighting_save_successful, Snackbar.LENGTH_LONG).show();
-                                // Update ListView
-                                refreshSightings();
+                                // Show the saved version in place of the pending row
+                                confirmPendingSighting(newSighting, saved);
                             }
 
                             @Override
                             public void saveFailed(String msg) {
                                 Log.e("DuckClient", "New Sighting save failed!");
+                                removePendingSighting(newSighting, null);     // Take back the optimistic row
                                 String snackMsg = getResources().getString(R.string.new_sighting_save_failed, msg);
                                 Snackbar.make(refreshLayout, snackMsg, Snackbar.LENGTH_LONG).show();
                             }
-                        });
+                        }));
+
+                        // Show it right away as pending, until the backend confirms or refuses it
+                        if (newSighting.isPending()) {
+                            pendingSightings.add(newSighting);
+                            sla.update(Collections.singletonList(newSighting), Collections.<String>emptyList());
+                        }
                     }
                 })
                 .setNegativeButton(android.R.string.cancel, null)
@@ -0,0 +1,169 @@
+package net.markmakinen.duckclient;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import net.markmakinen.duckclient.model.Sighting;
+import net.markmakinen.duckclient.model.SightingDisplay;
+import net.markmakinen.duckclient.model.SightingFormatter;
+import net.markmakinen.duckclient.model.SortedSightings;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Display texts of the listed Sightings by Sighting key.
+ * Texts are formatted on a background thread only for the rows that are requested, i.e. the rows around the
+ * viewport, so binding a row usually only looks them up. A row that isn't ready yet is formatted in the
+ * background too, and the listener is told when it is, so the UI thread never formats.
+ * The cache is bounded, so a huge listing doesn't keep formatted texts for every row; rows that fell out
+ * are formatted again when they are requested. Everything is formatted again if the locale or the time zone changes.
+ * Use on the main thread only, after Startup is ready: formatting needs the time zone data.
+ */
+class SightingDisplayCache {
+
+    private static final int MAX_SIZE = 2000;  // Many screenfuls of rows
+
+    // Shared by all caches, formatting is short work and one thread is plenty
+    private static final ExecutorService FORMAT_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    /**
+     * Listener for texts formatted in the background
+     */
+    interface Listener {
+        void displaysFormatted();
+    }
+
+    // Least recently shown first
+    private final LinkedHashMap<String, SightingDisplay> displays = new LinkedHashMap<String, SightingDisplay>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SightingDisplay> eldest) {
+            return size() > MAX_SIZE;
+        }
+    };
+    private final HashMap<String, SortedSightings> requested = new HashMap<>();    // Being formatted, by key
+    private final ArrayList<String> queuedKeys = new ArrayList<>();                 // Requested in this frame
+    private final ArrayList<SortedSightings> queuedStores = new ArrayList<>();
+    private int[] queuedIndexes = new int[64];
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final String pendingFormat;     // Date/time format of unsent Sightings
+    private final Listener listener;
+    private SightingFormatter formatter;    // Picked when the first texts are needed
+
+    /**
+     * @param pendingFormat Format with one %1$s for the date/time text of Sightings that haven't been sent yet
+     * @param listener Notified on the main thread when requested texts are ready
+     */
+    SightingDisplayCache(String pendingFormat, Listener listener) {
+        this.pendingFormat = pendingFormat;
+        this.listener = listener;
+    }
+
+    /**
+     * Gets the display texts of a stored Sighting. If they aren't ready, they are requested.
+     * @param store Shown Sightings
+     * @param index Index in the store
+     * @return Display texts, or null until the listener is notified
+     */
+    SightingDisplay get(SortedSightings store, int index) {
+        if (formatter == null || !formatter.isCurrent()) invalidate();
+        SightingDisplay display = displays.get(store.keyAt(index));
+        if (display == null) request(store, index);
+        return display;
+    }
+
+    /**
+     * Formats the display texts of a stored Sighting in the background, unless they are ready or coming.
+     * The requests made during one main thread task are formatted together.
+     * @param store Shown Sightings, not modified afterwards
+     * @param index Index in the store
+     */
+    void request(SortedSightings store, int index) {
+        if (formatter == null || !formatter.isCurrent()) invalidate();
+        String key = store.keyAt(index);
+        if (displays.containsKey(key) || requested.containsKey(key)) return;
+        requested.put(key, store);
+
+        if (queuedKeys.isEmpty()) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    formatQueued();
+                }
+            });
+        }
+        if (queuedKeys.size() == queuedIndexes.length) queuedIndexes = Arrays.copyOf(queuedIndexes, queuedIndexes.length * 2);
+        queuedIndexes[queuedKeys.size()] = index;
+        queuedKeys.add(key);
+        queuedStores.add(store);
+    }
+
+    /**
+     * Forgets the texts of changed and removed Sightings. They are formatted again when requested.
+     * @param upserts New Sightings and new versions of listed ones
+     * @param removedKeys Keys of the removed Sightings
+     */
+    void forget(Collection<Sighting> upserts, Collection<String> removedKeys) {
+        for (String key : removedKeys) {
+            displays.remove(key);
+            requested.remove(key);
+        }
+        for (Sighting s : upserts) {
+            String key = SortedSightings.keyOf(s);
+            displays.remove(key);
+            requested.remove(key);      // An older version may be being formatted
+        }
+    }
+
+    /**
+     * Drops all formatted texts and picks a formatter for the current locale and time zone
+     */
+    void invalidate() {
+        displays.clear();
+        requested.clear();
+        formatter = SightingFormatter.getDefault();
+    }
+
+    private void formatQueued() {
+        final String[] keys = queuedKeys.toArray(new String[queuedKeys.size()]);
+        final SortedSightings[] stores = queuedStores.toArray(new SortedSightings[queuedStores.size()]);
+        final int[] indexes = Arrays.copyOf(queuedIndexes, keys.length);
+        queuedKeys.clear();
+        queuedStores.clear();
+
+        final SightingFormatter f = formatter;
+        FORMAT_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final SightingDisplay[] built = new SightingDisplay[keys.length];
+                for (int i = 0; i < built.length; i++) built[i] = build(stores[i].get(indexes[i]), f);
+
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (f != formatter) return;     // Locale or time zone changed meanwhile
+                        boolean added = false;
+                        for (int i = 0; i < built.length; i++) {
+                            // Not if the Sighting changed or the cache was dropped meanwhile
+                            if (requested.get(keys[i]) != stores[i]) continue;
+                            requested.remove(keys[i]);
+                            displays.put(keys[i], built[i]);
+                            added = true;
+                        }
+                        if (added) listener.displaysFormatted();
+                    }
+                });
+            }
+        });
+    }
+
+    private SightingDisplay build(Sighting sighting, SightingFormatter f) {
+        return new SightingDisplay(sighting, f, sighting.isPending() ? pendingFormat : null);
+    }
+}
@@ -0,0 +1,424 @@
+package net.markmakinen.duckclient;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import net.markmakinen.duckclient.model.Sighting;
+import net.markmakinen.duckclient.model.SightingDisplay;
+import net.markmakinen.duckclient.model.SightingIndex;
+import net.markmakinen.duckclient.model.SightingQuery;
+import net.markmakinen.duckclient.model.SightingStats;
+import net.markmakinen.duckclient.model.SortedSightings;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * RecyclerView adapter for displaying Sighting information.
+ *
+ * Changes are merged into the sorted collection and compared to the shown listing on a background thread,
+ * by Sighting ID, and only the inserted, removed and changed rows are updated.
+ * Changing the sort direction only flips the view of the same collection.
+ * The listing can be narrowed with a SightingQuery, which is answered from a SightingIndex that is kept up to date
+ * with the merges on the same background thread, like the running totals of SightingStats. Chunks of a listing
+ * that is still being read are indexed together with the next update, unless a query needs the index earlier.
+ * The row texts of the rows around the viewport are formatted ahead of time in the background, see SightingDisplayCache.
+ */
+public class SightingListAdapter extends RecyclerView.Adapter<SightingListAdapter.ViewHolder> {
+
+    // Shared by all adapters, one update at a time is enough
+    private static final ExecutorService UPDATE_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private static final int PREFETCH_ROWS = 30;    // Rows formatted before the first layout, about a screenful
+
+    /**
+     * Listener for row clicks
+     */
+    public interface OnSightingClickListener {
+        void sightingClicked(Sighting sighting);
+    }
+
+    /**
+     * Listener for statistics requested with requestStats
+     */
+    public interface OnStatsListener {
+        void gotStats(SightingStats.Snapshot stats);
+    }
+
+    private final LayoutInflater inflater;
+    private final SightingDisplayCache displays;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private OnSightingClickListener clickListener;
+    // Formats the rows that scroll near
+    private final RecyclerView.OnScrollListener prefetcher = new RecyclerView.OnScrollListener() {
+        @Override
+        public void onScrolled(RecyclerView view, int dx, int dy) {
+            prefetchAroundViewport();
+        }
+    };
+
+    // Main thread state
+    private Listing shown = new Listing(SortedSightings.empty(), null);     // Shown rows
+    private RecyclerView recyclerView;                                      // Showing the rows, while attached
+    private boolean missedRows = false;                                     // A row was bound before its texts were ready
+    private volatile boolean ascending = false;                             // Written on the main thread only
+
+    // Update thread state
+    private SortedSightings latest = SortedSightings.empty();   // Collection with every submitted change
+    private SightingIndex index = SightingIndex.empty();        // Index of latest, or of an older collection
+    private int[] unindexed;                                    // Origins of the rows of latest in the index, null if it is current
+    private SightingQuery query = SightingQuery.all();
+    private final SightingStats stats = new SightingStats();
+    private Listing latestListing = shown;
+
+    public SightingListAdapter(Context context) {
+        this.inflater = LayoutInflater.from(context);
+        this.displays = new SightingDisplayCache(context.getResources().getString(R.string.sighting_pending),
+                new SightingDisplayCache.Listener() {
+                    @Override
+                    public void displaysFormatted() {
+                        if (!missedRows) return;
+                        missedRows = false;
+                        notifyItemRangeChanged(0, shown.size());    // Rebinds only the rows that have views
+                    }
+                });
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(RecyclerView view) {
+        recyclerView = view;
+        view.addOnScrollListener(prefetcher);
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(RecyclerView view) {
+        view.removeOnScrollListener(prefetcher);
+        recyclerView = null;
+    }
+
+    public void setOnSightingClickListener(OnSightingClickListener listener) {
+        this.clickListener = listener;
+    }
+
+    /**
+     * Gets a shown Sighting
+     * @param position Row position
+     * @return New Sighting object
+     */
+    public Sighting getItem(int position) {
+        return shown.store.get(shown.indexOf(position, ascending));
+    }
+
+    /**
+     * Adds and replaces Sightings (matched by ID) and removes Sightings.
+     * The changes are sorted, merged and diffed in the background, so they show up a moment later.
+     * @param upserts New Sightings and new versions of shown ones
+     * @param removedKeys Keys of the Sightings to remove, see SortedSightings.keyOf
+     */
+    public void update(Collection<Sighting> upserts, Collection<String> removedKeys) {
+        merge(upserts, removedKeys, true);
+    }
+
+    /**
+     * Adds a chunk of a listing that is still being read. The rows are shown like with update, but
+     * they are indexed only with the next update, so a long listing isn't indexed again for every chunk.
+     * @param chunk New Sightings and new versions of shown ones
+     */
+    public void addChunk(Collection<Sighting> chunk) {
+        merge(chunk, Collections.<String>emptyList(), false);
+    }
+
+    private void merge(Collection<Sighting> upserts, Collection<String> removedKeys, final boolean indexNow) {
+        final ArrayList<Sighting> upsertCopy = new ArrayList<>(upserts);
+        final ArrayList<String> removedCopy = new ArrayList<>(removedKeys);
+        UPDATE_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                SortedSightings store = latest;
+                int[] origins = new int[store.size() + upsertCopy.size()];
+                SortedSightings next = store.with(upsertCopy, removedCopy, origins);
+                if (next == store) {
+                    if (indexNow) updateIndex();
+                    return;
+                }
+                stats.apply(store, next, origins);
+                latest = next;
+                if (unindexed != null) {
+                    // Rows of the previous collection map further to the indexed one
+                    for (int row = 0; row < next.size(); row++) {
+                        if (origins[row] >= 0) origins[row] = unindexed[origins[row]];
+                    }
+                }
+                unindexed = origins;
+                if (indexNow) updateIndex();
+                publish(new Listing(next, find(query)), true, upsertCopy, removedCopy);
+            }
+        });
+    }
+
+    /**
+     * Brings the index up to date with the latest collection, on the update thread
+     */
+    private void updateIndex() {
+        if (unindexed == null) return;
+        index = index.update(latest, unindexed);
+        unindexed = null;
+    }
+
+    /**
+     * Finds the rows of the latest collection that match a query, on the update thread
+     */
+    private int[] find(SightingQuery query) {
+        if (query.isEmpty()) return null;
+        updateIndex();
+        return index.find(query);
+    }
+
+    /**
+     * Shows only the Sightings that match a query. The matches are found in the background.
+     * @param query Query, SightingQuery.all() to show everything
+     */
+    public void setQuery(final SightingQuery query) {
+        UPDATE_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (query.equals(SightingListAdapter.this.query)) return;
+                SightingListAdapter.this.query = query;
+                publish(new Listing(latest, find(query)), false, null, null);
+            }
+        });
+    }
+
+    /**
+     * Gets the totals per species, day and hour of all Sightings, including the ones a query hides.
+     * They are kept up to date as changes are merged, so this doesn't go through the Sightings.
+     * @param listener Listener to notify on the main thread, after the changes submitted so far are counted
+     */
+    public void requestStats(final OnStatsListener listener) {
+        UPDATE_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final SightingStats.Snapshot snapshot = stats.snapshot();
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.gotStats(snapshot);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Sets the sort direction. Takes constant time, the rows are only read in the other direction.
+     * @param ascending true for the oldest first, false for the newest first
+     */
+    public void setAscending(boolean ascending) {
+        if (this.ascending == ascending) return;
+        this.ascending = ascending;
+        notifyDataSetChanged();     // Every row moves, so there is nothing to diff
+        prefetchAroundViewport();
+    }
+
+    /**
+     * Computes the row changes from the last published rows to the next on the update thread and applies them on the main thread
+     * @param next Rows to show
+     * @param diffable false if the rows changed too much to be worth diffing, e.g. after a new query
+     * @param upserts Merged Sightings whose texts are outdated, null if none
+     * @param removedKeys Keys of the removed Sightings, null if none
+     */
+    private void publish(final Listing next, boolean diffable, final Collection<Sighting> upserts, final Collection<String> removedKeys) {
+        final Listing previous = latestListing;
+        latestListing = next;
+
+        final boolean asc = ascending;
+        final DiffUtil.DiffResult diff;
+        if (!diffable || previous.size() == 0 || next.size() == 0) {
+            diff = null;    // Nothing to compare
+        } else {
+            diff = DiffUtil.calculateDiff(new SightingDiff(previous, next, asc), false);
+        }
+
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                int oldSize = shown.size();
+                if (upserts != null) displays.forget(upserts, removedKeys);
+                shown = next;
+                if (diff != null && asc == ascending) {
+                    diff.dispatchUpdatesTo(SightingListAdapter.this);
+                } else if (oldSize == 0) {
+                    notifyItemRangeInserted(0, next.size());
+                } else if (next.size() == 0) {
+                    notifyItemRangeRemoved(0, oldSize);
+                } else {
+                    // A new query, or the direction was flipped while diffing
+                    notifyDataSetChanged();
+                }
+                prefetchAroundViewport();
+            }
+        });
+    }
+
+    /**
+     * Requests the texts of the visible rows and a screenful on both sides, in the current order
+     */
+    private void prefetchAroundViewport() {
+        int size = shown.size();
+        if (size == 0) return;
+        int first = RecyclerView.NO_POSITION;
+        int last = RecyclerView.NO_POSITION;
+        if (recyclerView != null && recyclerView.getLayoutManager() instanceof LinearLayoutManager) {
+            LinearLayoutManager layout = (LinearLayoutManager)recyclerView.getLayoutManager();
+            first = layout.findFirstVisibleItemPosition();
+            last = layout.findLastVisibleItemPosition();
+        }
+        if (first == RecyclerView.NO_POSITION || last == RecyclerView.NO_POSITION) {
+            // Not laid out yet, the list starts from the top
+            first = 0;
+            last = PREFETCH_ROWS - 1;
+        }
+        first = Math.min(first, size - 1);
+        last = Math.min(last, size - 1);
+        int screen = last - first + 1;
+
+        // Visible rows first, then the next screenful, then the previous one
+        for (int p = first; p <= last; p++) displays.request(shown.store, shown.indexOf(p, ascending));
+        for (int p = last + 1; p <= Math.min(size - 1, last + screen); p++) displays.request(shown.store, shown.indexOf(p, ascending));
+        for (int p = first - 1; p >= Math.max(0, first - screen); p--) displays.request(shown.store, shown.indexOf(p, ascending));
+    }
+
+    /**
+     * Formats all row texts again, e.g. after the locale or the time zone changed
+     */
+    public void invalidateDisplays() {
+        displays.invalidate();
+        missedRows = true;          // The rows keep their old texts until the new ones are ready
+        prefetchAroundViewport();
+    }
+
+    @Override
+    public int getItemCount() {
+        return shown.size();
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        return new ViewHolder(inflater.inflate(R.layout.item_sighting, parent, false));
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        // The texts are usually formatted already, if not, the row is bound again when they are
+        SightingDisplay display = displays.get(shown.store, shown.indexOf(position, ascending));
+        if (display == null) {
+            missedRows = true;
+            holder.countAndSpeciesView.setText(null);
+            holder.dateTimeView.setText(null);
+            holder.shortDescView.setText(null);
+            return;
+        }
+        holder.countAndSpeciesView.setText(display.getCountAndSpeciesText());
+        holder.dateTimeView.setText(display.getDateTimeText());
+        holder.shortDescView.setText(display.getShortDescription());
+    }
+
+    /**
+     * Holds the Views of one row, so they are looked up only once
+     */
+    class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+
+        final TextView countAndSpeciesView;
+        final TextView dateTimeView;
+        final TextView shortDescView;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            countAndSpeciesView = (TextView)itemView.findViewById(R.id.sightingCountSpecies);
+            dateTimeView = (TextView)itemView.findViewById(R.id.sightingDate);
+            shortDescView = (TextView)itemView.findViewById(R.id.sightingShortDescription);
+            itemView.setOnClickListener(this);
+        }
+
+        @Override
+        public void onClick(View view) {
+            int position = getAdapterPosition();
+            if (position == RecyclerView.NO_POSITION || clickListener == null) return;
+            clickListener.sightingClicked(getItem(position));
+        }
+    }
+
+    /**
+     * Rows of a collection that match a query
+     */
+    private static class Listing {
+
+        final SortedSightings store;
+        final int[] matches;    // Indexes in the store, ascending. null when everything matches.
+
+        Listing(SortedSightings store, int[] matches) {
+            this.store = store;
+            this.matches = matches;
+        }
+
+        int size() {
+            return (matches != null ? matches.length : store.size());
+        }
+
+        /**
+         * Maps a row position in the wanted order to an index in the store
+         */
+        int indexOf(int position, boolean ascending) {
+            if (matches == null) return store.indexOf(position, ascending);
+            return matches[ascending ? position : matches.length - 1 - position];
+        }
+    }
+
+    /**
+     * Compares two listings in the same order by Sighting key and shown content
+     */
+    private static class SightingDiff extends DiffUtil.Callback {
+
+        private final Listing oldList;
+        private final Listing newList;
+        private final boolean ascending;
+
+        SightingDiff(Listing oldList, Listing newList, boolean ascending) {
+            this.oldList = oldList;
+            this.newList = newList;
+            this.ascending = ascending;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return oldList.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return newList.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldPosition, int newPosition) {
+            String oldKey = oldList.store.keyAt(oldList.indexOf(oldPosition, ascending));
+            return oldKey != null && oldKey.equals(newList.store.keyAt(newList.indexOf(newPosition, ascending)));
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldPosition, int newPosition) {
+            return oldList.store.sameContent(oldList.indexOf(oldPosition, ascending), newList.store, newList.indexOf(newPosition, ascending));
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package net.markmakinen.duckclient;
+
+import android.app.Application;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+import net.danlew.android.joda.JodaTimeAndroid;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Cold start pipeline.
+ *
+ * Loading the time zone data and setting up the BackendClient happen on a background thread, so the
+ * main thread can draw the first frame right away. Code that needs either waits with whenReady, which
+ * queues work for the main thread, or awaitReady, which blocks.
+ *
+ * The startup phases are timed from Application.onCreate and logged, the cold start time is the time
+ * until the first frame.
+ */
+final class Startup {
+
+    private static final CountDownLatch readyLatch = new CountDownLatch(1);
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private static final LinkedHashMap<String, Long> phases = new LinkedHashMap<>();   // Milliseconds since start by phase
+
+    // Main thread state
+    private static boolean ready = false;
+    private static ArrayList<Runnable> waiting = new ArrayList<>();
+
+    private static long startTime;
+
+    private Startup() {}
+
+    /**
+     * Starts the background part of the startup. Call once, from Application.onCreate.
+     * @param app Application
+     */
+    static void begin(final Application app) {
+        startTime = SystemClock.uptimeMillis();
+        mark("application");
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                JodaTimeAndroid.init(app);      // Reads the time zone data
+                mark("timeZones");
+                DuckClient.getBackendClient(app);
+                mark("backendClient");
+                readyLatch.countDown();
+
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        ready = true;
+                        mark("ready");
+                        ArrayList<Runnable> queued = waiting;
+                        waiting = null;
+                        for (Runnable r : queued) r.run();
+                    }
+                });
+            }
+        }, "DuckClient startup");
+        thread.setPriority(Thread.MAX_PRIORITY);    // The first screen waits for this
+        thread.start();
+    }
+
+    /**
+     * Runs a task on the main thread once the time zones and the BackendClient are ready.
+     * Tasks run in the order they were queued. Call on the main thread.
+     * @param task Task to run, right away if the startup is already done
+     */
+    static void whenReady(Runnable task) {
+        if (ready) {
+            task.run();
+        } else {
+            waiting.add(task);
+        }
+    }
+
+    /**
+     * Blocks until the time zones and the BackendClient are ready. Returns right away after startup.
+     * Only for code that can't wait with whenReady, e.g. a dialog the user opened before startup finished.
+     */
+    static void awaitReady() {
+        try {
+            readyLatch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Marks the first frame of a View, and logs the cold start time
+     * @param view View of the first screen
+     */
+    static void trackFirstFrame(final View view) {
+        view.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                ViewTreeObserver observer = view.getViewTreeObserver();
+                if (observer.isAlive()) observer.removeOnPreDrawListener(this);
+                if (mark("firstFrame")) Log.i("DuckClient", "Cold start: first frame after " + getPhaseMillis("firstFrame") + " ms");
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Records the time of a startup phase. Only the first time of each phase is kept.
+     * @param phase Phase name
+     * @return true if this was the first mark of the phase
+     */
+    static boolean mark(String phase) {
+        long elapsed = SystemClock.uptimeMillis() - startTime;
+        synchronized (phases) {
+            if (phases.containsKey(phase)) return false;
+            phases.put(phase, elapsed);
+            return true;
+        }
+    }
+
+    /**
+     * Time from Application.onCreate to a phase
+     * @param phase Phase name
+     * @return Milliseconds, or -1 if the phase hasn't been reached
+     */
+    static long getPhaseMillis(String phase) {
+        synchronized (phases) {
+            Long millis = phases.get(phase);
+            return (millis != null ? millis : -1);
+        }
+    }
+
+    /**
+     * Phases reached so far, e.g. for the log
+     * @return Text like "application 0 ms, timeZones 84 ms, ..."
+     */
+    static String summary() {
+        StringBuilder out = new StringBuilder();
+        synchronized (phases) {
+            for (Map.Entry<String, Long> phase : phases.entrySet()) {
+                if (out.length() > 0) out.append(", ");
+                out.append(phase.getKey()).append(' ').append(phase.getValue()).append(" ms");
+            }
+        }
+        return out.toString();
+    }
+}
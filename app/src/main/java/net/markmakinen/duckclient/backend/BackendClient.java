@@ -1,41 +1,33 @@
 package net.markmakinen.duckclient.backend;
 
-import android.os.AsyncTask;
 import android.util.Log;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonDeserializationContext;
-import com.google.gson.JsonDeserializer;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonParseException;
-import com.google.gson.JsonPrimitive;
-import com.google.gson.JsonSerializationContext;
-import com.google.gson.JsonSerializer;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
 import net.markmakinen.duckclient.model.Sighting;
 import net.markmakinen.duckclient.model.Species;
-
-import org.joda.time.DateTime;
-import org.joda.time.DateTimeZone;
-import org.joda.time.format.ISODateTimeFormat;
+import net.markmakinen.duckclient.model.SpeciesRegistry;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.lang.reflect.Type;
 import java.net.HttpURLConnection;
 import java.net.URI;
-import java.net.URL;
+import java.net.URLEncoder;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by Zini on 16.12.2016 20.10.
@@ -46,307 +38,1103 @@ import java.util.ArrayList;
  */
 public class BackendClient {
 
-    private URI backendURI;
-    private ArrayList<Species> allowedSpecies;
+    private static final int CHUNK_SIZE = 500;   // How many parsed items are delivered at once
+
+    // Target of calls with no request to stop, e.g. invalid saves: the handle only stops the listener
+    private static final RequestHandle.Target LISTENER_ONLY = new RequestHandle.Target() {
+        @Override
+        public void cancel() {
+        }
+
+        @Override
+        public void detach() {
+        }
+
+        @Override
+        public void expire(String msg) {
+        }
+    };
+
+    private HttpTransport transport;
+    private final SpeciesRegistry speciesRegistry = SpeciesRegistry.getInstance();   // Knows the allowed Species
+    private final JsonCodec codec = new JsonCodec(speciesRegistry);     // Shared between all requests, thread-safe
+    private volatile DiskResponseCache responseCache;    // Optional, null when responses aren't cached
+    private final SightingSyncState syncState = new SightingSyncState();
+    private final AtomicInteger fullSyncRequests = new AtomicInteger(1);   // The first sync compares everything
+    private final AtomicInteger fullSyncsDone = new AtomicInteger(0);      // Requests met by a finished full sync
+    private final ExecutorService workerPool;       // Runs the requests
+    private final Executor callbackExecutor;        // Runs the listener callbacks
+    private final HashMap<String, Call<?>> inFlight = new HashMap<>();     // Coalescable calls by key
+    private volatile SightingOutbox outbox;             // Optional, null when saves are sent right away
+    private volatile OutboxListener outboxListener;
+    private volatile MetricsListener metricsListener;   // Optional, null when requests aren't measured
+    private final SightingStream liveStream;
+
+    private final ItemReader<Sighting> sightingReader = new ItemReader<Sighting>() {
+        @Override
+        public Sighting read(JsonReader reader) throws IOException {
+            return codec.readSighting(reader);
+        }
+
+        @Override
+        public boolean isImmutable() {
+            return false;   // Callers set local IDs and keep them in their listings
+        }
+    };
 
     /**
-     * BackendClient constructor
+     * BackendClient constructor.
+     * Requests run on a default bounded worker pool and listeners are called on the main thread.
      * @param backendURI The endpoint URI
      * @throws InvalidParameterException if supplied URI is null
      */
     public BackendClient(URI backendURI) throws InvalidParameterException {
+        this(backendURI, BackendExecutors.newWorkerPool(), BackendExecutors.mainThread());
+    }
+
+    /**
+     * BackendClient constructor
+     * @param backendURI The endpoint URI
+     * @param workerPool Executor for running the requests. Should be bounded, rejected requests fail.
+     * @param callbackExecutor Executor for calling the listeners
+     * @throws InvalidParameterException if a parameter is null
+     */
+    public BackendClient(URI backendURI, ExecutorService workerPool, Executor callbackExecutor) throws InvalidParameterException {
         if (backendURI == null) throw new InvalidParameterException("Invalid backend URI!");
-        this.backendURI = backendURI;
-        this.allowedSpecies = new ArrayList<>();
+        if (workerPool == null || callbackExecutor == null) throw new InvalidParameterException("Executors can't be null!");
+        this.transport = new HttpTransport(backendURI);
+        this.workerPool = workerPool;
+        this.callbackExecutor = callbackExecutor;
+        this.liveStream = new SightingStream(transport, codec, syncState, callbackExecutor);
+    }
+
+    /**
+     * HTTP transport of this client. Use it to set timeouts and to read transfer statistics.
+     * @return HttpTransport
+     */
+    public HttpTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Sets the cache used for conditional GET requests
+     * @param cache Response cache, or null to disable caching
+     */
+    public void setResponseCache(DiskResponseCache cache) {
+        this.responseCache = cache;
+    }
+
+    /**
+     * Sets the listener that gets the measurements of every request, e.g. a ClientMetrics
+     * @param listener Listener to notify on the request threads, or null
+     */
+    public void setMetricsListener(MetricsListener listener) {
+        this.metricsListener = listener;
+    }
+
+    /**
+     * Makes saves go through a durable outbox: a saved Sighting is stored first and sent when the backend
+     * can be reached. Failed sends are retried with backoff, only Sightings the backend refuses are dropped.
+     * @param store Storage for the Sightings waiting to be sent
+     */
+    public void enableOutbox(OutboxStore store) {
+        if (store == null) throw new InvalidParameterException("Outbox store can't be null!");
+        SightingOutbox outbox = new SightingOutbox(store, new SightingOutbox.Sender() {
+            @Override
+            public Sighting send(Sighting sighting, int retries) throws IOException {
+                return postSighting(sighting, retries, null);
+            }
+        }, callbackExecutor);
+        outbox.setListener(outboxListener);
+        this.outbox = outbox;
+    }
+
+    /**
+     * Sets the listener for Sightings leaving the outbox
+     * @param listener Listener to notify, or null
+     */
+    public void setOutboxListener(OutboxListener listener) {
+        this.outboxListener = listener;
+        SightingOutbox outbox = this.outbox;
+        if (outbox != null) outbox.setListener(listener);
+    }
+
+    /**
+     * Tries to send the Sightings in the outbox now, e.g. when the device got back online.
+     * Does nothing if the outbox isn't enabled.
+     */
+    public void flushOutbox() {
+        SightingOutbox outbox = this.outbox;
+        if (outbox != null) outbox.flushNow();
+    }
+
+    /**
+     * Subscribes to new Sightings from the backend's event stream. New Sightings, including ones saved
+     * by this client, are delivered one by one instead of needing a sync. The stream reconnects by itself;
+     * when Sightings may have been missed, the listener is asked to do a full sync.
+     * Start it before the first sync, so nothing falls between the two.
+     * @param listener Listener to notify
+     */
+    public void startLiveUpdates(LiveUpdateListener listener) {
+        liveStream.start(listener);
+    }
+
+    /**
+     * Closes the event stream, e.g. when the app goes to the background. Starting it again resumes where it was.
+     */
+    public void stopLiveUpdates() {
+        liveStream.stop();
+    }
+
+    /**
+     * Whether the event stream is connected, i.e. new Sightings will arrive without a sync
+     * @return true if connected
+     */
+    public boolean isLiveConnected() {
+        return liveStream.isConnected();
     }
 
     /**
      * Gets list of Species from the backend
      * @param listener Listener to notify
+     * @return Handle for cancelling the call or setting a deadline
      */
-    public void getSpecies(final GotSpeciesListener listener) {
+    public RequestHandle getSpecies(final GotSpeciesListener listener) {
 
-        // Get the data asynchronously
-        class DataGetter extends AsyncTask<Void, Void, String> {
+        return new Call<ArrayList<Species>>("Getting species", "species") {
+            @Override
+            ArrayList<Species> execute() throws IOException {
+                return fetchSpecies(cancellation);
+            }
 
-            private String errorMsg;
+            @Override
+            void onSuccess(ArrayList<Species> species) {
+                if (listener != null) listener.gotSpecies(species);
+            }
 
             @Override
-            protected String doInBackground(Void... voids) {
-                String resp = null;
-                try {
-                    resp = getRawText("/species");  // Get textual response
-                } catch (IOException e) {
-                    Log.e("BackendClient", "getRawText failed: " + e.getMessage());
-                    errorMsg = e.getMessage();
-                    e.printStackTrace();
-                }
-                return resp;
+            void onError(String msg) {
+                if (listener != null) listener.gotError(msg);
             }
+        }.start();
+    }
 
+    /**
+     * Gets list of Sightings from the backend.
+     * Parsed Sightings are delivered in chunks while the response is still being read, also when a
+     * 304 response is served by parsing the cached body again.
+     * @param listener Listener to notify
+     * @return Handle for cancelling the call or setting a deadline
+     */
+    public RequestHandle getSightings(final GotSightingsListener listener) {
+
+        return new Call<ArrayList<Sighting>>("Getting sightings", "sightings") {
             @Override
-            protected void onPostExecute(String s) {
-                super.onPostExecute(s);
+            ArrayList<Sighting> execute() throws IOException {
+                return fetchList("/sightings", sightingReader, new ChunkListener<Sighting>() {
+                    @Override
+                    public void gotChunk(final ArrayList<Sighting> chunk) {
+                        deliver(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (listener != null && handle.isActive()) listener.gotSightingsChunk(chunk);
+                            }
+                        });
+                    }
+                }, true, cancellation);
+            }
 
-                // If the response is null, an error occurred
-                if (s == null) {
-                    if (listener != null) listener.gotError(errorMsg);
-                    return;
-                }
+            @Override
+            void onSuccess(ArrayList<Sighting> sightings) {
+                if (listener != null) listener.gotSightings(sightings);
+            }
 
-                // Create Gson instance for deserializing
-                GsonBuilder gsonBuilder = new GsonBuilder();
-                gsonBuilder.excludeFieldsWithoutExposeAnnotation();
-                Gson gson = gsonBuilder.create();
+            @Override
+            void onError(String msg) {
+                if (listener != null) listener.gotError(msg);
+            }
+        }.start();
+    }
 
-                // Deserialize into Species objects
-                // The backend returns a list, so we tell Gson to deserialize a list of Species objects
-                Type speciesList = new TypeToken<ArrayList<Species>>(){}.getType();
-                ArrayList<Species> species = gson.fromJson(s, speciesList);
+    /**
+     * Tells the client which Sightings it already has, e.g. from local storage.
+     * Ignored if the client already knows some Sightings.
+     * @param sightings Known Sightings
+     */
+    public void seedSightings(Collection<Sighting> sightings) {
+        syncState.seedIfEmpty(sightings);
+    }
 
-                allowedSpecies = species;   // Remember allowed species
+    /**
+     * Tells the client which Species the backend allowed last time, e.g. from local storage, so Sightings
+     * can be saved before getSpecies has succeeded. Ignored if the allowed Species are already known.
+     * @param species Allowed Species
+     */
+    public void seedSpecies(Collection<Species> species) {
+        speciesRegistry.setAllowedIfEmpty(species);
+    }
 
-                if (listener != null) listener.gotSpecies(species);
+    /**
+     * Whether the next sync should be a full one: nothing has been fully synced yet, or requestFullSync was
+     * called after the last full sync started. Kept here rather than in an Activity, so a recreated
+     * Activity doesn't repeat a full sync that was already done.
+     * @return true if a full sync is needed
+     */
+    public boolean needsFullSync() {
+        return fullSyncsDone.get() < fullSyncRequests.get();
+    }
+
+    /**
+     * Asks for a full sync, e.g. when Sightings may have been missed. needsFullSync returns true
+     * until a full sync started after this call has succeeded.
+     */
+    public void requestFullSync() {
+        fullSyncRequests.incrementAndGet();
+    }
+
+    /**
+     * Syncs the Sightings with the backend and reports what changed.
+     *
+     * An incremental sync asks only for the Sightings newer than the newest one known.
+     * If the backend doesn't filter by date, the full listing it returns is diffed instead.
+     * A full sync is also needed to notice removed Sightings and Sightings created with an old dateTime.
+     * With the response cache, a 304 to a full sync is answered from the sync state: no chunks, no parsing.
+     * Changes found by a sync that was cancelled too late are reported by the next one.
+     * @param full true to compare the whole collection, false for an incremental sync
+     * @param listener Listener to notify
+     * @return Handle for cancelling the call or setting a deadline
+     */
+    public RequestHandle syncSightings(boolean full, final SightingsSyncListener listener) {
+
+        return new SyncCall(full) {
+            @Override
+            void gotChunk(ArrayList<Sighting> chunk) {
+                if (listener != null) listener.gotSightingsChunk(chunk);
+            }
+
+            @Override
+            void onSuccess(SightingDelta delta) {
+                if (listener != null) listener.synced(delta);
             }
-        }
 
-        // Run our AsyncTask
-        DataGetter dg = new DataGetter();
-        dg.execute();
+            @Override
+            void onError(String msg) {
+                if (listener != null) listener.gotError(msg);
+            }
+        }.start();
     }
 
     /**
-     * Gets list of Sightings from the backend
+     * Gets the Species and syncs the Sightings at the same time, and reports both in one callback.
+     * Partial results are delivered too: a failed Species request doesn't hide a successful sync.
+     * A missed deadline is reported as the error of the parts that weren't done yet.
+     * @param fullSync true for a full Sighting sync, see syncSightings
      * @param listener Listener to notify
+     * @return Handle for cancelling both parts or setting a deadline
      */
-    public void getSightings(final GotSightingsListener listener) {
+    public RequestHandle refresh(boolean fullSync, final RefreshListener listener) {
 
-        // Get the data asynchronously
-        class DataGetter extends AsyncTask<Void, Void, String> {
-            private String errorMsg;
+        final RefreshResult result = new RefreshResult();
+        final ArrayList<RequestHandle> parts = new ArrayList<>(2);
+        final RequestHandle refreshHandle = new RequestHandle(new RequestHandle.Target() {
+            @Override
+            public void cancel() {
+                for (RequestHandle part : parts) part.cancel();
+            }
 
             @Override
-            protected String doInBackground(Void... voids) {
-                String resp = null;
-                try {
-                    resp = getRawText("/sightings");
-                } catch (IOException e) {
-                    Log.e("BackendClient", "getRawText failed: " + e.getMessage());
-                    errorMsg = e.getMessage();
-                    e.printStackTrace();
-                }
-                return resp;
+            public void detach() {
+                for (RequestHandle part : parts) part.detach();
             }
 
             @Override
-            protected void onPostExecute(String s) {
-                super.onPostExecute(s);
+            public void expire(final String msg) {
+                Log.w("BackendClient", "Refresh failed: " + msg);
+                for (RequestHandle part : parts) part.cancel();
+                callbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (result.species == null && result.speciesError == null) result.speciesError = msg;
+                        if (result.delta == null && result.sightingsError == null) result.sightingsError = msg;
+                        if (listener != null) listener.refreshDone(result);
+                    }
+                });
+            }
+        });
 
-                if (s == null) {
-                    if (listener != null) listener.gotError(errorMsg);
-                    return;
-                }
+        // Both parts finish on the callback executor, the second one delivers the result
+        final AtomicInteger remaining = new AtomicInteger(2);
+        final Runnable finish = new Runnable() {
+            @Override
+            public void run() {
+                if (remaining.decrementAndGet() == 0 && refreshHandle.complete() && listener != null) listener.refreshDone(result);
+            }
+        };
+
+        parts.add(new Call<ArrayList<Species>>("Getting species", "species") {
+            @Override
+            ArrayList<Species> execute() throws IOException {
+                return fetchSpecies(cancellation);
+            }
+
+            @Override
+            void onSuccess(ArrayList<Species> species) {
+                result.species = species;
+                finish.run();
+            }
 
-                // Create Gson instance for deserializing
-                GsonBuilder gsonBuilder = new GsonBuilder();
-                gsonBuilder.registerTypeAdapter(Species.class, new SpeciesDeserializer());  // Register custom species deserializer
-                gsonBuilder.registerTypeAdapter(DateTime.class, new DateTimeDeserializer());   // Register custom dateTime deserializer
-                gsonBuilder.excludeFieldsWithoutExposeAnnotation();
-                Gson gson = gsonBuilder.create();
+            @Override
+            void onError(String msg) {
+                result.speciesError = msg;
+                finish.run();
+            }
+        }.start());
 
-                Type sightingsList = new TypeToken<ArrayList<Sighting>>(){}.getType();
-                ArrayList<Sighting> sightings = gson.fromJson(s, sightingsList);
+        parts.add(new SyncCall(fullSync) {
+            @Override
+            void gotChunk(ArrayList<Sighting> chunk) {
+                if (listener != null) listener.gotSightingsChunk(chunk);
+            }
 
-                if (listener != null) listener.gotSightings(sightings);
+            @Override
+            void onSuccess(SightingDelta delta) {
+                result.delta = delta;
+                finish.run();
             }
-        }
 
-        DataGetter dg = new DataGetter();
-        dg.execute();
+            @Override
+            void onError(String msg) {
+                result.sightingsError = msg;
+                finish.run();
+            }
+        }.start());
+
+        return refreshHandle;
     }
 
     /**
-     * Sends a new sighting to the backend to save
+     * Sends a new sighting to the backend to save.
+     * A valid Sighting gets a local ID right away, so it can be shown as pending until the listener gets
+     * the saved version with the backend's ID. With the outbox enabled the Sighting is queued, and the
+     * listener is notified once it has been sent or refused. Cancelling doesn't take a Sighting out of
+     * the outbox, it only stops the listener; outbox listeners still hear about it. Without the outbox, a save
+     * cancelled after it was sent may still have been stored by the backend.
      * @param sighting Sighting to save
      * @param listener Listener to notify
+     * @return Handle for cancelling the call or setting a deadline
      */
-    public void saveSighting(final Sighting sighting, final SightingSaveListener listener) {
+    public RequestHandle saveSighting(final Sighting sighting, final SightingSaveListener listener) {
+
+        String invalid = validate(sighting);
+        if (invalid != null) {
+            final String msg = invalid;
+            final RequestHandle handle = new RequestHandle(LISTENER_ONLY);
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (handle.complete() && listener != null) listener.saveFailed(msg);
+                }
+            });
+            return handle;
+        }
+
+        if (sighting.getLocalId() == null) sighting.setLocalId(UUID.randomUUID().toString());
+
+        SightingOutbox outbox = this.outbox;
+        if (outbox != null) {
+            final RequestHandle handle = new RequestHandle(new OutboxSaveTarget(outbox, sighting.getLocalId(), listener));
+            outbox.add(sighting, new SightingSaveListener() {
+                @Override
+                public void saveCompleted(Sighting saved) {
+                    if (handle.complete() && listener != null) listener.saveCompleted(saved);
+                }
 
-        // Check if we have species listing from the backend
-        if (allowedSpecies.size() == 0) {
-            // Need to get species listing before continuing
-            // TODO: Not implemented here, now we just assume that we have loaded species information before trying to save any
-            if (listener != null) listener.saveFailed("Get species before saving a new sighting!");
-            return;
+                @Override
+                public void saveFailed(String msg) {
+                    if (handle.complete() && listener != null) listener.saveFailed(msg);
+                }
+            });
+            return handle;
         }
 
+        // Every save is a new Sighting, so saves are never coalesced
+        return new Call<Sighting>("Sighting POST", null) {
+            @Override
+            Sighting execute() throws IOException {
+                return postSighting(sighting, 0, cancellation);
+            }
+
+            @Override
+            void onSuccess(Sighting saved) {
+                if (listener != null) listener.saveCompleted(saved);
+            }
+
+            @Override
+            void onError(String msg) {
+                if (listener != null) listener.saveFailed(msg);
+            }
+        }.start();
+    }
+
+    /**
+     * Checks a Sighting before saving
+     * @param sighting Sighting to check
+     * @return Error message, or null if the Sighting can be saved
+     */
+    private String validate(Sighting sighting) {
+
+        // The allowed Species come from getSpecies, or from local storage through seedSpecies
+        if (!speciesRegistry.hasAllowed()) return "Get species before saving a new sighting!";
+
         // Check that the Species is allowed
-        boolean allowed = false;
         Species specToSave = sighting.getSpecies();
-        for (Species s : allowedSpecies) {
-            if (s.equals(specToSave)) {
-                allowed = true;
-                break;
+        if (specToSave == null) return "Species must be given!";
+        if (!speciesRegistry.isAllowed(specToSave)) return "Backend does not support species \"" + specToSave.getName() + "\"!";
+
+        if (sighting.getCount() <= 0) return "Duck count can't be lower than or equals to 0!";
+
+        return null;
+    }
+
+    /**
+     * Posts a Sighting on the calling thread
+     * @param sighting Sighting to save
+     * @param retries How many times sending this Sighting has failed before, for the metrics
+     * @param cancellation Aborts the request, may be null
+     * @return The saved Sighting from the response, or null if the response didn't have it
+     * @throws IOException if sending failed, HttpStatusException if the backend refused it
+     */
+    private Sighting postSighting(Sighting sighting, int retries, Cancellation cancellation) throws IOException {
+        RequestMetrics metrics = new RequestMetrics(RequestMetrics.endpointOf("POST", "/sightings"));
+        metrics.retries = retries;
+        try {
+            String sightingJson = codec.toJson(sighting);
+
+            Log.d("BackendClient", "Created sighting JSON:");
+            Log.d("BackendClient", sightingJson);
+
+            // The local ID stays the same over retries, so the backend can tell a resend from a new Sighting
+            HashMap<String, String> headers = new HashMap<>();
+            if (sighting.getLocalId() != null) headers.put("Idempotency-Key", sighting.getLocalId());
+
+            HttpTransport.Response resp = transport.post("/sightings", sightingJson, headers, metrics, cancellation);
+            try {
+                return readSaved(resp, metrics);
+            } finally {
+                resp.close();
             }
+        } catch (IOException | RuntimeException e) {
+            if (cancellation != null && cancellation.isCancelled()) {
+                metrics.cancelled();
+            } else {
+                metrics.failed(e);
+            }
+            throw e;
+        } finally {
+            report(metrics);
         }
-        if (!allowed) {
-            if (listener != null) listener.saveFailed("Backend does not support species \"" + specToSave.getName() + "\"!");
-            return;
-        }
+    }
 
-        if (sighting.getCount() <= 0) {
-            listener.saveFailed("Duck count can't be lower than or equals to 0!");
-            return;
+    /**
+     * Parses the saved Sighting from a POST response. The save has already succeeded, so a response
+     * that can't be read only means the new ID isn't known.
+     * @param resp Response of the POST
+     * @param metrics Gets the parse time
+     * @return Saved Sighting with its ID, or null
+     */
+    private Sighting readSaved(HttpTransport.Response resp, RequestMetrics metrics) {
+        long start = System.nanoTime();
+        long downloadBefore = metrics.downloadNanos;
+        try {
+            JsonReader reader = new JsonReader(new InputStreamReader(new BufferedInputStream(resp.getBody()), "UTF-8"));
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) return null;
+            Sighting saved = codec.readSighting(reader);
+            if (saved.getSightingId() == null) return null;
+            metrics.itemCount = 1;
+            syncState.rememberSaved(saved);     // So the stream and the next sync don't report it as new
+            return saved;
+        } catch (IOException | JsonParseException | IllegalStateException e) {
+            Log.w("BackendClient", "Saved sighting not in the response: " + e.getMessage());
+            return null;
+        } finally {
+            metrics.parseNanos += (System.nanoTime() - start) - (metrics.downloadNanos - downloadBefore);
         }
+    }
 
-        // Send data asynchronously
-        class DataSaver extends AsyncTask<Void, Void, Void> {
-
+    /**
+     * Gets the Species on the calling thread and remembers them as the allowed Species
+     * @param cancellation Aborts the request, may be null
+     * @return Species
+     * @throws IOException if getting data failed
+     */
+    private ArrayList<Species> fetchSpecies(Cancellation cancellation) throws IOException {
+        ArrayList<Species> species = fetchList("/species", new ItemReader<Species>() {
             @Override
-            protected Void doInBackground(Void... voids) {
-
-                GsonBuilder gsonBuilder = new GsonBuilder();
-                gsonBuilder.registerTypeAdapter(Species.class, new SpeciesSerializer());    // Register custom species serializer
-                gsonBuilder.registerTypeAdapter(DateTime.class, new DateTimeSerializer()); // Register custom dateTime serializer
-                gsonBuilder.excludeFieldsWithoutExposeAnnotation();
-                Gson gson = gsonBuilder.create();
+            public Species read(JsonReader reader) throws IOException {
+                return codec.readSpecies(reader);
+            }
 
-                String sightingJson = gson.toJson(sighting);
+            @Override
+            public boolean isImmutable() {
+                return true;
+            }
+        }, null, true, cancellation);
+        speciesRegistry.setAllowed(species);    // Remember allowed species
+        return species;
+    }
 
-                Log.d("BackendClient", "Created sighting JSON:");
-                Log.d("BackendClient", sightingJson);
+    /**
+     * Syncs the Sightings on the calling thread
+     * @param full true to compare the whole collection, false for an incremental sync
+     * @param chunkListener Gets the first full list in chunks while it downloads
+     * @param cancellation Aborts the request, may be null
+     * @return Changes, including the ones of earlier syncs whose result nobody received
+     * @throws IOException if getting data failed
+     */
+    private SightingDelta fetchSightingDelta(boolean full, ChunkListener<Sighting> chunkListener, Cancellation cancellation) throws IOException {
+        long mark = syncState.mark();
+        int requested = fullSyncRequests.get();
+        if (full || syncState.isEmpty()) {
+            // Show the first list while it downloads, later full syncs are reported as changes.
+            // A 304 for the listing the sync state was built from means nothing changed, so it isn't parsed again;
+            // only a cold start, where the state is empty or seeded from storage, parses the cached body.
+            ChunkListener<Sighting> chunks = (syncState.isEmpty() ? chunkListener : null);
+            String mergedVersion = syncState.getListingVersion();
+            Listing<Sighting> listing = fetchListing("/sightings", sightingReader, chunks, true, mergedVersion, cancellation);
+            SightingDelta delta = null;
+            if (listing.items == null) {
+                delta = syncState.mergeUnchanged(mergedVersion);
+                // Rebuilt from another listing while this one was requested, so compare it after all
+                if (delta == null) listing = fetchListing("/sightings", sightingReader, chunks, true, null, cancellation);
+            }
+            if (delta == null) delta = syncState.mergeFull(listing.items, mark, listing.entry != null ? listing.entry.getVersion() : null);
+            fullSyncDone(requested);
+            return syncState.withUndelivered(delta);
+        }
 
-                try {
-                    postData("/sightings", sightingJson);
-                } catch (IOException e) {
-                    Log.e("BackendClient", "Sighting POST failed: " + e.getMessage());
-                    if (listener != null) listener.saveFailed(e.getMessage());
-                    return null;
-                }
+        // Only ask for Sightings after the high-water mark.
+        // The result isn't cached, every high-water mark would be a new cache entry.
+        String since = IsoTimestamps.format(syncState.getHighWaterMark());
+        long sinceMillis = IsoTimestamps.parseMillis(since);    // Truncated to what the backend sees
+        ArrayList<Sighting> newer = fetchList("/sightings?since=" + URLEncoder.encode(since, "UTF-8"), sightingReader, null, false, cancellation);
 
-                if (listener != null) listener.saveCompleted();
-                return null;
+        for (Sighting s : newer) {
+            if (s.getDateTime() != null && s.getDateTime().getMillis() < sinceMillis) {
+                // The backend ignored the filter and sent everything, so diff the full listing
+                SightingDelta delta = syncState.mergeFull(newer, mark, null);
+                fullSyncDone(requested);
+                return syncState.withUndelivered(delta);
             }
         }
+        return syncState.withUndelivered(syncState.mergeIncremental(newer));
+    }
 
-        // Create and execute AsyncTask
-        DataSaver ds = new DataSaver();
-        ds.execute();
+    /**
+     * Marks the full sync requests made before a full sync started as met
+     * @param requested Value of fullSyncRequests when the sync started
+     */
+    private void fullSyncDone(int requested) {
+        int done;
+        do {
+            done = fullSyncsDone.get();
+        } while (done < requested && !fullSyncsDone.compareAndSet(done, requested));
     }
 
     /**
-     * Performs a HTTP GET and returns the data as a String
+     * Gets a JSON array from the backend and parses it on the calling thread.
+     * If a response cache is set, the request is made conditional and a 304 response is served from the cache.
      * @param path Path when the backend URL is the root
-     * @throws IOException if getting data failed
+     * @param itemReader Reader for the array items
+     * @param chunkListener Listener for partial results, may be null
+     * @param useCache false to bypass the response cache
+     * @param cancellation Aborts the request and the parsing, may be null
+     * @return Parsed items
+     * @throws IOException if getting data failed or was cancelled
      */
-    private String getRawText(String path) throws IOException {
+    private <T> ArrayList<T> fetchList(String path, ItemReader<T> itemReader, ChunkListener<T> chunkListener, boolean useCache,
+                                       Cancellation cancellation) throws IOException {
+        return fetchListing(path, itemReader, chunkListener, useCache, null, cancellation).items;
+    }
 
-        // Combine root URI and given path
-        URI reqURI = backendURI.resolve(path);
+    /**
+     * Like fetchList, but also tells which cache entry the items match, and can skip parsing a 304 response
+     * @param path Path when the backend URL is the root
+     * @param itemReader Reader for the array items
+     * @param chunkListener Listener for partial results, may be null
+     * @param useCache false to bypass the response cache
+     * @param knownVersion A 304 for the cache entry of this version isn't parsed, the items are null then. May be null.
+     * @param cancellation Aborts the request and the parsing, may be null
+     * @return Items and their cache entry
+     * @throws IOException if getting data failed or was cancelled
+     */
+    private <T> Listing<T> fetchListing(String path, ItemReader<T> itemReader, ChunkListener<T> chunkListener, boolean useCache,
+                                        String knownVersion, Cancellation cancellation) throws IOException {
+        RequestMetrics metrics = new RequestMetrics(RequestMetrics.endpointOf("GET", path));
+        try {
+            Listing<T> listing = fetchListing(path, itemReader, chunkListener, useCache, knownVersion, cancellation, metrics);
+            if (listing.items != null) metrics.itemCount = listing.items.size();
+            return listing;
+        } catch (IOException | RuntimeException e) {
+            if (cancellation != null && cancellation.isCancelled()) {
+                metrics.cancelled();
+            } else {
+                metrics.failed(e);
+            }
+            throw e;
+        } finally {
+            report(metrics);
+        }
+    }
 
-        HttpURLConnection conn = null;
-        StringBuilder respText = new StringBuilder();
+    /**
+     * Does the work of fetchListing and fills in the metrics
+     */
+    @SuppressWarnings("unchecked")
+    private <T> Listing<T> fetchListing(String path, ItemReader<T> itemReader, ChunkListener<T> chunkListener, boolean useCache,
+                                        String knownVersion, Cancellation cancellation, RequestMetrics metrics) throws IOException {
+
+        DiskResponseCache cache = (useCache ? responseCache : null);
+        DiskResponseCache.Entry cached = (cache != null ? cache.get(path) : null);
 
+        // Tell the server what we already have
+        HashMap<String, String> headers = new HashMap<>();
+        if (cached != null) {
+            if (cached.getETag() != null) headers.put("If-None-Match", cached.getETag());
+            if (cached.getLastModified() != null) headers.put("If-Modified-Since", cached.getLastModified());
+        }
+
+        HttpTransport.Response resp = transport.get(path, headers, metrics, cancellation);
         try {
-            // Get HttpURLConnection to use
-            URL reqURL = reqURI.toURL();
-            conn = (HttpURLConnection)reqURL.openConnection();
+            if (resp.getCode() == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                metrics.cacheHit = true;
+                if (cached.getVersion().equals(knownVersion)) return new Listing<>(null, cached);   // The caller has it
+                Object parsed = cache.getParsed(path, cached);
+                if (parsed != null) return new Listing<>(new ArrayList<>((ArrayList<T>)parsed), cached);
 
-            // Specify that we want JSON data. Not really needed, but doesn't hurt
-            conn.setRequestProperty("Content-Type", "application/json");
-            conn.setConnectTimeout(5000);
+                // Parsed result isn't kept in memory (big or mutable, or the app was restarted), parse the cached body
+                InputStream in = cached.openBody();
+                try {
+                    ArrayList<T> items = readList(in, itemReader, chunkListener, cancellation, metrics);
+                    if (itemReader.isImmutable()) cache.putParsed(path, cached, items);
+                    return new Listing<>(new ArrayList<>(items), cached);
+                } finally {
+                    in.close();
+                }
+            }
 
-            InputStream in = new BufferedInputStream(conn.getInputStream());
-            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+            String etag = resp.getHeader("ETag");
+            String lastModified = resp.getHeader("Last-Modified");
+            if (cache == null || (etag == null && lastModified == null)) {
+                // Nothing to validate against later, so there's no point in caching
+                return new Listing<>(readList(resp.getBody(), itemReader, chunkListener, cancellation, metrics), null);
+            }
 
-            // Read the stream line by line
-            String line;
-            while ((line = reader.readLine()) != null) {
-                respText.append(line);
+            // Copy the body into the cache while parsing it
+            DiskResponseCache.Editor editor = cache.edit(path);
+            try {
+                InputStream tee = new TeeInputStream(resp.getBody(), editor.getStream());
+                ArrayList<T> items = readList(tee, itemReader, chunkListener, cancellation, metrics);
+                byte[] buf = new byte[4096];
+                while (tee.read(buf) != -1) {
+                    // Copy whatever the parser didn't need
+                }
+                DiskResponseCache.Entry entry = editor.commit(etag, lastModified);
+                if (itemReader.isImmutable()) cache.putParsed(path, entry, items);
+                return new Listing<>(new ArrayList<>(items), entry);
+            } catch (IOException | RuntimeException e) {
+                editor.abort();
+                throw e;
             }
         } finally {
-            // Disconnect after use
-            if (conn != null) conn.disconnect();
+            resp.close();   // Reads the rest of the body so the connection can be reused, unless cancelled
         }
+    }
 
-        return respText.toString();
+    /**
+     * Parses a JSON array item by item straight from a stream
+     * @param in Stream to read, not closed
+     * @param itemReader Reader for the array items
+     * @param chunkListener Listener for partial results, may be null
+     * @param cancellation Checked between items, so a cancelled list isn't parsed to the end. May be null.
+     * @param metrics Gets the parse time: the time spent here minus the time spent waiting for the network
+     * @return Parsed items
+     * @throws IOException if reading failed or was cancelled
+     */
+    private <T> ArrayList<T> readList(InputStream in, ItemReader<T> itemReader, ChunkListener<T> chunkListener,
+                                      Cancellation cancellation, RequestMetrics metrics) throws IOException {
+        long start = System.nanoTime();
+        long downloadBefore = metrics.downloadNanos;
+        JsonReader reader = new JsonReader(new InputStreamReader(new BufferedInputStream(in), "UTF-8"));
+
+        // Pull items off the stream one at a time instead of buffering the whole body
+        ArrayList<T> items = new ArrayList<>();
+        ArrayList<T> chunk = new ArrayList<>(CHUNK_SIZE);
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (cancellation != null) cancellation.check();
+            T item = itemReader.read(reader);
+            items.add(item);
+            if (chunkListener == null) continue;
+            chunk.add(item);
+            if (chunk.size() >= CHUNK_SIZE) {
+                chunkListener.gotChunk(chunk);
+                chunk = new ArrayList<>(CHUNK_SIZE);
+            }
+        }
+        reader.endArray();
+        if (chunkListener != null && !chunk.isEmpty()) chunkListener.gotChunk(chunk);
+
+        metrics.parseNanos += (System.nanoTime() - start) - (metrics.downloadNanos - downloadBefore);
+        return items;
     }
 
     /**
-     * Performs a HTTP POST with given data
-     * @param path Path when the backend URL is the root
-     * @param data Data to send
-     * @throws IOException if data sending failed
+     * Ends a measurement and hands it to the metrics listener
      */
-    private void postData(String path, String data) throws IOException {
+    private void report(RequestMetrics metrics) {
+        metrics.finish();
+        MetricsListener listener = metricsListener;
+        if (listener != null) listener.requestFinished(metrics);
+    }
 
-        // Combine root URI and given path
-        URI reqURI = backendURI.resolve(path);
+    /**
+     * A request that runs on the worker pool.
+     * The result or the error is delivered on the callback executor.
+     *
+     * Calls with the same key are coalesced: while one is in flight, later ones don't run
+     * but get the same result (single-flight). Followers don't get partial results.
+     *
+     * Every call has a handle. The request is aborted only when no call that shares it wants the result
+     * anymore; a detached call keeps it running, so a later identical call can still join it.
+     */
+    private abstract class Call<T> implements Runnable, RequestHandle.Target {
 
-        HttpURLConnection conn = null;
+        private final String description;   // For logging, e.g. "Getting species"
+        private final String key;           // Calls with the same key share one request, null to never share
+        private final ArrayList<Call<T>> followers = new ArrayList<>();
+        private Call<T> leader;             // The call whose request this one joined, guarded by inFlight
+        private boolean keepRunning = false;    // Someone detached, so finish the request. Guarded by inFlight.
+        final RequestHandle handle = new RequestHandle(this);
+        final Cancellation cancellation = new Cancellation();   // Stops the request of this call
 
-        try {
-            URL reqURL = reqURI.toURL();
-            conn = (HttpURLConnection)reqURL.openConnection();
+        Call(String description, String key) {
+            this.description = description;
+            this.key = key;
+        }
+
+        /**
+         * Does the work on a worker thread
+         */
+        abstract T execute() throws IOException;
 
-            // Set connection parameters, we're POSTing stuff here
-            conn.setRequestMethod("POST");
-            conn.setConnectTimeout(5000);
-            conn.setDoOutput(true);
-            conn.setRequestProperty("Content-Type", "application/json");
+        /**
+         * Called on the callback executor with the result
+         */
+        abstract void onSuccess(T result);
 
-            // Get output stream
-            OutputStream out = new BufferedOutputStream(conn.getOutputStream());
-            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+        /**
+         * Called on the callback executor if the request failed
+         */
+        abstract void onError(String msg);
 
-            // Write data
-            writer.write(data);
-            writer.flush();
-            writer.close();
+        /**
+         * Called on the callback executor with a result that no call took, because they all were cancelled or detached
+         */
+        void onDropped(T result) {
+        }
 
-            int respCode = conn.getResponseCode();
-            if (respCode == -1 || respCode != HttpURLConnection.HTTP_OK) {
-                throw new IOException("Server responded with error: " + conn.getResponseMessage());
+        /**
+         * Queues the request on the worker pool, or joins an identical request that is already in flight
+         * @return Handle of this call
+         */
+        @SuppressWarnings("unchecked")
+        RequestHandle start() {
+            if (key != null) {
+                synchronized (inFlight) {
+                    Call<T> leader = (Call<T>)inFlight.get(key);
+                    if (leader != null) {
+                        Log.d("BackendClient", description + " joined a request in flight");
+                        leader.followers.add(this);
+                        this.leader = leader;
+                        return handle;
+                    }
+                    inFlight.put(key, this);
+                }
             }
-        } finally {
-            if (conn != null) conn.disconnect();
+
+            try {
+                workerPool.execute(this);
+            } catch (RejectedExecutionException e) {
+                Log.e("BackendClient", description + " rejected, too many requests in progress");
+                fail("Too many requests in progress");
+            }
+            return handle;
+        }
+
+        /**
+         * Runs a Runnable on the callback executor
+         */
+        void deliver(Runnable r) {
+            callbackExecutor.execute(r);
+        }
+
+        @Override
+        public void cancel() {
+            leave(false);
+        }
+
+        @Override
+        public void detach() {
+            leave(true);
+        }
+
+        @Override
+        public void expire(final String msg) {
+            Log.w("BackendClient", description + " failed: " + msg);
+            leave(false);
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    onError(msg);
+                }
+            });
+        }
+
+        /**
+         * Takes this call out of its request, and aborts the request if nobody is left to want it
+         * @param detach true if the request should still finish
+         */
+        private void leave(boolean detach) {
+            Call<T> runner;
+            synchronized (inFlight) {
+                runner = (leader != null ? leader : this);
+                if (runner != this) runner.followers.remove(this);
+                if (detach) runner.keepRunning = true;
+                if (runner.keepRunning || runner.handle.isActive() || !runner.followers.isEmpty()) return;
+                // New calls must not join a request that is being aborted
+                if (runner.key != null && inFlight.get(runner.key) == runner) inFlight.remove(runner.key);
+            }
+            Log.d("BackendClient", runner.description + " cancelled");
+            runner.cancellation.cancel();
+        }
+
+        @Override
+        public void run() {
+            if (cancellation.isCancelled()) return;     // Cancelled while waiting in the queue
+
+            // Whatever happens, the callers must hear back and the key must leave inFlight,
+            // or every later identical call would join a request that never finishes
+            boolean ended = false;
+            try {
+                final T result;
+                try {
+                    result = execute();
+                } catch (IOException | RuntimeException e) {
+                    ended = true;
+                    if (cancellation.isCancelled()) {
+                        // Closing the connection under a running request may surface as almost any exception
+                        Log.d("BackendClient", description + " stopped: " + e);
+                        return;
+                    }
+                    // Anything else is a failed request too, e.g. a bug in a parser must not look like a cancel
+                    Log.e("BackendClient", description + " failed: " + e);
+                    e.printStackTrace();
+                    fail(e.getMessage() != null ? e.getMessage() : e.toString());
+                    return;
+                }
+
+                ended = true;
+                final ArrayList<Call<T>> all = finish();
+                deliver(new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean taken = false;
+                        for (Call<T> c : all) {
+                            if (!c.handle.complete()) continue;     // Cancelled after the request had finished
+                            c.onSuccess(result);
+                            taken = true;
+                        }
+                        if (!taken) onDropped(result);
+                    }
+                });
+            } finally {
+                if (!ended) fail("Request failed");     // An Error, e.g. out of memory, escaped execute
+            }
+        }
+
+        private void fail(final String msg) {
+            final ArrayList<Call<T>> all = finish();
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    for (Call<T> c : all) {
+                        if (c.handle.complete()) c.onError(msg);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Ends the flight, so new calls start a new request
+         * @return This call and everyone who joined it
+         */
+        private ArrayList<Call<T>> finish() {
+            ArrayList<Call<T>> all = new ArrayList<>();
+            all.add(this);
+            if (key == null) return all;
+            synchronized (inFlight) {
+                if (inFlight.get(key) == this) inFlight.remove(key);
+                all.addAll(followers);
+                followers.clear();
+            }
+            return all;
         }
     }
 
     /**
-     * Custom serializer for dateTime
+     * A Sighting sync. Chunks of the first listing go to gotChunk while the call is active,
+     * and a result that nobody took is kept for the next sync.
      */
-    private class DateTimeSerializer implements JsonSerializer<DateTime> {
-        public JsonElement serialize(DateTime dt, Type typeOfSrc, JsonSerializationContext context) {
-            return new JsonPrimitive(dt.toString(ISODateTimeFormat.dateTimeNoMillis()));
+    private abstract class SyncCall extends Call<SightingDelta> {
+
+        private final boolean full;
+
+        SyncCall(boolean full) {
+            super("Syncing sightings", full ? "sync-full" : "sync");
+            this.full = full;
+        }
+
+        /**
+         * Called on the callback executor with the Sightings of the first listing while it downloads
+         */
+        abstract void gotChunk(ArrayList<Sighting> chunk);
+
+        @Override
+        SightingDelta execute() throws IOException {
+            return fetchSightingDelta(full, new ChunkListener<Sighting>() {
+                @Override
+                public void gotChunk(final ArrayList<Sighting> chunk) {
+                    deliver(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (handle.isActive()) SyncCall.this.gotChunk(chunk);
+                        }
+                    });
+                }
+            }, cancellation);
+        }
+
+        @Override
+        void onDropped(SightingDelta delta) {
+            // Already merged into the sync state, so no later sync would find these changes again
+            syncState.keepUndelivered(delta);
         }
     }
 
     /**
-     * Custom deserializer for dateTime field "YYYY-MM-DD'T'HH:MM:SS'Z'"
+     * Target of a save queued in the outbox. The Sighting stays in the outbox, only its listener is forgotten,
+     * so a cancelled or detached save doesn't keep e.g. an Activity alive until the Sighting is sent.
      */
-    private class DateTimeDeserializer implements JsonDeserializer<DateTime> {
-        public DateTime deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
-            return new DateTime(json.getAsJsonPrimitive().getAsString(), DateTimeZone.UTC);
+    private class OutboxSaveTarget implements RequestHandle.Target {
+
+        private final SightingOutbox outbox;
+        private final String localId;
+        private final SightingSaveListener listener;
+
+        OutboxSaveTarget(SightingOutbox outbox, String localId, SightingSaveListener listener) {
+            this.outbox = outbox;
+            this.localId = localId;
+            this.listener = listener;
+        }
+
+        @Override
+        public void cancel() {
+            outbox.removeSaveListener(localId);
+        }
+
+        @Override
+        public void detach() {
+            outbox.removeSaveListener(localId);
         }
+
+        @Override
+        public void expire(final String msg) {
+            Log.w("BackendClient", "Saving sighting " + localId + " failed: " + msg);
+            outbox.removeSaveListener(localId);
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (listener != null) listener.saveFailed(msg);
+                }
+            });
+        }
+    }
+
+    /**
+     * Reads one item of a JSON array
+     */
+    private interface ItemReader<T> {
+        T read(JsonReader reader) throws IOException;
+
+        /**
+         * Whether the items can't be changed, so one parsed list can be shared by later 304 responses
+         */
+        boolean isImmutable();
     }
 
     /**
-     * Custom serializer for species
+     * Items of a fetched list and the cache entry they match
      */
-    private class SpeciesSerializer implements JsonSerializer<Species> {
-        public JsonElement serialize(Species species, Type typeOfSrc, JsonSerializationContext context) {
-            return new JsonPrimitive(species.getName());
+    private static class Listing<T> {
+
+        final ArrayList<T> items;                   // Null for a 304 that wasn't parsed
+        final DiskResponseCache.Entry entry;        // Null if the response wasn't cached
+
+        Listing(ArrayList<T> items, DiskResponseCache.Entry entry) {
+            this.items = items;
+            this.entry = entry;
         }
     }
 
     /**
-     * Custom deserializer for species field that contains only name
+     * Receives parsed items in chunks while a list is being read
+     */
+    private interface ChunkListener<T> {
+        void gotChunk(ArrayList<T> chunk);
+    }
+
+    /**
+     * Copies everything read through it into an OutputStream
      */
-    private class SpeciesDeserializer implements JsonDeserializer<Species> {
-        public Species deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
-            String name = json.getAsJsonPrimitive().getAsString();
-            return new Species(name);   // Create new Species by name
+    private static class TeeInputStream extends FilterInputStream {
+
+        private final OutputStream copy;
+
+        TeeInputStream(InputStream in, OutputStream copy) {
+            super(in);
+            this.copy = copy;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) copy.write(b);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            int n = super.read(buf, off, len);
+            if (n > 0) copy.write(buf, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes must end up in the copy too
+            byte[] buf = new byte[(int)Math.min(n, 4096)];
+            int read = read(buf, 0, buf.length);
+            return Math.max(read, 0);
         }
     }
 
@@ -0,0 +1,100 @@
+package net.markmakinen.duckclient.backend;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors for running BackendClient requests and delivering their callbacks
+ */
+public class BackendExecutors {
+
+    private static final int DEFAULT_THREADS = 4;          // Enough that saves don't wait behind a refresh
+    private static final int DEFAULT_QUEUE_SIZE = 32;      // Requests waiting for a thread before new ones are rejected
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final Executor MAIN_THREAD = new Executor() {
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable r) {
+            // Always posted, even from the main thread, so a callback never runs before the call that
+            // caused it has returned its handle
+            handler.post(r);
+        }
+    };
+
+    private BackendExecutors() {}
+
+    /**
+     * Executor that runs tasks on the main thread, always later through its queue
+     * @return Main thread executor
+     */
+    public static Executor mainThread() {
+        return MAIN_THREAD;
+    }
+
+    /**
+     * Creates the default worker pool
+     * @return Worker pool
+     */
+    public static ThreadPoolExecutor newWorkerPool() {
+        return newWorkerPool(DEFAULT_THREADS, DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * Creates a bounded worker pool of background priority threads.
+     * Idle threads time out, so an unused pool doesn't keep any threads alive.
+     * @param threads Maximum number of concurrent requests
+     * @param queueSize Maximum number of waiting requests
+     * @return Worker pool
+     */
+    public static ThreadPoolExecutor newWorkerPool(int threads, int queueSize) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new WorkerThreadFactory("BackendClient"));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Creates a single background priority thread that runs tasks in order and can run them later
+     * @param name Thread name
+     * @return Scheduled executor
+     */
+    public static ScheduledExecutorService newSerialScheduler(String name) {
+        return Executors.newSingleThreadScheduledExecutor(new WorkerThreadFactory(name));
+    }
+
+    /**
+     * Creates named threads that run with background priority, like AsyncTask's threads
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        WorkerThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, name + " #" + count.incrementAndGet());
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package net.markmakinen.duckclient.backend;
+
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+
+/**
+ * Stops a running request from another thread.
+ *
+ * The transport attaches the open connection; cancelling closes it, which ends a blocked connect or read
+ * with an exception. The parsers also check it between items, so data that is already buffered isn't parsed.
+ */
+class Cancellation {
+
+    private volatile boolean cancelled = false;     // Read without the lock, the parsers check it for every item
+    private HttpURLConnection conn;     // Connection in use, null between requests
+
+    /**
+     * Sets the connection to close on cancel
+     * @param conn Connection that was just opened
+     * @throws InterruptedIOException if already cancelled, the connection is closed then
+     */
+    void attach(HttpURLConnection conn) throws InterruptedIOException {
+        synchronized (this) {
+            if (!cancelled) {
+                this.conn = conn;
+                return;
+            }
+        }
+        conn.disconnect();
+        throw new InterruptedIOException("Cancelled");
+    }
+
+    /**
+     * Forgets a connection whose response was read, so it can go back to the connection pool
+     * @param conn Connection that was attached
+     */
+    synchronized void detach(HttpURLConnection conn) {
+        if (this.conn == conn) this.conn = null;
+    }
+
+    /**
+     * Cancels, and closes the attached connection
+     */
+    void cancel() {
+        HttpURLConnection open;
+        synchronized (this) {
+            if (cancelled) return;
+            cancelled = true;
+            open = conn;
+            conn = null;
+        }
+        if (open != null) open.disconnect();    // Outside the lock, closing may block for a moment
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Ends the work in progress if cancelled
+     * @throws InterruptedIOException if cancelled
+     */
+    void check() throws InterruptedIOException {
+        if (isCancelled()) throw new InterruptedIOException("Cancelled");
+    }
+}
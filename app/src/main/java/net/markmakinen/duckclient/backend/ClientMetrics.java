@@ -0,0 +1,76 @@
+package net.markmakinen.duckclient.backend;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * MetricsListener that aggregates the requests per endpoint.
+ *
+ * Can be queried while requests are running. snapshot gives a consistent copy per endpoint,
+ * e.g. for comparing p50/p99 refresh latencies between releases.
+ */
+public class ClientMetrics implements MetricsListener {
+
+    private final HashMap<String, EndpointMetrics> endpoints = new HashMap<>();
+
+    @Override
+    public void requestFinished(RequestMetrics metrics) {
+        EndpointMetrics endpoint;
+        synchronized (endpoints) {
+            endpoint = endpoints.get(metrics.getEndpoint());
+            if (endpoint == null) {
+                endpoint = new EndpointMetrics(metrics.getEndpoint());
+                endpoints.put(metrics.getEndpoint(), endpoint);
+            }
+        }
+        endpoint.record(metrics);
+    }
+
+    /**
+     * Gets the metrics of one endpoint
+     * @param endpoint Endpoint name, e.g. "GET /sightings", see RequestMetrics.getEndpoint
+     * @return Copy of the metrics, or null if the endpoint hasn't been requested
+     */
+    public EndpointMetrics get(String endpoint) {
+        EndpointMetrics metrics;
+        synchronized (endpoints) {
+            metrics = endpoints.get(endpoint);
+        }
+        return (metrics != null ? metrics.copy() : null);
+    }
+
+    /**
+     * Copies the metrics of every endpoint
+     * @return Metrics by endpoint name, sorted by name
+     */
+    public Map<String, EndpointMetrics> snapshot() {
+        TreeMap<String, EndpointMetrics> snapshot = new TreeMap<>();
+        synchronized (endpoints) {
+            for (EndpointMetrics m : endpoints.values()) snapshot.put(m.getEndpoint(), m.copy());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Forgets everything recorded so far
+     */
+    public void reset() {
+        synchronized (endpoints) {
+            endpoints.clear();
+        }
+    }
+
+    /**
+     * Readable dump of a snapshot, e.g. for the log
+     * @return Text with one block per endpoint
+     */
+    public String dump() {
+        StringBuilder out = new StringBuilder();
+        for (EndpointMetrics m : snapshot().values()) {
+            if (out.length() > 0) out.append('\n');
+            out.append(m);
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,353 @@
+package net.markmakinen.duckclient.backend;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * On-disk cache for backend responses, keyed by request path.
+ *
+ * Stores the response body together with its ETag and Last-Modified validators so that
+ * the next request can be made conditional. A small parsed result of the newest body may also be
+ * kept in memory, so a 304 response doesn't need to be parsed again; bigger ones are parsed from disk.
+ * The least recently used entries are evicted when the total size goes over the limit.
+ */
+public class DiskResponseCache {
+
+    private static final String BODY_SUFFIX = ".body";
+    private static final String META_SUFFIX = ".meta";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int MAX_PARSED_ITEMS = 1000;      // Bigger parsed lists aren't kept in memory
+
+    private final File directory;
+    private final long maxSize;
+    private final HashMap<String, Parsed> parsed = new HashMap<>();
+
+    /**
+     * DiskResponseCache constructor
+     * @param directory Directory to keep the cache files in, created if missing
+     * @param maxSize Maximum total size of the cached bodies in bytes
+     */
+    public DiskResponseCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) throw new IllegalArgumentException("Can't create cache directory " + directory);
+        deleteTempFiles();
+    }
+
+    /**
+     * Gets the cache entry for a path
+     * @param path Request path
+     * @return Entry, or null if the path isn't cached
+     */
+    public synchronized Entry get(String path) {
+        String key = key(path);
+        File body = new File(directory, key + BODY_SUFFIX);
+        File meta = new File(directory, key + META_SUFFIX);
+        if (!body.isFile() || !meta.isFile()) return null;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(meta));
+            String etag = nullIfEmpty(in.readUTF());
+            String lastModified = nullIfEmpty(in.readUTF());
+            body.setLastModified(System.currentTimeMillis());   // Mark as recently used
+            return new Entry(etag, lastModified, body);
+        } catch (IOException e) {
+            remove(key);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Starts writing a new body for a path. The old entry stays valid until the new one is committed.
+     * @param path Request path
+     * @return Editor for the new body
+     * @throws IOException if the temporary file couldn't be created
+     */
+    public Editor edit(String path) throws IOException {
+        return new Editor(path, File.createTempFile(key(path), TEMP_SUFFIX, directory));
+    }
+
+    /**
+     * Gets the parsed result belonging to the given cache entry
+     * @param path Request path
+     * @param entry Entry that was validated by the server
+     * @return Parsed result, or null if the result in memory doesn't belong to this entry
+     */
+    public synchronized Object getParsed(String path, Entry entry) {
+        Parsed p = parsed.get(path);
+        if (p == null || !equal(p.etag, entry.etag) || !equal(p.lastModified, entry.lastModified)) return null;
+        return p.value;
+    }
+
+    /**
+     * Remembers the parsed result of the current entry of a path. Every later 304 response gets the same
+     * objects, so only immutable results should be kept. Collections with more than MAX_PARSED_ITEMS
+     * items aren't kept, they are cheaper to parse again than to hold for the life of the app.
+     * @param path Request path
+     * @param entry Entry the result was parsed from
+     * @param value Parsed result
+     */
+    public synchronized void putParsed(String path, Entry entry, Object value) {
+        if (value instanceof Collection && ((Collection<?>)value).size() > MAX_PARSED_ITEMS) {
+            parsed.remove(path);
+            return;
+        }
+        parsed.put(path, new Parsed(entry.etag, entry.lastModified, value));
+    }
+
+    /**
+     * Removes everything from the cache
+     */
+    public synchronized void clear() {
+        parsed.clear();
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        for (File f : files) f.delete();
+    }
+
+    private synchronized Entry commit(String path, File temp, String etag, String lastModified) throws IOException {
+        String key = key(path);
+        File body = new File(directory, key + BODY_SUFFIX);
+        File meta = new File(directory, key + META_SUFFIX);
+
+        // The validators must never be newer than the body, or a 304 would serve the old body as current.
+        // So the old entry is invalidated first, and the new meta only appears once the new body is in place.
+        parsed.remove(path);
+        if (meta.exists() && !meta.delete()) {
+            temp.delete();
+            throw new IOException("Can't replace cached entry");
+        }
+        if (!temp.renameTo(body)) {
+            temp.delete();
+            remove(key);
+            throw new IOException("Can't move cached body into place");
+        }
+
+        File metaTemp = File.createTempFile(key, TEMP_SUFFIX, directory);
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(metaTemp));
+        try {
+            out.writeUTF(etag == null ? "" : etag);
+            out.writeUTF(lastModified == null ? "" : lastModified);
+        } finally {
+            out.close();
+        }
+        if (!metaTemp.renameTo(meta)) {
+            metaTemp.delete();
+            remove(key);
+            throw new IOException("Can't move cached validators into place");
+        }
+
+        trim();
+        return new Entry(etag, lastModified, body);
+    }
+
+    /**
+     * Evicts least recently used entries until we're under the size limit
+     */
+    private void trim() {
+        File[] bodies = directory.listFiles();
+        if (bodies == null) return;
+
+        long size = 0;
+        for (File f : bodies) {
+            if (f.getName().endsWith(BODY_SUFFIX)) size += f.length();
+        }
+        if (size <= maxSize) return;
+
+        Arrays.sort(bodies, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (File f : bodies) {
+            if (size <= maxSize) break;
+            String name = f.getName();
+            if (!name.endsWith(BODY_SUFFIX)) continue;
+            size -= f.length();
+            remove(name.substring(0, name.length() - BODY_SUFFIX.length()));
+        }
+    }
+
+    /**
+     * Deletes bodies and metas that were being written when the app last stopped
+     */
+    private void deleteTempFiles() {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            if (f.getName().endsWith(TEMP_SUFFIX)) f.delete();
+        }
+    }
+
+    private void remove(String key) {
+        new File(directory, key + BODY_SUFFIX).delete();
+        new File(directory, key + META_SUFFIX).delete();
+        // The path isn't known from the key, so drop parsed results that no longer have an entry
+        for (Iterator<String> it = parsed.keySet().iterator(); it.hasNext(); ) {
+            if (key(it.next()).equals(key)) it.remove();
+        }
+    }
+
+    /**
+     * File name for a path
+     */
+    private static String key(String path) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] digest = md.digest(path.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String nullIfEmpty(String s) {
+        return s.isEmpty() ? null : s;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static void closeQuietly(InputStream in) {
+        if (in == null) return;
+        try {
+            in.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    /**
+     * Cached response
+     */
+    public static class Entry {
+
+        private final String etag;
+        private final String lastModified;
+        private final File body;
+
+        Entry(String etag, String lastModified, File body) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.body = body;
+        }
+
+        /**
+         * ETag of the cached response
+         * @return ETag or null
+         */
+        public String getETag() {
+            return etag;
+        }
+
+        /**
+         * Last-Modified of the cached response
+         * @return Last-Modified or null
+         */
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Identifies the cached response by its validators, equal for the same version of the resource
+         * @return Version string
+         */
+        String getVersion() {
+            return (etag == null ? "" : etag) + "\n" + (lastModified == null ? "" : lastModified);
+        }
+
+        /**
+         * Opens the cached body
+         * @return Body stream
+         * @throws IOException if the body can't be read
+         */
+        public InputStream openBody() throws IOException {
+            return new FileInputStream(body);
+        }
+    }
+
+    /**
+     * Writes a new body into a temporary file and moves it into place on commit
+     */
+    public class Editor {
+
+        private final String path;
+        private final File temp;
+        private final OutputStream out;
+
+        Editor(String path, File temp) throws IOException {
+            this.path = path;
+            this.temp = temp;
+            this.out = new FileOutputStream(temp);
+        }
+
+        /**
+         * Stream to write the body into
+         * @return Output stream
+         */
+        public OutputStream getStream() {
+            return out;
+        }
+
+        /**
+         * Makes the written body the current entry of the path
+         * @param etag ETag of the response or null
+         * @param lastModified Last-Modified of the response or null
+         * @return The new entry
+         * @throws IOException if saving failed
+         */
+        public Entry commit(String etag, String lastModified) throws IOException {
+            out.close();
+            return DiskResponseCache.this.commit(path, temp, etag, lastModified);
+        }
+
+        /**
+         * Throws away the written body
+         */
+        public void abort() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+            temp.delete();
+        }
+    }
+
+    /**
+     * Parsed result of an entry
+     */
+    private static class Parsed {
+
+        final String etag;
+        final String lastModified;
+        final Object value;
+
+        Parsed(String etag, String lastModified, Object value) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package net.markmakinen.duckclient.backend;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Totals and latency histograms of the requests to one endpoint, see ClientMetrics
+ */
+public class EndpointMetrics {
+
+    private final String endpoint;
+
+    private long requests;
+    private long errors;
+    private long cancelled;
+    private long cacheHits;
+    private long retries;
+    private long items;
+    private long bytesSent;
+    private long bytesReceived;
+    private final TreeMap<Integer, Long> statusCodes = new TreeMap<>();   // 0 for requests without a response
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram connect = new LatencyHistogram();
+    private final LatencyHistogram timeToFirstByte = new LatencyHistogram();
+    private final LatencyHistogram download = new LatencyHistogram();
+    private final LatencyHistogram parse = new LatencyHistogram();
+
+    EndpointMetrics(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    synchronized void record(RequestMetrics m) {
+        requests++;
+        if (m.cancelled) {
+            cancelled++;
+        } else if (m.error != null) {
+            errors++;
+        }
+        if (m.cacheHit) cacheHits++;
+        retries += m.retries;
+        items += m.itemCount;
+        bytesSent += m.bytesSent;
+        bytesReceived += m.bytesReceived;
+        Long n = statusCodes.get(m.statusCode);
+        statusCodes.put(m.statusCode, (n == null ? 1 : n + 1));
+
+        latency.record(m.totalNanos);
+        connect.record(m.connectNanos);
+        timeToFirstByte.record(m.ttfbNanos);
+        if (m.error == null) {
+            download.record(m.downloadNanos);
+            parse.record(m.parseNanos);
+        }
+    }
+
+    /**
+     * Copies the current state
+     * @return New EndpointMetrics
+     */
+    synchronized EndpointMetrics copy() {
+        EndpointMetrics copy = new EndpointMetrics(endpoint);
+        copy.requests = requests;
+        copy.errors = errors;
+        copy.cancelled = cancelled;
+        copy.cacheHits = cacheHits;
+        copy.retries = retries;
+        copy.items = items;
+        copy.bytesSent = bytesSent;
+        copy.bytesReceived = bytesReceived;
+        copy.statusCodes.putAll(statusCodes);
+        copy.latency.copyFrom(latency);
+        copy.connect.copyFrom(connect);
+        copy.timeToFirstByte.copyFrom(timeToFirstByte);
+        copy.download.copyFrom(download);
+        copy.parse.copyFrom(parse);
+        return copy;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public synchronized long getRequests() {
+        return requests;
+    }
+
+    /**
+     * Requests that failed, including error responses
+     * @return Count
+     */
+    public synchronized long getErrors() {
+        return errors;
+    }
+
+    /**
+     * Requests stopped by cancelling or by a deadline
+     * @return Count
+     */
+    public synchronized long getCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Requests answered from the response cache after a 304 response
+     * @return Count
+     */
+    public synchronized long getCacheHits() {
+        return cacheHits;
+    }
+
+    public synchronized long getRetries() {
+        return retries;
+    }
+
+    /**
+     * Parsed items in all responses
+     * @return Count
+     */
+    public synchronized long getItems() {
+        return items;
+    }
+
+    public synchronized long getBytesSent() {
+        return bytesSent;
+    }
+
+    public synchronized long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Requests by HTTP status code. Requests that got no response are counted under 0.
+     * @return Copy of the counts
+     */
+    public synchronized Map<Integer, Long> getStatusCodes() {
+        return new TreeMap<>(statusCodes);
+    }
+
+    /**
+     * Whole request durations, from starting the request until the result was parsed or the request failed
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public LatencyHistogram getConnect() {
+        return connect;
+    }
+
+    public LatencyHistogram getTimeToFirstByte() {
+        return timeToFirstByte;
+    }
+
+    /**
+     * Download times of the successful requests
+     */
+    public LatencyHistogram getDownload() {
+        return download;
+    }
+
+    /**
+     * Parse times of the successful requests
+     */
+    public LatencyHistogram getParse() {
+        return parse;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return endpoint + ": " + requests + " requests, " + errors + " errors, " + cancelled + " cancelled, " + cacheHits + " cache hits, " +
+                retries + " retries, " + items + " items, " + bytesSent + " B out, " + bytesReceived + " B in, status " + statusCodes + "\n" +
+                "  latency  " + latency + "\n" +
+                "  connect  " + connect + "\n" +
+                "  ttfb     " + timeToFirstByte + "\n" +
+                "  download " + download + "\n" +
+                "  parse    " + parse;
+    }
+}
@@ -9,6 +9,7 @@ import java.util.ArrayList;
  */
 
 public interface GotSightingsListener {
+    void gotSightingsChunk(ArrayList<Sighting> chunk);  // Called with partial results while the response is still downloading
     void gotSightings(ArrayList<Sighting> sightings);
     void gotError(String msg);
 }
@@ -0,0 +1,39 @@
+package net.markmakinen.duckclient.backend;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the backend answers with an HTTP error status
+ */
+public class HttpStatusException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int code;
+
+    /**
+     * HttpStatusException constructor
+     * @param code HTTP status code
+     * @param message Status message from the server
+     */
+    public HttpStatusException(int code, String message) {
+        super("Server responded with error: " + code + " " + message);
+        this.code = code;
+    }
+
+    /**
+     * HTTP status code
+     * @return Status code
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * Whether sending the same request again can't succeed, i.e. a client error other than timeouts and rate limiting
+     * @return true if retrying is pointless
+     */
+    public boolean isPermanent() {
+        return code >= 400 && code < 500 && code != 408 && code != 429;
+    }
+}
@@ -0,0 +1,404 @@
+package net.markmakinen.duckclient.backend;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * HTTP transport used by the BackendClient.
+ *
+ * Connections are kept alive: a response is always read to the end and closed instead of
+ * disconnecting, which hands the socket back to HttpURLConnection's connection pool for the next request.
+ * Compression is negotiated explicitly so that the compressed bytes on the wire can be counted.
+ */
+public class HttpTransport {
+
+    private static final int MIN_COMPRESS_SIZE = 1024;  // Request bodies smaller than this aren't worth compressing
+
+    private final URI baseURI;
+    private volatile int connectTimeout = 5000;
+    private volatile int readTimeout = 15000;
+    private volatile boolean compressRequests = false;     // Off until the backend is known to accept gzip bodies
+
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    /**
+     * HttpTransport constructor
+     * @param baseURI Root URI that request paths are resolved against
+     */
+    public HttpTransport(URI baseURI) {
+        this.baseURI = baseURI;
+    }
+
+    /**
+     * Time allowed for establishing a connection
+     * @param millis Timeout in milliseconds
+     */
+    public void setConnectTimeout(int millis) {
+        this.connectTimeout = millis;
+    }
+
+    /**
+     * Maximum time to wait for data while reading the response
+     * @param millis Timeout in milliseconds
+     */
+    public void setReadTimeout(int millis) {
+        this.readTimeout = millis;
+    }
+
+    /**
+     * Whether large request bodies are sent gzip compressed. Off by default: only turn it on when the backend
+     * is known to accept Content-Encoding: gzip, otherwise it can't read the requests.
+     * @param compress true to compress
+     */
+    public void setRequestCompression(boolean compress) {
+        this.compressRequests = compress;
+    }
+
+    /**
+     * Request body bytes written to the network so far, after compression
+     * @return Byte count
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * Response body bytes read from the network so far, before decompression
+     * @return Byte count
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * Performs a HTTP GET
+     * @param path Path when the backend URL is the root
+     * @return Response, must be closed by the caller
+     * @throws IOException if the request failed or the server responded with an error
+     */
+    public Response get(String path) throws IOException {
+        return get(path, null);
+    }
+
+    /**
+     * Performs a HTTP GET with extra request headers
+     * @param path Path when the backend URL is the root
+     * @param headers Headers to add, may be null
+     * @return Response, must be closed by the caller
+     * @throws IOException if the request failed or the server responded with an error
+     */
+    public Response get(String path, Map<String, String> headers) throws IOException {
+        return get(path, headers, null, null);
+    }
+
+    /**
+     * Performs a HTTP GET with extra request headers and records its timings
+     * @param path Path when the backend URL is the root
+     * @param headers Headers to add, may be null
+     * @param metrics Gets the connect and response times and the body bytes and download time, may be null
+     * @param cancellation Closes the connection when cancelled, may be null
+     * @return Response, must be closed by the caller
+     * @throws IOException if the request failed, was cancelled or the server responded with an error
+     */
+    Response get(String path, Map<String, String> headers, RequestMetrics metrics, Cancellation cancellation) throws IOException {
+        HttpURLConnection conn = open(path);
+        if (headers != null) {
+            for (Map.Entry<String, String> h : headers.entrySet()) conn.setRequestProperty(h.getKey(), h.getValue());
+        }
+        if (cancellation != null) cancellation.attach(conn);
+        connect(conn, metrics);
+        return execute(conn, metrics, cancellation);
+    }
+
+    /**
+     * Opens a server-sent event stream: a GET whose response body stays open and is read as the events arrive.
+     * The body isn't compressed, so every event can be read as soon as it is sent.
+     * @param path Path when the backend URL is the root
+     * @param headers Headers to add, may be null
+     * @param readTimeout Longest silence before the stream counts as dead, in milliseconds
+     * @return Response, must be ended with disconnect because the body doesn't end by itself
+     * @throws IOException if the request failed or the server responded with an error
+     */
+    Response stream(String path, Map<String, String> headers, int readTimeout) throws IOException {
+        HttpURLConnection conn = open(path);
+        conn.setReadTimeout(readTimeout);
+        conn.setRequestProperty("Accept", "text/event-stream");
+        conn.setRequestProperty("Accept-Encoding", "identity");
+        conn.setRequestProperty("Cache-Control", "no-cache");
+        if (headers != null) {
+            for (Map.Entry<String, String> h : headers.entrySet()) conn.setRequestProperty(h.getKey(), h.getValue());
+        }
+        connect(conn, null);
+        return execute(conn, null, null);
+    }
+
+    /**
+     * Performs a HTTP POST with a JSON body
+     * @param path Path when the backend URL is the root
+     * @param json Data to send
+     * @return Response, must be closed by the caller
+     * @throws IOException if the request failed or the server responded with an error
+     */
+    public Response post(String path, String json) throws IOException {
+        return post(path, json, null, null, null);
+    }
+
+    /**
+     * Performs a HTTP POST with a JSON body and extra request headers, and records its timings
+     * @param path Path when the backend URL is the root
+     * @param json Data to send
+     * @param headers Headers to add, may be null
+     * @param metrics Gets the connect and response times and the body sizes, may be null
+     * @param cancellation Closes the connection when cancelled, may be null
+     * @return Response, must be closed by the caller
+     * @throws IOException if the request failed, was cancelled or the server responded with an error
+     */
+    Response post(String path, String json, Map<String, String> headers, RequestMetrics metrics, Cancellation cancellation) throws IOException {
+        byte[] body = json.getBytes("UTF-8");
+        HttpURLConnection conn = open(path);
+        if (headers != null) {
+            for (Map.Entry<String, String> h : headers.entrySet()) conn.setRequestProperty(h.getKey(), h.getValue());
+        }
+
+        // Set connection parameters, we're POSTing stuff here
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+
+        if (compressRequests && body.length >= MIN_COMPRESS_SIZE) {
+            body = gzip(body);
+            conn.setRequestProperty("Content-Encoding", "gzip");
+        }
+        conn.setFixedLengthStreamingMode(body.length);
+        if (cancellation != null) cancellation.attach(conn);
+        connect(conn, metrics);
+
+        try {
+            OutputStream out = new BufferedOutputStream(conn.getOutputStream());
+            out.write(body);
+            out.close();
+        } catch (IOException e) {
+            conn.disconnect();
+            throw e;
+        }
+        bytesSent.addAndGet(body.length);
+        if (metrics != null) metrics.bytesSent += body.length;
+
+        return execute(conn, metrics, cancellation);
+    }
+
+    /**
+     * Creates a connection with our common settings
+     */
+    private HttpURLConnection open(String path) throws IOException {
+        // Combine root URI and given path
+        URL reqURL = baseURI.resolve(path).toURL();
+        HttpURLConnection conn = (HttpURLConnection)reqURL.openConnection();
+
+        conn.setConnectTimeout(connectTimeout);
+        conn.setReadTimeout(readTimeout);
+        conn.setRequestProperty("Accept", "application/json");
+        // Asking for gzip ourselves disables transparent decompression, so we see the real transfer size
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+
+        return conn;
+    }
+
+    /**
+     * Connects explicitly, so the connect time can be told apart from the wait for the response
+     */
+    private static void connect(HttpURLConnection conn, RequestMetrics metrics) throws IOException {
+        long start = System.nanoTime();
+        try {
+            conn.connect();
+        } catch (IOException e) {
+            conn.disconnect();
+            throw e;
+        }
+        if (metrics != null) metrics.connectNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Waits for the response headers and wraps the response body
+     */
+    private Response execute(HttpURLConnection conn, RequestMetrics metrics, Cancellation cancellation) throws IOException {
+        int code;
+        long start = System.nanoTime();
+        try {
+            code = conn.getResponseCode();
+        } catch (IOException e) {
+            conn.disconnect();
+            throw e;
+        }
+        if (metrics != null) {
+            metrics.ttfbNanos += System.nanoTime() - start;
+            metrics.statusCode = code;
+        }
+
+        if (code == -1 || code >= 400) {
+            String msg = conn.getResponseMessage();
+            // Consume the error body so the connection can still be reused
+            drain(conn.getErrorStream());
+            if (cancellation != null) cancellation.detach(conn);
+            throw new HttpStatusException(code, msg);
+        }
+
+        return new Response(conn, code, metrics, cancellation);
+    }
+
+    /**
+     * Reads a stream to the end and closes it
+     */
+    private static void drain(InputStream in) {
+        if (in == null) return;
+        try {
+            byte[] buf = new byte[4096];
+            while (in.read(buf) != -1) {
+                // Discard
+            }
+            in.close();
+        } catch (IOException e) {
+            // Nothing to do, the connection just won't be reused
+        }
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 2);
+        GZIPOutputStream gz = new GZIPOutputStream(bytes);
+        gz.write(data);
+        gz.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Response of a successful request.
+     * Closing reads the rest of the body so the connection goes back to the pool.
+     */
+    public class Response implements Closeable {
+
+        private final HttpURLConnection conn;
+        private final int code;
+        private final RequestMetrics metrics;
+        private final Cancellation cancellation;
+        private InputStream body;
+
+        Response(HttpURLConnection conn, int code, RequestMetrics metrics, Cancellation cancellation) {
+            this.conn = conn;
+            this.code = code;
+            this.metrics = metrics;
+            this.cancellation = cancellation;
+        }
+
+        /**
+         * HTTP status code
+         * @return Status code
+         */
+        public int getCode() {
+            return code;
+        }
+
+        /**
+         * Value of a response header
+         * @param name Header name
+         * @return Header value or null if not present
+         */
+        public String getHeader(String name) {
+            return conn.getHeaderField(name);
+        }
+
+        /**
+         * Decompressed response body
+         * @return Body stream
+         * @throws IOException if the body couldn't be opened
+         */
+        public InputStream getBody() throws IOException {
+            if (body == null) {
+                InputStream in = new CountingInputStream(conn.getInputStream(), bytesReceived, metrics);
+                if ("gzip".equalsIgnoreCase(conn.getContentEncoding())) in = new GZIPInputStream(in);
+                body = in;
+            }
+            return body;
+        }
+
+        /**
+         * Closes the connection without reading the rest of the body. Can be called from another thread
+         * to abort a read that is waiting for data.
+         */
+        void disconnect() {
+            conn.disconnect();
+        }
+
+        @Override
+        public void close() {
+            if (cancellation != null && cancellation.isCancelled()) {
+                conn.disconnect();      // Don't download the rest for nobody
+                return;
+            }
+            try {
+                drain(getBody());
+            } catch (IOException e) {
+                conn.disconnect();
+            }
+            if (cancellation != null) cancellation.detach(conn);
+        }
+    }
+
+    /**
+     * Counts the bytes read through it, and the time spent waiting for them if metrics are recorded
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        private final AtomicLong counter;
+        private final RequestMetrics metrics;
+
+        CountingInputStream(InputStream in, AtomicLong counter, RequestMetrics metrics) {
+            super(in);
+            this.counter = counter;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            int b = super.read();
+            counted(start, b != -1 ? 1 : 0);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            int n = super.read(buf, off, len);
+            counted(start, Math.max(n, 0));
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long start = System.nanoTime();
+            long skipped = super.skip(n);
+            counted(start, skipped);
+            return skipped;
+        }
+
+        private void counted(long start, long bytes) {
+            if (bytes > 0) counter.addAndGet(bytes);
+            if (metrics == null) return;
+            metrics.downloadNanos += System.nanoTime() - start;
+            metrics.bytesReceived += bytes;
+        }
+    }
+}
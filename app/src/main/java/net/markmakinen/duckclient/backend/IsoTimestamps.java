@@ -0,0 +1,157 @@
+package net.markmakinen.duckclient.backend;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+/**
+ * Parsing and formatting of the backend's UTC timestamps, "yyyy-MM-dd'T'HH:mm:ss'Z'" with optional fractional seconds.
+ *
+ * That one format is handled straight from characters to epoch milliseconds and back, without going through
+ * Joda's general-purpose parsers. Anything else (offsets, out-of-range fields, other layouts) is handed to Joda,
+ * so the results and errors are the same as before.
+ */
+public class IsoTimestamps {
+
+    private static final DateTimeFormatter JODA_FORMAT = ISODateTimeFormat.dateTimeNoMillis().withZoneUTC();
+
+    private static final long MILLIS_PER_DAY = 86400000L;
+    private static final int[] DAYS_IN_MONTH = {31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+
+    private IsoTimestamps() {}
+
+    /**
+     * Parses a timestamp into epoch milliseconds
+     * @param s Timestamp
+     * @return UTC epoch milliseconds
+     * @throws IllegalArgumentException if the timestamp is invalid
+     */
+    public static long parseMillis(String s) {
+        long millis = parseFast(s);
+        if (millis != Long.MIN_VALUE) return millis;
+        return new DateTime(s, DateTimeZone.UTC).getMillis();
+    }
+
+    /**
+     * Formats epoch milliseconds as "yyyy-MM-dd'T'HH:mm:ss'Z'". Milliseconds are truncated.
+     * @param millis UTC epoch milliseconds
+     * @return Timestamp
+     */
+    public static String format(long millis) {
+        long days = floorDiv(millis, MILLIS_PER_DAY);
+        int millisOfDay = (int)(millis - days * MILLIS_PER_DAY);
+
+        // Civil date from days since the epoch, see http://howardhinnant.github.io/date_algorithms.html
+        long z = days + 719468;
+        long era = floorDiv(z, 146097);
+        int doe = (int)(z - era * 146097);
+        int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        int mp = (5 * doy + 2) / 153;
+        int day = doy - (153 * mp + 2) / 5 + 1;
+        int month = (mp < 10 ? mp + 3 : mp - 9);
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 0 || year > 9999) return JODA_FORMAT.print(millis);
+
+        int secondOfDay = millisOfDay / 1000;
+        char[] out = new char[20];
+        put(out, 0, (int)year, 4);
+        out[4] = '-';
+        put(out, 5, month, 2);
+        out[7] = '-';
+        put(out, 8, day, 2);
+        out[10] = 'T';
+        put(out, 11, secondOfDay / 3600, 2);
+        out[13] = ':';
+        put(out, 14, secondOfDay / 60 % 60, 2);
+        out[16] = ':';
+        put(out, 17, secondOfDay % 60, 2);
+        out[19] = 'Z';
+        return new String(out);
+    }
+
+    /**
+     * Parses the backend's own format
+     * @return Epoch milliseconds, or Long.MIN_VALUE if the string needs the full parser
+     */
+    private static long parseFast(String s) {
+        int len = s.length();
+        if (len < 20 || s.charAt(len - 1) != 'Z') return Long.MIN_VALUE;
+        if (s.charAt(4) != '-' || s.charAt(7) != '-' || s.charAt(10) != 'T' || s.charAt(13) != ':' || s.charAt(16) != ':') {
+            return Long.MIN_VALUE;
+        }
+
+        int year = digits(s, 0, 4);
+        int month = digits(s, 5, 2);
+        int day = digits(s, 8, 2);
+        int hour = digits(s, 11, 2);
+        int minute = digits(s, 14, 2);
+        int second = digits(s, 17, 2);
+        if ((year | month | day | hour | minute | second) < 0) return Long.MIN_VALUE;
+
+        // Fraction: up to nine digits after a dot, only milliseconds are kept
+        int millis = 0;
+        if (len > 20) {
+            if (s.charAt(19) != '.' || len == 21 || len > 30) return Long.MIN_VALUE;
+            for (int i = 20; i < len - 1; i++) {
+                int d = s.charAt(i) - '0';
+                if (d < 0 || d > 9) return Long.MIN_VALUE;
+                if (i < 23) millis = millis * 10 + d;
+            }
+            for (int i = len - 1; i < 23; i++) millis *= 10;     // ".5" is 500 ms
+        }
+
+        if (month < 1 || month > 12 || day < 1 || hour > 23 || minute > 59 || second > 59) return Long.MIN_VALUE;
+        int monthDays = (month == 2 && isLeapYear(year) ? 29 : DAYS_IN_MONTH[month - 1]);
+        if (day > monthDays) return Long.MIN_VALUE;
+
+        return daysFromCivil(year, month, day) * MILLIS_PER_DAY + hour * 3600000L + minute * 60000L + second * 1000L + millis;
+    }
+
+    private static boolean isLeapYear(int year) {
+        return (year % 4 == 0) && (year % 100 != 0 || year % 400 == 0);
+    }
+
+    /**
+     * Days since 1970-01-01 in the proleptic Gregorian calendar, like Joda's ISOChronology
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        int y = (month <= 2 ? year - 1 : year);
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yoe = y - era * 400;
+        int doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097L + doe - 719468;
+    }
+
+    /**
+     * Reads a fixed number of decimal digits
+     * @return Value, or -1 if a character isn't a digit
+     */
+    private static int digits(String s, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            int d = s.charAt(i) - '0';
+            if (d < 0 || d > 9) return -1;
+            value = value * 10 + d;
+        }
+        return value;
+    }
+
+    /**
+     * Division rounding down, Math.floorDiv needs API level 24
+     */
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        if ((x % y != 0) && ((x < 0) != (y < 0))) q--;
+        return q;
+    }
+
+    private static void put(char[] out, int pos, int value, int width) {
+        for (int i = pos + width - 1; i >= pos; i--) {
+            out[i] = (char)('0' + value % 10);
+            value /= 10;
+        }
+    }
+}
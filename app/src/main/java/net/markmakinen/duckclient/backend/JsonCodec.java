@@ -0,0 +1,223 @@
+package net.markmakinen.duckclient.backend;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import net.markmakinen.duckclient.model.Sighting;
+import net.markmakinen.duckclient.model.Species;
+import net.markmakinen.duckclient.model.SpeciesRegistry;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+/**
+ * JSON encoding and decoding of the backend's data types.
+ * Uses hand-written streaming TypeAdapters, so there is no reflection and no intermediate JsonElement tree.
+ * The adapters hold no per-call state, so one instance can be shared between threads.
+ * Species that are read are interned, so all Sightings of a species share one Species instance.
+ */
+public class JsonCodec {
+
+    private final TypeAdapter<DateTime> dateTimeAdapter = new DateTimeAdapter();
+    private final TypeAdapter<Species> speciesAdapter;
+    private final TypeAdapter<Sighting> sightingAdapter;
+
+    /**
+     * Creates a codec that interns Species in the app-wide SpeciesRegistry
+     */
+    public JsonCodec() {
+        this(SpeciesRegistry.getInstance());
+    }
+
+    /**
+     * Creates a codec
+     * @param registry Registry for interning the Species that are read
+     */
+    public JsonCodec(SpeciesRegistry registry) {
+        this.speciesAdapter = new SpeciesAdapter(registry);
+        this.sightingAdapter = new SightingAdapter(dateTimeAdapter, speciesAdapter);
+    }
+
+    /**
+     * Reads the next Species from the stream
+     * @param reader Reader positioned at a Species
+     * @return Species
+     * @throws IOException if reading failed
+     */
+    public Species readSpecies(JsonReader reader) throws IOException {
+        return speciesAdapter.read(reader);
+    }
+
+    /**
+     * Reads the next Sighting from the stream
+     * @param reader Reader positioned at a Sighting
+     * @return Sighting
+     * @throws IOException if reading failed
+     * @throws JsonParseException if a field has an invalid value
+     */
+    public Sighting readSighting(JsonReader reader) throws IOException {
+        return sightingAdapter.read(reader);
+    }
+
+    /**
+     * Serializes a Sighting into the format the backend expects
+     * @param sighting Sighting to serialize
+     * @return JSON string
+     */
+    public String toJson(Sighting sighting) {
+        StringWriter out = new StringWriter();
+        try {
+            sightingAdapter.write(new JsonWriter(out), sighting);
+        } catch (IOException e) {
+            // StringWriter doesn't throw
+            throw new AssertionError(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * TypeAdapter for dateTime field "YYYY-MM-DD'T'HH:MM:SS'Z'".
+     * Uses IsoTimestamps, which handles the backend's format without Joda's parsers.
+     */
+    private static class DateTimeAdapter extends TypeAdapter<DateTime> {
+
+        @Override
+        public void write(JsonWriter out, DateTime dt) throws IOException {
+            if (dt == null) {
+                out.nullValue();
+                return;
+            }
+            out.value(IsoTimestamps.format(dt.getMillis()));
+        }
+
+        @Override
+        public DateTime read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            String value = in.nextString();
+            try {
+                return new DateTime(IsoTimestamps.parseMillis(value), DateTimeZone.UTC);
+            } catch (IllegalArgumentException e) {
+                throw new JsonParseException("Invalid dateTime \"" + value + "\" at " + in.getPath(), e);
+            }
+        }
+    }
+
+    /**
+     * TypeAdapter for Species.
+     * Sightings refer to species only by name, the species listing has objects with a name field.
+     * Both are accepted when reading, the name is written.
+     */
+    private static class SpeciesAdapter extends TypeAdapter<Species> {
+
+        private final SpeciesRegistry registry;
+
+        SpeciesAdapter(SpeciesRegistry registry) {
+            this.registry = registry;
+        }
+
+        @Override
+        public void write(JsonWriter out, Species species) throws IOException {
+            if (species == null) {
+                out.nullValue();
+                return;
+            }
+            out.value(species.getName());
+        }
+
+        @Override
+        public Species read(JsonReader in) throws IOException {
+            JsonToken token = in.peek();
+            if (token == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            if (token != JsonToken.BEGIN_OBJECT) return registry.intern(in.nextString());
+
+            String name = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                if (in.nextName().equals("name")) {
+                    name = in.nextString();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            if (name == null) throw new JsonParseException("species name missing");   // Can't be interned or allowed
+            return registry.intern(name);
+        }
+    }
+
+    /**
+     * TypeAdapter for Sighting. The server-side ID is read but never written.
+     */
+    private static class SightingAdapter extends TypeAdapter<Sighting> {
+
+        private final TypeAdapter<DateTime> dateTimeAdapter;
+        private final TypeAdapter<Species> speciesAdapter;
+
+        SightingAdapter(TypeAdapter<DateTime> dateTimeAdapter, TypeAdapter<Species> speciesAdapter) {
+            this.dateTimeAdapter = dateTimeAdapter;
+            this.speciesAdapter = speciesAdapter;
+        }
+
+        @Override
+        public void write(JsonWriter out, Sighting sighting) throws IOException {
+            out.beginObject();
+            out.name("dateTime");
+            dateTimeAdapter.write(out, sighting.getDateTime());
+            out.name("description").value(sighting.getDescription());
+            out.name("species");
+            speciesAdapter.write(out, sighting.getSpecies());
+            out.name("count").value(sighting.getCount());
+            out.endObject();
+        }
+
+        @Override
+        public Sighting read(JsonReader in) throws IOException {
+            Sighting sighting = new Sighting();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "id":
+                        sighting.setSightingId(in.nextString());
+                        break;
+                    case "dateTime":
+                        sighting.setDateTime(dateTimeAdapter.read(in));
+                        break;
+                    case "description":
+                        sighting.setDescription(in.nextString());
+                        break;
+                    case "species":
+                        sighting.setSpecies(speciesAdapter.read(in));
+                        break;
+                    case "count":
+                        try {
+                            sighting.setCount(in.nextInt());
+                        } catch (NumberFormatException e) {
+                            throw new JsonParseException("Invalid count at " + in.getPath(), e);
+                        }
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return sighting;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package net.markmakinen.duckclient.backend;
+
+/**
+ * Histogram of durations with fixed buckets from 1 ms to 60 s (1-2-5 steps).
+ *
+ * Recording is a short scan of the bucket bounds and an increment, nothing is allocated.
+ * Percentiles are reported as the upper bound of the bucket they fall in, so they are
+ * never lower than the real value and at most about 2.5 times higher.
+ */
+public class LatencyHistogram {
+
+    private static final long[] BOUNDS_MILLIS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 60000};
+    private static final long[] BOUNDS_NANOS = new long[BOUNDS_MILLIS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS_MILLIS.length; i++) BOUNDS_NANOS[i] = BOUNDS_MILLIS[i] * 1000000L;
+    }
+
+    private final long[] counts = new long[BOUNDS_MILLIS.length + 1];  // The last bucket is everything above 60 s
+    private long count;
+    private long sumNanos;
+    private long maxNanos;
+
+    /**
+     * Records a duration
+     * @param nanos Duration in nanoseconds
+     */
+    public synchronized void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        int bucket = 0;
+        while (bucket < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[bucket]) bucket++;
+        counts[bucket]++;
+        count++;
+        sumNanos += nanos;
+        if (nanos > maxNanos) maxNanos = nanos;
+    }
+
+    /**
+     * Number of recorded durations
+     * @return Count
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Average duration
+     * @return Milliseconds, 0 if nothing was recorded
+     */
+    public synchronized double getMeanMillis() {
+        return (count == 0 ? 0 : sumNanos / 1e6 / count);
+    }
+
+    /**
+     * Longest recorded duration
+     * @return Milliseconds
+     */
+    public synchronized double getMaxMillis() {
+        return maxNanos / 1e6;
+    }
+
+    /**
+     * Duration that the given fraction of the recorded durations doesn't exceed
+     * @param fraction E.g. 0.5 for the median, 0.99 for the 99th percentile
+     * @return Upper bound of the bucket in milliseconds, 0 if nothing was recorded
+     */
+    public synchronized double getPercentileMillis(double fraction) {
+        if (count == 0) return 0;
+        long rank = (long)Math.ceil(fraction * count);
+        if (rank < 1) rank = 1;
+
+        long seen = 0;
+        for (int i = 0; i < BOUNDS_MILLIS.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(BOUNDS_MILLIS[i], getMaxMillis());
+        }
+        return getMaxMillis();
+    }
+
+    /**
+     * Copies the current state
+     * @return New histogram
+     */
+    public LatencyHistogram copy() {
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.copyFrom(this);
+        return copy;
+    }
+
+    /**
+     * Replaces the state of this histogram with another's
+     */
+    void copyFrom(LatencyHistogram other) {
+        synchronized (other) {
+            synchronized (this) {
+                System.arraycopy(other.counts, 0, counts, 0, counts.length);
+                count = other.count;
+                sumNanos = other.sumNanos;
+                maxNanos = other.maxNanos;
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("n=%d p50=%.0fms p90=%.0fms p99=%.0fms max=%.1fms",
+                count, getPercentileMillis(0.5), getPercentileMillis(0.9), getPercentileMillis(0.99), getMaxMillis());
+    }
+}
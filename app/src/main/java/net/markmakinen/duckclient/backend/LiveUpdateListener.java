@@ -0,0 +1,6 @@
+package net.markmakinen.duckclient.backend;
+
+public interface LiveUpdateListener {
+    void gotLiveUpdate(SightingDelta delta);    // New Sightings from the stream, only ones that weren't known yet
+    void liveGap();                             // Events may have been missed, a full sync recovers them
+}
@@ -0,0 +1,5 @@
+package net.markmakinen.duckclient.backend;
+
+public interface MetricsListener {
+    void requestFinished(RequestMetrics metrics);   // Called on the request's thread, keep it quick and thread-safe
+}
@@ -0,0 +1,8 @@
+package net.markmakinen.duckclient.backend;
+
+import net.markmakinen.duckclient.model.Sighting;
+
+public interface OutboxListener {
+    void sightingSent(Sighting pending, Sighting saved);    // saved is what the backend stored, null if it didn't return it
+    void sightingDropped(Sighting pending, String msg);     // The backend refused the Sighting, it won't be retried
+}
@@ -0,0 +1,15 @@
+package net.markmakinen.duckclient.backend;
+
+import net.markmakinen.duckclient.model.Sighting;
+
+import java.util.ArrayList;
+
+/**
+ * Durable storage for Sightings waiting to be sent. Called on the outbox's own serial thread, one call at a time.
+ * A RuntimeException is logged and the outbox tries again later.
+ */
+public interface OutboxStore {
+    ArrayList<Sighting> loadPending();      // Oldest first
+    void addPending(Sighting sighting);
+    void removePending(String localId);
+}
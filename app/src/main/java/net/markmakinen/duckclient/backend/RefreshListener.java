@@ -0,0 +1,10 @@
+package net.markmakinen.duckclient.backend;
+
+import net.markmakinen.duckclient.model.Sighting;
+
+import java.util.ArrayList;
+
+public interface RefreshListener {
+    void gotSightingsChunk(ArrayList<Sighting> chunk);  // Only called while the first full list is downloading
+    void refreshDone(RefreshResult result);
+}
@@ -0,0 +1,48 @@
+package net.markmakinen.duckclient.backend;
+
+import net.markmakinen.duckclient.model.Species;
+
+import java.util.ArrayList;
+
+/**
+ * Result of a combined Species and Sighting refresh. Each part either succeeded or has an error message.
+ */
+public class RefreshResult {
+
+    volatile ArrayList<Species> species;
+    volatile String speciesError;
+    volatile SightingDelta delta;
+    volatile String sightingsError;
+
+    /**
+     * Allowed Species
+     * @return Species, or null if getting them failed
+     */
+    public ArrayList<Species> getSpecies() {
+        return species;
+    }
+
+    /**
+     * Why getting the Species failed
+     * @return Error message, or null on success
+     */
+    public String getSpeciesError() {
+        return speciesError;
+    }
+
+    /**
+     * Sighting changes
+     * @return Changes, or null if the sync failed
+     */
+    public SightingDelta getDelta() {
+        return delta;
+    }
+
+    /**
+     * Why the Sighting sync failed
+     * @return Error message, or null on success
+     */
+    public String getSightingsError() {
+        return sightingsError;
+    }
+}
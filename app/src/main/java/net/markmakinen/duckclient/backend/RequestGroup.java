@@ -0,0 +1,50 @@
+package net.markmakinen.duckclient.backend;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * The calls made for one owner, e.g. an Activity, so they can be stopped together when the owner goes away.
+ *
+ * In onDestroy, detach them if the Activity is only being recreated (isChangingConfigurations), so the new
+ * instance joins the running requests, and cancel them otherwise.
+ */
+public class RequestGroup {
+
+    private final ArrayList<RequestHandle> handles = new ArrayList<>();
+
+    /**
+     * Adds a call to the group
+     * @param handle Handle of the call
+     * @return The same handle
+     */
+    public synchronized RequestHandle add(RequestHandle handle) {
+        // Forget the finished ones, so a long-lived group doesn't grow
+        Iterator<RequestHandle> it = handles.iterator();
+        while (it.hasNext()) {
+            if (!it.next().isActive()) it.remove();
+        }
+        handles.add(handle);
+        return handle;
+    }
+
+    /**
+     * Cancels every running call of the group
+     */
+    public void cancelAll() {
+        for (RequestHandle handle : takeAll()) handle.cancel();
+    }
+
+    /**
+     * Stops the callbacks of every running call of the group, but lets the requests finish
+     */
+    public void detachAll() {
+        for (RequestHandle handle : takeAll()) handle.detach();
+    }
+
+    private synchronized ArrayList<RequestHandle> takeAll() {
+        ArrayList<RequestHandle> all = new ArrayList<>(handles);
+        handles.clear();
+        return all;
+    }
+}
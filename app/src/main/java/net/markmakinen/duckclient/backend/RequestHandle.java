@@ -0,0 +1,126 @@
+package net.markmakinen.duckclient.backend;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Handle of a BackendClient call, returned by every call.
+ *
+ * After cancel, detach or a missed deadline the call's listener isn't called anymore (except for the
+ * deadline error). Cancelling also stops the request: its connection is closed and parsing stops, unless
+ * an identical call joined it and still waits for the result. Detaching lets the request finish, so an
+ * identical call made right after, e.g. by an Activity recreated after a rotation, joins it instead of
+ * starting over. Sync results that nobody received are reported by the next sync.
+ *
+ * The listener gets at most one result or error. To be sure no callback comes after cancel or detach,
+ * call them on the thread the listeners run on.
+ */
+public class RequestHandle {
+
+    /**
+     * What a handle controls, each method is called at most once and only one of them
+     */
+    interface Target {
+        void cancel();              // Nobody wants the result
+        void detach();              // Nobody listens, but the request may finish
+        void expire(String msg);    // The deadline passed: stop like cancel and report the error
+    }
+
+    private static final int ACTIVE = 0;
+    private static final int DONE = 1;          // The listener was called
+    private static final int CANCELLED = 2;     // By cancel, detach or the deadline
+
+    private static ScheduledExecutorService timer;      // Runs the deadlines of all handles, created on first use
+
+    private final Target target;
+    private final AtomicInteger state = new AtomicInteger(ACTIVE);
+    private ScheduledFuture<?> deadline;    // Guarded by this
+
+    RequestHandle(Target target) {
+        this.target = target;
+    }
+
+    /**
+     * Cancels the call
+     * @return true if the call was still running, false if its listener was already called
+     */
+    public boolean cancel() {
+        if (!end()) return false;
+        target.cancel();
+        return true;
+    }
+
+    /**
+     * Stops the callbacks but lets the request finish
+     * @return true if the call was still running, false if its listener was already called
+     */
+    public boolean detach() {
+        if (!end()) return false;
+        target.detach();
+        return true;
+    }
+
+    /**
+     * Fails the call with an error if it hasn't finished in time, counting from now.
+     * Saves that go through the outbox aren't stopped: the listener gets the error, but the Sighting is still sent.
+     * @param millis Time limit in milliseconds
+     * @return This handle
+     */
+    public RequestHandle setDeadline(final long millis) {
+        synchronized (this) {
+            if (state.get() != ACTIVE) return this;
+            if (deadline != null) deadline.cancel(false);
+            deadline = timer().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (state.compareAndSet(ACTIVE, CANCELLED)) target.expire("No response within " + millis + " ms");
+                }
+            }, millis, TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    /**
+     * Whether the call is still running and its listener will be called
+     * @return true if running
+     */
+    public boolean isActive() {
+        return state.get() == ACTIVE;
+    }
+
+    /**
+     * Whether the call was cancelled, detached or missed its deadline
+     * @return true if cancelled
+     */
+    public boolean isCancelled() {
+        return state.get() == CANCELLED;
+    }
+
+    /**
+     * Claims the right to call the listener, right before calling it
+     * @return false if the call was cancelled or already finished
+     */
+    boolean complete() {
+        if (!state.compareAndSet(ACTIVE, DONE)) return false;
+        clearDeadline();
+        return true;
+    }
+
+    private boolean end() {
+        if (!state.compareAndSet(ACTIVE, CANCELLED)) return false;
+        clearDeadline();
+        return true;
+    }
+
+    private synchronized void clearDeadline() {
+        if (deadline != null) deadline.cancel(false);
+        deadline = null;
+    }
+
+    private static synchronized ScheduledExecutorService timer() {
+        if (timer == null) timer = BackendExecutors.newSerialScheduler("BackendClient deadlines");
+        return timer;
+    }
+}
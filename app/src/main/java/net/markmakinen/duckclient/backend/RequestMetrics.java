@@ -0,0 +1,203 @@
+package net.markmakinen.duckclient.backend;
+
+/**
+ * Measurements of one backend request, see MetricsListener.
+ *
+ * HttpURLConnection resolves the host name as part of connecting, so the DNS lookup is included in the
+ * connect time. A request on a kept-alive connection has (almost) no connect time.
+ * Download time is the time spent waiting for response bytes, parse time is the rest of the time spent
+ * reading the body.
+ */
+public class RequestMetrics {
+
+    final String endpoint;
+    final long startNanos = System.nanoTime();
+
+    // Written by the request's thread only
+    long totalNanos;
+    long connectNanos;
+    long ttfbNanos;
+    long downloadNanos;
+    long parseNanos;
+    long bytesSent;
+    long bytesReceived;
+    int statusCode;
+    int itemCount;
+    int retries;
+    boolean cacheHit;
+    boolean cancelled;
+    String error;
+
+    RequestMetrics(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Endpoint of the request, the method and the path without query values, e.g. "GET /sightings?since"
+     * @return Endpoint name
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * Time from starting the request until the result was parsed or the request failed
+     * @return Nanoseconds
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * Time spent resolving the host and connecting
+     * @return Nanoseconds
+     */
+    public long getConnectNanos() {
+        return connectNanos;
+    }
+
+    /**
+     * Time from sending the request until the response headers arrived
+     * @return Nanoseconds
+     */
+    public long getTimeToFirstByteNanos() {
+        return ttfbNanos;
+    }
+
+    /**
+     * Time spent waiting for response body bytes
+     * @return Nanoseconds
+     */
+    public long getDownloadNanos() {
+        return downloadNanos;
+    }
+
+    /**
+     * Time spent decompressing and parsing the response body
+     * @return Nanoseconds
+     */
+    public long getParseNanos() {
+        return parseNanos;
+    }
+
+    /**
+     * Request body bytes written, after compression
+     * @return Byte count
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Response body bytes read, before decompression
+     * @return Byte count
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * HTTP status code
+     * @return Status code, 0 if no response was received
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Number of parsed items
+     * @return Item count
+     */
+    public int getItemCount() {
+        return itemCount;
+    }
+
+    /**
+     * How many times the same request failed before this attempt
+     * @return Retry count
+     */
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * Whether the result was served from the response cache after a 304 response
+     * @return true on a cache hit
+     */
+    public boolean isCacheHit() {
+        return cacheHit;
+    }
+
+    /**
+     * Whether the request was stopped because its caller cancelled it, or its deadline passed
+     * @return true if cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Why the request failed
+     * @return Error message, or null on success
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * Marks the request failed
+     */
+    void failed(Exception e) {
+        if (e instanceof HttpStatusException) statusCode = ((HttpStatusException)e).getCode();
+        error = (e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+    }
+
+    /**
+     * Marks the request cancelled, which isn't counted as an error
+     */
+    void cancelled() {
+        cancelled = true;
+        error = "Cancelled";
+    }
+
+    /**
+     * Ends the measurement
+     */
+    void finish() {
+        totalNanos = System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Endpoint name of a request
+     * @param method HTTP method
+     * @param path Request path, query values are left out
+     * @return Endpoint name, e.g. "GET /sightings?since"
+     */
+    static String endpointOf(String method, String path) {
+        int query = path.indexOf('?');
+        if (query < 0) return method + " " + path;
+
+        StringBuilder name = new StringBuilder(method).append(' ').append(path, 0, query + 1);
+        boolean inValue = false;
+        for (int i = query + 1; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '=') {
+                inValue = true;
+            } else if (c == '&') {
+                inValue = false;
+                name.append(c);
+            } else if (!inValue) {
+                name.append(c);
+            }
+        }
+        return name.toString();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %s in %.1f ms (connect %.1f, ttfb %.1f, download %.1f, parse %.1f), %d B out, %d B in, %d items%s%s",
+                endpoint, (cancelled ? "cancelled" : error != null ? "failed" : Integer.toString(statusCode)), totalNanos / 1e6, connectNanos / 1e6,
+                ttfbNanos / 1e6, downloadNanos / 1e6, parseNanos / 1e6, bytesSent, bytesReceived, itemCount,
+                (cacheHit ? ", cached" : ""), (retries > 0 ? ", retry " + retries : ""));
+    }
+}
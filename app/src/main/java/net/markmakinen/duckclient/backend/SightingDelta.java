@@ -0,0 +1,104 @@
+package net.markmakinen.duckclient.backend;
+
+import net.markmakinen.duckclient.model.Sighting;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * Changes to the known Sightings found by a sync
+ */
+public class SightingDelta {
+
+    private final ArrayList<Sighting> added;
+    private final ArrayList<Sighting> changed;
+    private final ArrayList<String> removed;
+    private final boolean fullSync;
+
+    SightingDelta(ArrayList<Sighting> added, ArrayList<Sighting> changed, ArrayList<String> removed, boolean fullSync) {
+        this.added = added;
+        this.changed = changed;
+        this.removed = removed;
+        this.fullSync = fullSync;
+    }
+
+    /**
+     * Sightings that weren't known before
+     * @return Added Sightings
+     */
+    public ArrayList<Sighting> getAdded() {
+        return added;
+    }
+
+    /**
+     * Known Sightings whose content changed on the backend
+     * @return New versions of the changed Sightings
+     */
+    public ArrayList<Sighting> getChanged() {
+        return changed;
+    }
+
+    /**
+     * IDs of the Sightings that no longer exist on the backend. Only a full sync can detect removals.
+     * @return Removed Sighting IDs
+     */
+    public ArrayList<String> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Whether the whole collection was compared, instead of only the Sightings newer than the last sync
+     * @return true if this was a full sync
+     */
+    public boolean isFullSync() {
+        return fullSync;
+    }
+
+    /**
+     * Whether the sync found no changes at all
+     * @return true if nothing changed
+     */
+    public boolean isEmpty() {
+        return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+    }
+
+    /**
+     * Combines two deltas into one that has the same effect as applying both in order
+     * @param older Delta found first
+     * @param newer Delta found after it
+     * @return Combined delta
+     */
+    static SightingDelta combine(SightingDelta older, SightingDelta newer) {
+        LinkedHashMap<String, Sighting> added = new LinkedHashMap<>();
+        LinkedHashMap<String, Sighting> changed = new LinkedHashMap<>();
+        LinkedHashSet<String> removed = new LinkedHashSet<>(older.removed);
+        for (Sighting s : older.added) added.put(s.getSightingId(), s);
+        for (Sighting s : older.changed) changed.put(s.getSightingId(), s);
+
+        for (Sighting s : newer.added) {
+            String id = s.getSightingId();
+            if (removed.remove(id)) {
+                changed.put(id, s);     // Removed and back again, so the listener still has it
+            } else {
+                added.put(id, s);
+            }
+        }
+        for (Sighting s : newer.changed) {
+            String id = s.getSightingId();
+            if (added.containsKey(id)) {
+                added.put(id, s);       // Still new to the listener, in its latest version
+            } else {
+                changed.put(id, s);
+            }
+        }
+        for (String id : newer.removed) {
+            if (added.remove(id) != null) continue;     // The listener never saw it
+            changed.remove(id);
+            removed.add(id);
+        }
+
+        return new SightingDelta(new ArrayList<>(added.values()), new ArrayList<>(changed.values()),
+                new ArrayList<>(removed), older.fullSync || newer.fullSync);
+    }
+}
@@ -0,0 +1,272 @@
+package net.markmakinen.duckclient.backend;
+
+import android.util.Log;
+
+import net.markmakinen.duckclient.model.Sighting;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sightings waiting to be sent to the backend.
+ *
+ * New Sightings are stored durably first and sent afterwards, one POST per Sighting. Up to MAX_IN_FLIGHT
+ * POSTs run at once over the kept-alive connections, so the upload throughput doesn't depend on the
+ * round-trip time, and the backend may get them out of order. Each POST carries the Sighting's local ID
+ * as its Idempotency-Key, so a resend after a lost response doesn't store it twice on a backend that
+ * honours the key. On the first failure no new sends are started, and the flush is retried with
+ * exponential backoff and jitter.
+ * All state is confined to one serial thread, and the sends have their own threads, so uploads don't
+ * take threads from the fetches.
+ */
+class SightingOutbox {
+
+    private static final int MAX_IN_FLIGHT = 4;                     // Concurrent POSTs, within HttpURLConnection's keep-alive pool
+    private static final long BASE_RETRY_DELAY = 2000;              // Milliseconds before the first retry
+    private static final long MAX_RETRY_DELAY = 5 * 60 * 1000;     // Upper limit for the backoff
+
+    /**
+     * Sends one Sighting to the backend, returns the saved Sighting or null
+     */
+    interface Sender {
+        Sighting send(Sighting sighting, int retries) throws IOException;
+    }
+
+    private final OutboxStore store;
+    private final Sender sender;
+    private final Executor callbackExecutor;
+    private final ScheduledExecutorService thread = BackendExecutors.newSerialScheduler("BackendClient outbox");
+    private final ExecutorService sendThreads = BackendExecutors.newWorkerPool(MAX_IN_FLIGHT, MAX_IN_FLIGHT);
+    private final Random random = new Random();
+
+    // Only touched on the outbox thread
+    private ArrayList<Sighting> pending;    // Oldest first, null until loaded from the store
+    private final HashSet<String> sending = new HashSet<>();       // Local IDs of the POSTs in flight
+    private final HashMap<String, Integer> retries = new HashMap<>();  // Failed attempts by local ID
+    private final HashMap<String, SightingSaveListener> saveListeners = new HashMap<>();
+    private int failures = 0;               // Failed flushes in a row, for the backoff
+    private ScheduledFuture<?> retry;       // Set while backing off, no new sends are started then
+
+    private volatile OutboxListener listener;
+
+    SightingOutbox(OutboxStore store, Sender sender, Executor callbackExecutor) {
+        this.store = store;
+        this.sender = sender;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    void setListener(OutboxListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Queues a Sighting for sending. The local ID is assigned right away.
+     * @param sighting Sighting to send
+     * @param saveListener Notified when the Sighting was sent or dropped, may be null
+     */
+    void add(final Sighting sighting, final SightingSaveListener saveListener) {
+        if (sighting.getLocalId() == null) sighting.setLocalId(UUID.randomUUID().toString());
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                ensureLoaded();
+                if (saveListener != null) saveListeners.put(sighting.getLocalId(), saveListener);
+                pending.add(sighting);      // Before storing, so a failing store doesn't lose it for this session
+                store.addPending(sighting);
+                flush();
+            }
+        });
+    }
+
+    /**
+     * Forgets the save listener of a Sighting, e.g. when its call was cancelled. The Sighting is still sent.
+     * @param localId Local ID of the Sighting
+     */
+    void removeSaveListener(final String localId) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                saveListeners.remove(localId);
+            }
+        });
+    }
+
+    /**
+     * Sends the pending Sightings now, e.g. when the network comes back. Resets the backoff.
+     */
+    void flushNow() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (retry != null) retry.cancel(false);
+                retry = null;
+                failures = 0;
+                flush();
+            }
+        });
+    }
+
+    /**
+     * Starts sends for the oldest pending Sightings until MAX_IN_FLIGHT are running, unless backing off
+     */
+    private void flush() {
+        ensureLoaded();
+        for (int i = 0; i < pending.size() && sending.size() < MAX_IN_FLIGHT && retry == null; i++) {
+            Sighting s = pending.get(i);
+            if (!sending.contains(s.getLocalId())) send(s);
+        }
+    }
+
+    /**
+     * Sends a Sighting on a send thread and handles the result back on the outbox thread
+     */
+    private void send(final Sighting s) {
+        sending.add(s.getLocalId());
+        final Integer attempts = retries.get(s.getLocalId());
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                Sighting saved = null;
+                Exception error = null;
+                try {
+                    saved = sender.send(s, attempts != null ? attempts : 0);
+                } catch (IOException | RuntimeException e) {
+                    error = e;
+                }
+                final Sighting result = saved;
+                final Exception failure = error;
+                execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        sending.remove(s.getLocalId());
+                        finished(s, result, failure);
+                    }
+                });
+            }
+        };
+        try {
+            sendThreads.execute(task);
+        } catch (RejectedExecutionException e) {
+            sending.remove(s.getLocalId());
+            throw e;
+        }
+    }
+
+    private void finished(Sighting s, Sighting saved, Exception error) {
+        if (error == null) {
+            remove(s);
+            failures = 0;
+            notifySent(s, saved);
+        } else if (error instanceof HttpStatusException && ((HttpStatusException)error).isPermanent()) {
+            // The backend won't ever take this one
+            Log.e("SightingOutbox", "Sighting " + s.getLocalId() + " refused: " + error.getMessage());
+            remove(s);
+            notifyDropped(s, error.getMessage());
+        } else {
+            Integer attempts = retries.get(s.getLocalId());
+            retries.put(s.getLocalId(), attempts != null ? attempts + 1 : 1);
+            scheduleRetry(error);
+            return;
+        }
+        flush();
+    }
+
+    /**
+     * Stops starting new sends and flushes again after the backoff. The sends in flight still finish.
+     */
+    private void scheduleRetry(Exception e) {
+        if (retry != null) return;      // Already backing off because of another send
+        failures++;
+        long delay = Math.min(MAX_RETRY_DELAY, BASE_RETRY_DELAY << Math.min(failures - 1, 20));
+        delay = delay / 2 + (long)(random.nextDouble() * delay / 2);    // Jitter, so clients don't retry in lockstep
+        Log.w("SightingOutbox", "Sending failed (" + e + "), " + (pending != null ? pending.size() : "?") +
+                " pending, retrying in " + delay + " ms");
+
+        retry = thread.schedule(new Runnable() {
+            @Override
+            public void run() {
+                retry = null;
+                guarded(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                });
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a task on the outbox thread
+     */
+    private void execute(final Runnable task) {
+        thread.execute(new Runnable() {
+            @Override
+            public void run() {
+                guarded(task);
+            }
+        });
+    }
+
+    /**
+     * Runs a task, and retries the flush later if the store fails. An exception would otherwise
+     * end the task silently and leave the Sightings waiting until the next add.
+     */
+    private void guarded(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            Log.e("SightingOutbox", "Outbox failed: " + e);
+            e.printStackTrace();
+            scheduleRetry(e);
+        }
+    }
+
+    private void ensureLoaded() {
+        if (pending == null) pending = store.loadPending();
+    }
+
+    /**
+     * Takes a Sighting out of the outbox. If the store fails, it stays pending and is sent again later,
+     * which the Idempotency-Key makes harmless.
+     */
+    private void remove(Sighting s) {
+        store.removePending(s.getLocalId());
+        pending.remove(s);
+        retries.remove(s.getLocalId());
+    }
+
+    private void notifySent(final Sighting s, final Sighting saved) {
+        final SightingSaveListener saveListener = saveListeners.remove(s.getLocalId());
+        final OutboxListener l = listener;
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (l != null) l.sightingSent(s, saved);
+                if (saveListener != null) saveListener.saveCompleted(saved);
+            }
+        });
+    }
+
+    private void notifyDropped(final Sighting s, final String msg) {
+        final SightingSaveListener saveListener = saveListeners.remove(s.getLocalId());
+        final OutboxListener l = listener;
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (l != null) l.sightingDropped(s, msg);
+                if (saveListener != null) saveListener.saveFailed(msg);
+            }
+        });
+    }
+}
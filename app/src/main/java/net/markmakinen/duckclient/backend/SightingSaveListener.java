@@ -1,10 +1,12 @@
 package net.markmakinen.duckclient.backend;
 
+import net.markmakinen.duckclient.model.Sighting;
+
 /**
  * Created by Zini on 17.12.2016 16.12.
  */
 
 public interface SightingSaveListener {
-    void saveCompleted();
+    void saveCompleted(Sighting saved);     // Saved as the backend stored it, with its ID. Null if the backend didn't return it.
     void saveFailed(String msg);
 }
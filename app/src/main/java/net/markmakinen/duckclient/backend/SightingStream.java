@@ -0,0 +1,309 @@
+package net.markmakinen.duckclient.backend;
+
+import android.util.Log;
+
+import com.google.gson.stream.JsonReader;
+
+import net.markmakinen.duckclient.model.Sighting;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Live subscription to new Sightings over a server-sent event stream, GET /sightings/stream.
+ *
+ * Each "sighting" event carries one Sighting as JSON, and its event ID is a sequence number.
+ * When the stream drops, it is reconnected with exponential backoff and jitter, and the last event ID
+ * is sent so the server can replay what was missed. If the server can't (a "reset" event), the
+ * sequence numbers skip, or nothing was received to resume from, the listener is told about the gap.
+ *
+ * Received Sightings are merged into the sync state, so a Sighting that comes both from the stream
+ * and from a sync is only reported once. The stream has its own thread and doesn't take one from the fetches.
+ */
+class SightingStream {
+
+    private static final String PATH = "/sightings/stream";
+    private static final int HEARTBEAT_TIMEOUT = 60000;             // The server sends a comment more often than this
+    private static final long BASE_RETRY_DELAY = 1000;              // Milliseconds before the first reconnect
+    private static final long MAX_RETRY_DELAY = 60 * 1000;          // Upper limit for the backoff
+    private static final long UNSUPPORTED_RETRY_DELAY = 5 * 60 * 1000;    // When the backend has no stream at all
+    private static final int MAX_BATCH = 500;                       // Sightings delivered at once during a burst
+
+    private final HttpTransport transport;
+    private final JsonCodec codec;
+    private final SightingSyncState syncState;
+    private final Executor callbackExecutor;
+    private final ScheduledExecutorService thread = BackendExecutors.newSerialScheduler("BackendClient live updates");
+    private final Random random = new Random();
+
+    // Only touched on the stream thread
+    private String lastEventId;             // Sent on reconnect, null until the first event with an ID
+    private long lastSequence = -1;         // Last event ID as a number, -1 if unknown
+    private long baseDelay = BASE_RETRY_DELAY;      // The server may change it with a retry field
+    private int failures = 0;               // Failed connections in a row, for the backoff
+    private boolean connectedBefore = false;
+
+    private final AtomicInteger generation = new AtomicInteger();  // Increased by start and stop, older tasks quit
+    private volatile HttpTransport.Response current;    // Open stream, aborted by stop
+    private volatile boolean connected = false;
+    private volatile LiveUpdateListener listener;
+
+    SightingStream(HttpTransport transport, JsonCodec codec, SightingSyncState syncState, Executor callbackExecutor) {
+        this.transport = transport;
+        this.codec = codec;
+        this.syncState = syncState;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Connects, or reconnects with a new listener
+     * @param listener Listener to notify
+     */
+    void start(LiveUpdateListener listener) {
+        this.listener = listener;
+        final int gen = generation.incrementAndGet();
+        abort();
+        thread.execute(new Runnable() {
+            @Override
+            public void run() {
+                connect(gen);
+            }
+        });
+    }
+
+    /**
+     * Disconnects and stops reconnecting. The position in the stream is kept, so a later start resumes from it.
+     */
+    void stop() {
+        generation.incrementAndGet();
+        listener = null;
+        abort();
+    }
+
+    /**
+     * Whether the stream is open right now
+     * @return true if connected
+     */
+    boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Closes the open stream, which ends the blocked read on the stream thread
+     */
+    private void abort() {
+        HttpTransport.Response resp = current;
+        if (resp != null) resp.disconnect();
+    }
+
+    /**
+     * Opens the stream and reads it until it ends, then schedules the reconnect
+     */
+    private void connect(final int gen) {
+        if (gen != generation.get()) return;
+
+        HashMap<String, String> headers = new HashMap<>();
+        boolean resuming = (lastEventId != null);
+        if (resuming) headers.put("Last-Event-ID", lastEventId);
+
+        long delay;
+        HttpTransport.Response resp = null;
+        try {
+            resp = transport.stream(PATH, headers, HEARTBEAT_TIMEOUT);
+            current = resp;
+            if (gen != generation.get()) return;    // Stopped while connecting
+            if (resp.getCode() == HttpURLConnection.HTTP_NO_CONTENT) {
+                Log.i("BackendClient", "Live updates turned off by the backend");
+                return;
+            }
+
+            connected = true;
+            Log.d("BackendClient", "Live updates connected" + (resuming ? ", resuming after event " + lastEventId : ""));
+            // Without an event ID to resume from, anything sent while disconnected is lost
+            if (connectedBefore && !resuming) notifyGap();
+            connectedBefore = true;
+
+            read(resp.getBody(), gen);
+            Log.d("BackendClient", "Live updates ended by the backend");
+            delay = nextDelay();
+        } catch (HttpStatusException e) {
+            if (gen != generation.get()) return;
+            int code = e.getCode();
+            boolean unsupported = (code == HttpURLConnection.HTTP_NOT_FOUND || code == HttpURLConnection.HTTP_BAD_METHOD ||
+                    code == HttpURLConnection.HTTP_NOT_IMPLEMENTED);
+            delay = (unsupported ? UNSUPPORTED_RETRY_DELAY : nextDelay());
+            Log.w("BackendClient", "Live updates failed (" + e.getMessage() + "), reconnecting in " + delay + " ms");
+        } catch (IOException | RuntimeException e) {
+            // Also a bad event, e.g. an invalid field, or anything that closing the connection under a read throws.
+            // Escaping here would end the task without scheduling a reconnect.
+            if (gen != generation.get()) return;    // Aborted by stop or start
+            delay = nextDelay();
+            Log.w("BackendClient", "Live updates failed (" + e + "), reconnecting in " + delay + " ms");
+        } finally {
+            connected = false;
+            current = null;
+            if (resp != null) resp.disconnect();
+        }
+
+        thread.schedule(new Runnable() {
+            @Override
+            public void run() {
+                connect(gen);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Parses events off the stream until it ends, delivering Sightings whenever no more data is waiting
+     */
+    private void read(InputStream in, int gen) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        ArrayList<Sighting> batch = new ArrayList<>();
+        StringBuilder data = new StringBuilder();
+        String event = null;
+        String id = null;
+
+        String line;
+        while ((line = reader.readLine()) != null && gen == generation.get()) {
+            failures = 0;   // The connection works, start the backoff over next time
+
+            if (line.isEmpty()) {
+                // A blank line ends the event. One with only an ID tells the position in the stream.
+                if (id != null) lastEventId = id;
+                if (id != null && data.length() == 0) lastSequence = parseSequence(id);
+                if (data.length() > 0) {
+                    data.setLength(data.length() - 1);      // Drop the newline after the last data line
+                    dispatch(event, id, data.toString(), batch);
+                }
+                event = null;
+                id = null;
+                data.setLength(0);
+
+                if (!batch.isEmpty() && (!reader.ready() || batch.size() >= MAX_BATCH)) {
+                    deliver(batch);
+                    batch = new ArrayList<>();
+                }
+                continue;
+            }
+            if (line.startsWith(":")) continue;     // Comment, e.g. a heartbeat
+
+            int colon = line.indexOf(':');
+            String field = (colon >= 0 ? line.substring(0, colon) : line);
+            String value = (colon >= 0 ? line.substring(colon + 1) : "");
+            if (value.startsWith(" ")) value = value.substring(1);
+
+            switch (field) {
+                case "event":
+                    event = value;
+                    break;
+                case "data":
+                    data.append(value).append('\n');
+                    break;
+                case "id":
+                    if (value.indexOf('\0') < 0) id = value;
+                    break;
+                case "retry":
+                    try {
+                        baseDelay = Math.max(100, Long.parseLong(value));
+                    } catch (NumberFormatException e) {
+                        // Ignored, like the spec says
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (!batch.isEmpty()) deliver(batch);
+    }
+
+    /**
+     * Handles one complete event
+     */
+    private void dispatch(String event, String id, String data, ArrayList<Sighting> batch) throws IOException {
+        long sequence = parseSequence(id);
+
+        if ("reset".equals(event)) {
+            // The server couldn't replay from our position, it continues from the given one
+            if (!batch.isEmpty()) deliver(new ArrayList<>(batch));
+            batch.clear();
+            notifyGap();
+            lastSequence = sequence;
+            return;
+        }
+        if (!"sighting".equals(event)) return;
+
+        if (sequence >= 0 && lastSequence >= 0) {
+            if (sequence <= lastSequence) return;   // Replayed twice
+            if (sequence > lastSequence + 1) {
+                if (!batch.isEmpty()) deliver(new ArrayList<>(batch));
+                batch.clear();
+                notifyGap();
+            }
+        }
+        if (sequence >= 0) lastSequence = sequence;
+
+        JsonReader reader = new JsonReader(new StringReader(data));
+        try {
+            batch.add(codec.readSighting(reader));
+        } catch (IOException | RuntimeException e) {
+            // The position is already past this event, so it won't be replayed: deliver what came before it,
+            // let the listener sync to get it, and reconnect
+            if (!batch.isEmpty()) deliver(new ArrayList<>(batch));
+            batch.clear();
+            notifyGap();
+            throw e;
+        }
+    }
+
+    private static long parseSequence(String id) {
+        if (id == null) return -1;
+        try {
+            return Long.parseLong(id);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private long nextDelay() {
+        failures++;
+        long delay = Math.min(MAX_RETRY_DELAY, baseDelay << Math.min(failures - 1, 20));
+        return delay / 2 + (long)(random.nextDouble() * delay / 2);    // Jitter, so clients don't reconnect in lockstep
+    }
+
+    /**
+     * Merges received Sightings into the sync state and reports the ones that were new
+     */
+    private void deliver(ArrayList<Sighting> batch) {
+        final SightingDelta delta = syncState.mergeIncremental(batch);
+        if (delta.isEmpty()) return;
+        final LiveUpdateListener l = listener;
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (l != null) l.gotLiveUpdate(delta);
+            }
+        });
+    }
+
+    private void notifyGap() {
+        Log.i("BackendClient", "Live updates may have missed Sightings");
+        final LiveUpdateListener l = listener;
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (l != null) l.liveGap();
+            }
+        });
+    }
+}
@@ -0,0 +1,316 @@
+package net.markmakinen.duckclient.backend;
+
+import net.markmakinen.duckclient.model.Sighting;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The Sightings the client already knows by ID, and the newest dateTime among them (the high-water mark).
+ * Sync results are merged into this to find out what actually changed.
+ *
+ * Only a 64-bit fingerprint of each Sighting's content is kept, not the Sighting itself,
+ * so the parsed Sightings can be dropped once they are in the listing. The ID Strings are the same instances
+ * the listing got with the delta: an unchanged Sighting keeps its old ID instance when a full listing is merged.
+ */
+class SightingSyncState {
+
+    private static final int MAX_RECENT = 1000;
+
+    private FingerprintMap known = new FingerprintMap(16);     // Content fingerprints by ID
+    private long highWaterMark = Long.MIN_VALUE;
+    private long version = 0;                                   // Number of incremental merges so far
+    private final ArrayList<Sighting> recent = new ArrayList<>();   // Latest incrementally merged Sightings, oldest first
+    private final ArrayList<Long> recentVersions = new ArrayList<>();   // Version each of them was merged in
+    private SightingDelta undelivered;      // Changes found by syncs whose result nobody received, null if none
+    private String listingVersion;          // Cache version of the listing last merged in full, null if unknown
+
+    /**
+     * Whether nothing is known yet
+     * @return true if empty
+     */
+    synchronized boolean isEmpty() {
+        return known.size() == 0;
+    }
+
+    /**
+     * Newest Sighting dateTime seen so far
+     * @return UTC epoch milliseconds, Long.MIN_VALUE if nothing is known
+     */
+    synchronized long getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * Sets the known Sightings, e.g. from local storage, unless something is already known
+     * @param sightings Sightings to start from
+     */
+    synchronized void seedIfEmpty(Collection<Sighting> sightings) {
+        if (known.size() != 0) return;
+        for (Sighting s : sightings) remember(s);
+    }
+
+    /**
+     * Marks the current state before fetching a full listing. Sightings merged incrementally after this,
+     * e.g. from the live stream, may be missing from the listing but aren't removed by mergeFull.
+     * @return Mark for mergeFull
+     */
+    synchronized long mark() {
+        return version;
+    }
+
+    /**
+     * Cache version of the full listing the known Sightings were last built from. A 304 for that version
+     * means the backend hasn't changed since, so the listing doesn't need to be parsed and compared again.
+     * @return Version, or null if the listing wasn't cached or the state was seeded from elsewhere
+     */
+    synchronized String getListingVersion() {
+        return listingVersion;
+    }
+
+    /**
+     * Compares the whole backend collection to the known Sightings
+     * @param all Every Sighting on the backend
+     * @param mark Result of mark from before the listing was requested
+     * @param listingVersion Cache version of the listing, null if it wasn't cached
+     * @return Changes
+     */
+    synchronized SightingDelta mergeFull(List<Sighting> all, long mark, String listingVersion) {
+        this.listingVersion = listingVersion;
+        ArrayList<Sighting> added = new ArrayList<>();
+        ArrayList<Sighting> changed = new ArrayList<>();
+        ArrayList<String> removed = new ArrayList<>();
+
+        // Build the new state next to the old one, what isn't in the new one was removed.
+        // Removals may take the newest one away, so the high-water mark starts over too.
+        FingerprintMap previous = known;
+        known = new FingerprintMap(all.size());
+        highWaterMark = Long.MIN_VALUE;
+        for (Sighting s : all) {
+            String id = s.getSightingId();
+            if (id == null) continue;
+            long fingerprint = fingerprint(s);
+            int slot = previous.slotOf(id);
+            if (slot < 0) {
+                added.add(s);
+            } else if (previous.valueAt(slot) != fingerprint) {
+                changed.add(s);
+            } else {
+                id = previous.keyAt(slot);      // Not delivered, so the listing still has the old instance
+            }
+            remember(s, id, fingerprint);
+        }
+        // Newer than the listing, so their absence doesn't mean they were removed
+        for (int i = 0; i < recent.size(); i++) {
+            Sighting s = recent.get(i);
+            if (recentVersions.get(i) > mark && known.slotOf(s.getSightingId()) < 0) remember(s);
+        }
+        for (int slot = 0; slot < previous.capacity(); slot++) {
+            String id = previous.keyAt(slot);
+            if (id != null && known.slotOf(id) < 0) removed.add(id);
+        }
+
+        return new SightingDelta(added, changed, removed, true);
+    }
+
+    /**
+     * Result of a full sync whose listing hasn't changed since it was last merged
+     * @param listingVersion Version from getListingVersion that the backend confirmed
+     * @return Empty changes, or null if the known Sightings were built from another listing meanwhile
+     */
+    synchronized SightingDelta mergeUnchanged(String listingVersion) {
+        if (this.listingVersion == null || !this.listingVersion.equals(listingVersion)) return null;
+        return new SightingDelta(new ArrayList<Sighting>(), new ArrayList<Sighting>(), new ArrayList<String>(), true);
+    }
+
+    /**
+     * Merges Sightings newer than the high-water mark into the known Sightings
+     * @param newer Sightings returned by an incremental sync
+     * @return Changes, never with removals
+     */
+    synchronized SightingDelta mergeIncremental(List<Sighting> newer) {
+        ArrayList<Sighting> added = new ArrayList<>();
+        ArrayList<Sighting> changed = new ArrayList<>();
+        version++;
+        for (Sighting s : newer) {
+            if (s.getSightingId() == null) continue;
+            merge(s, added, changed);
+            addRecent(s);
+        }
+        return new SightingDelta(added, changed, new ArrayList<String>(), false);
+    }
+
+    /**
+     * Remembers a Sighting this client saved, so it isn't reported as new when it comes back.
+     * The high-water mark stays: other Sightings older than this one may not have been synced yet.
+     * Ignored before the first sync, which brings it anyway.
+     * @param saved Sighting as the backend stored it
+     */
+    synchronized void rememberSaved(Sighting saved) {
+        if (saved.getSightingId() == null || known.size() == 0) return;
+        version++;
+        known.put(saved.getSightingId(), fingerprint(saved));
+        addRecent(saved);
+    }
+
+    /**
+     * Keeps the changes of a sync whose result wasn't delivered, e.g. because it was cancelled after merging.
+     * They are already merged, so the next sync wouldn't find them again.
+     * @param delta Changes nobody received
+     */
+    synchronized void keepUndelivered(SightingDelta delta) {
+        if (delta.isEmpty()) return;
+        undelivered = (undelivered == null ? delta : SightingDelta.combine(undelivered, delta));
+    }
+
+    /**
+     * Adds the kept undelivered changes to the result of a sync, and forgets them
+     * @param delta Changes found by the sync
+     * @return Changes to deliver
+     */
+    synchronized SightingDelta withUndelivered(SightingDelta delta) {
+        if (undelivered == null) return delta;
+        SightingDelta combined = SightingDelta.combine(undelivered, delta);
+        undelivered = null;
+        return combined;
+    }
+
+    private void addRecent(Sighting s) {
+        recent.add(s);
+        recentVersions.add(version);
+        if (recent.size() > MAX_RECENT) {
+            recent.remove(0);
+            recentVersions.remove(0);
+        }
+    }
+
+    private void merge(Sighting s, ArrayList<Sighting> added, ArrayList<Sighting> changed) {
+        int slot = known.slotOf(s.getSightingId());
+        if (slot < 0) {
+            added.add(s);
+        } else if (known.valueAt(slot) != fingerprint(s)) {
+            changed.add(s);
+        } else {
+            return;
+        }
+        remember(s);
+    }
+
+    private void remember(Sighting s) {
+        remember(s, s.getSightingId(), fingerprint(s));
+    }
+
+    private void remember(Sighting s, String id, long fingerprint) {
+        if (id == null || s.getDateTime() == null) return;
+        known.put(id, fingerprint);
+        highWaterMark = Math.max(highWaterMark, s.getDateTime().getMillis());
+    }
+
+    /**
+     * Hashes everything that is shown of a Sighting, so a changed Sighting (almost certainly) gets a new fingerprint
+     */
+    private static long fingerprint(Sighting s) {
+        long h = mix(s.getDateTime() == null ? Long.MIN_VALUE : s.getDateTime().getMillis());
+        h = mix(h ^ s.getCount());
+        h = mix(h ^ hash(s.getSpecies() == null ? null : s.getSpecies().getName()));
+        return mix(h ^ hash(s.getDescription()));
+    }
+
+    /**
+     * 64-bit FNV-1a hash of a String. String.hashCode is only 32 bits and easy to collide.
+     */
+    private static long hash(String str) {
+        if (str == null) return 0;
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < str.length(); i++) {
+            h ^= str.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Final mixing step of MurmurHash3, spreads every input bit over the result
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Map from String to long with open addressing. Keys and values sit in two arrays,
+     * so an entry costs two array slots instead of a map entry and a boxed Long.
+     * Entries are never removed, a new map is built instead.
+     */
+    private static class FingerprintMap {
+
+        private String[] keys;
+        private long[] values;
+        private int size;
+
+        FingerprintMap(int expected) {
+            int capacity = 16;
+            while (capacity < expected * 2) capacity <<= 1;     // At most half full
+            keys = new String[capacity];
+            values = new long[capacity];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int capacity() {
+            return keys.length;
+        }
+
+        String keyAt(int slot) {
+            return keys[slot];
+        }
+
+        long valueAt(int slot) {
+            return values[slot];
+        }
+
+        /**
+         * Finds a key
+         * @return Slot of the key, or -1 if it isn't in the map
+         */
+        int slotOf(String key) {
+            int mask = keys.length - 1;
+            for (int slot = spread(key.hashCode()) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+                if (keys[slot].equals(key)) return slot;
+            }
+            return -1;
+        }
+
+        void put(String key, long value) {
+            if ((size + 1) * 2 > keys.length) grow();
+            int mask = keys.length - 1;
+            int slot = spread(key.hashCode()) & mask;
+            while (keys[slot] != null && !keys[slot].equals(key)) slot = (slot + 1) & mask;
+            if (keys[slot] == null) size++;
+            keys[slot] = key;
+            values[slot] = value;
+        }
+
+        private void grow() {
+            String[] oldKeys = keys;
+            long[] oldValues = values;
+            keys = new String[oldKeys.length * 2];
+            values = new long[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) put(oldKeys[i], oldValues[i]);
+            }
+        }
+
+        private static int spread(int h) {
+            return h ^ (h >>> 16);
+        }
+    }
+}
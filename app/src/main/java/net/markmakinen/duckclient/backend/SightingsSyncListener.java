@@ -0,0 +1,11 @@
+package net.markmakinen.duckclient.backend;
+
+import net.markmakinen.duckclient.model.Sighting;
+
+import java.util.ArrayList;
+
+public interface SightingsSyncListener {
+    void gotSightingsChunk(ArrayList<Sighting> chunk);  // Only called while the first full list is downloading
+    void synced(SightingDelta delta);
+    void gotError(String msg);
+}
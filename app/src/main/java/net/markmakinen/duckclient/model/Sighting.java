@@ -4,23 +4,19 @@ package net.markmakinen.duckclient.model;
  * Created by Zini on 16.12.2016 19.41.
  */
 
-import com.google.gson.annotations.Expose;
-
 import org.joda.time.DateTime;
-import org.joda.time.DateTimeZone;
-import org.joda.time.LocalDateTime;
-import org.joda.time.format.DateTimeFormat;
 
 /**
  * Class for representing a sighting
  */
 public class Sighting {
 
-    @Expose(serialize = false) private String id;
-    @Expose private DateTime dateTime;
-    @Expose private String description;
-    @Expose private Species species;
-    @Expose private int count;
+    private String id;
+    private String localId;     // Client-side ID, set while the Sighting waits to be sent to the backend
+    private DateTime dateTime;
+    private String description;
+    private Species species;
+    private int count;
 
     // Getters and setters
     /**
@@ -31,6 +27,38 @@ public class Sighting {
         return this.id;
     }
 
+    /**
+     * Server-side Sighting ID
+     * @param id Sighting ID to set
+     */
+    public void setSightingId(String id) {
+        this.id = id;
+    }
+
+    /**
+     * Client-side ID of a Sighting that hasn't been saved on the backend yet
+     * @return Local ID, or null
+     */
+    public String getLocalId() {
+        return this.localId;
+    }
+
+    /**
+     * Client-side ID of a Sighting that hasn't been saved on the backend yet
+     * @param localId Local ID to set
+     */
+    public void setLocalId(String localId) {
+        this.localId = localId;
+    }
+
+    /**
+     * Whether the Sighting is waiting to be sent to the backend
+     * @return true if pending
+     */
+    public boolean isPending() {
+        return this.id == null && this.localId != null;
+    }
+
     /**
      * Sighting datetime
      * @return Datetime
@@ -100,9 +128,7 @@ public class Sighting {
      * @return Formatted string
      */
     public String getCountAndSpeciesText() {
-        String speciesName = species.getName();
-        speciesName += (count > 1 ? "s" : ""); // Add 's' to the end to pluralize
-        return String.format("%d %s", count, speciesName);
+        return SightingFormatter.getDefault().countAndSpeciesText(this);
     }
 
     /**
@@ -111,15 +137,7 @@ public class Sighting {
      */
     public String getDateTimeText() {
         // Format date/time according to system locale
-        LocalDateTime local = dateTime.withZone(DateTimeZone.getDefault()).toLocalDateTime();
-        String s;
-        // Some locales (such as fi_FI) don't support 'c' pattern letter, so we roll our own pattern for those situations
-        try {
-            s = DateTimeFormat.fullDateTime().print(local);
-        } catch (IllegalArgumentException e) {
-            s = DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss").print(local);
-        }
-        return s;
+        return SightingFormatter.getDefault().dateTimeText(this);
     }
 
     /**
@@ -127,11 +145,7 @@ public class Sighting {
      * @return Short description
      */
     public String getShortDescription() {
-        // Create short description text
-        // Add our own ellipsis just in case (even though we set the TextView to do this automatically)
-        String shortDesc = description.substring(0, Math.min(description.length(), 254));
-        if (shortDesc.length() >= 254) shortDesc += "...";
-        return shortDesc;
+        return SightingFormatter.getDefault().shortDescription(this);
     }
 
     public Sighting() {}
@@ -0,0 +1,36 @@
+package net.markmakinen.duckclient.model;
+
+/**
+ * The display texts of one Sighting, formatted ahead of time so showing them needs no formatting
+ */
+public class SightingDisplay {
+
+    private final String countAndSpeciesText;
+    private final String dateTimeText;
+    private final String shortDescription;
+
+    /**
+     * Formats a Sighting
+     * @param sighting Sighting to format
+     * @param formatter Formatter for the wanted locale and time zone
+     * @param dateTimeFormat Format with one %1$s for the date/time text, or null to use it as is
+     */
+    public SightingDisplay(Sighting sighting, SightingFormatter formatter, String dateTimeFormat) {
+        this.countAndSpeciesText = formatter.countAndSpeciesText(sighting);
+        String dateTime = formatter.dateTimeText(sighting);
+        this.dateTimeText = (dateTimeFormat != null ? String.format(dateTimeFormat, dateTime) : dateTime);
+        this.shortDescription = formatter.shortDescription(sighting);
+    }
+
+    public String getCountAndSpeciesText() {
+        return countAndSpeciesText;
+    }
+
+    public String getDateTimeText() {
+        return dateTimeText;
+    }
+
+    public String getShortDescription() {
+        return shortDescription;
+    }
+}
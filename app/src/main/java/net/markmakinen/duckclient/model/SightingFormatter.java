@@ -0,0 +1,100 @@
+package net.markmakinen.duckclient.model;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDateTime;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+import java.util.Locale;
+
+/**
+ * Formats Sightings for display in one locale and time zone.
+ * The date/time formatter is picked once per instance instead of on every call.
+ * Immutable and thread-safe.
+ */
+public class SightingFormatter {
+
+    private static final int SHORT_DESCRIPTION_LENGTH = 254;
+    private static final String FALLBACK_PATTERN = "yyyy-MM-dd HH:mm:ss";
+
+    private static volatile SightingFormatter current;      // For the current default locale and zone
+
+    private final Locale locale;
+    private final DateTimeZone zone;
+    private final DateTimeFormatter dateTimeFormatter;
+
+    /**
+     * Gets a formatter for the default locale and time zone.
+     * The same instance is returned until either of them changes.
+     * @return SightingFormatter
+     */
+    public static SightingFormatter getDefault() {
+        SightingFormatter f = current;
+        if (f == null || !f.isCurrent()) {
+            f = new SightingFormatter(Locale.getDefault(), DateTimeZone.getDefault());
+            current = f;
+        }
+        return f;
+    }
+
+    /**
+     * Creates a formatter
+     * @param locale Locale for the texts
+     * @param zone Time zone the date and time are shown in
+     */
+    public SightingFormatter(Locale locale, DateTimeZone zone) {
+        this.locale = locale;
+        this.zone = zone;
+
+        // Some locales (such as fi_FI) don't support 'c' pattern letter, so we roll our own pattern for those situations
+        DateTimeFormatter f = DateTimeFormat.fullDateTime().withLocale(locale);
+        try {
+            f.print(new LocalDateTime(0L, DateTimeZone.UTC));
+        } catch (IllegalArgumentException e) {
+            f = DateTimeFormat.forPattern(FALLBACK_PATTERN).withLocale(locale);
+        }
+        this.dateTimeFormatter = f;
+    }
+
+    /**
+     * Tells if this formatter still matches the default locale and time zone
+     * @return true if the defaults haven't changed
+     */
+    public boolean isCurrent() {
+        return locale.equals(Locale.getDefault()) && zone.equals(DateTimeZone.getDefault());
+    }
+
+    /**
+     * String containing formatted count and species name, e.g. "3 mallards"
+     * @param sighting Sighting to format
+     * @return Formatted string
+     */
+    public String countAndSpeciesText(Sighting sighting) {
+        String speciesName = sighting.getSpecies().getName();
+        if (sighting.getCount() > 1) speciesName += "s";   // Add 's' to the end to pluralize
+        return sighting.getCount() + " " + speciesName;
+    }
+
+    /**
+     * String containing sighting date and time in this formatter's zone
+     * @param sighting Sighting to format
+     * @return Formatted string
+     */
+    public String dateTimeText(Sighting sighting) {
+        LocalDateTime local = sighting.getDateTime().withZone(zone).toLocalDateTime();
+        return dateTimeFormatter.print(local);
+    }
+
+    /**
+     * Short description of the sighting. Has ellipsis if the description is too long.
+     * @param sighting Sighting to format
+     * @return Short description
+     */
+    public String shortDescription(Sighting sighting) {
+        // Add our own ellipsis just in case (even though we set the TextView to do this automatically)
+        String description = sighting.getDescription();
+        if (description == null) return "";
+        if (description.length() < SHORT_DESCRIPTION_LENGTH) return description;
+        return description.substring(0, SHORT_DESCRIPTION_LENGTH) + "...";
+    }
+}
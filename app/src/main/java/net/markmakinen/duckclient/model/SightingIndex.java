@@ -0,0 +1,249 @@
+package net.markmakinen.duckclient.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Immutable search index over one SortedSightings, answers SightingQuery.
+ *
+ * The collection itself is the time index: it is sorted by epoch milliseconds, so a time range is two
+ * binary searches. On top of that there is a list of row indexes per species and an inverted index from
+ * the words of the descriptions and species names to the rows that contain them. All lists are sorted
+ * int arrays. Filters are combined as bit sets, one bit per row.
+ *
+ * When a collection is merged into a new one, the index is carried over with update: the existing lists
+ * are renumbered and only the new rows are tokenized. That copies every list, so a collection that is merged
+ * many times in a row, e.g. chunk by chunk, is better indexed once after the last merge.
+ */
+public class SightingIndex {
+
+    private static final SightingIndex EMPTY = new SightingIndex(SortedSightings.empty(), new int[0][], new String[0], new int[0][]);
+    private static final int[] NO_ROWS = new int[0];
+
+    private final SortedSightings store;
+    private final int[][] bySpecies;    // Rows by species ordinal
+    private final String[] terms;       // Sorted
+    private final int[][] postings;     // Rows by term, same order as terms
+
+    private SightingIndex(SortedSightings store, int[][] bySpecies, String[] terms, int[][] postings) {
+        this.store = store;
+        this.bySpecies = bySpecies;
+        this.terms = terms;
+        this.postings = postings;
+    }
+
+    /**
+     * Gets the index of the empty collection
+     * @return SightingIndex
+     */
+    public static SightingIndex empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Indexes a collection from scratch
+     * @param store Collection to index
+     * @return SightingIndex
+     */
+    public static SightingIndex of(SortedSightings store) {
+        int[] origins = new int[store.size()];
+        Arrays.fill(origins, -1);
+        return EMPTY.update(store, origins);
+    }
+
+    /**
+     * The indexed collection
+     * @return SortedSightings
+     */
+    public SortedSightings getStore() {
+        return store;
+    }
+
+    /**
+     * Makes the index of a collection merged from this one
+     * @param next New collection
+     * @param origins Origins of the rows of next in the indexed collection, from SortedSightings.with,
+     *                or combined over several merges
+     * @return Index of next
+     */
+    public SightingIndex update(SortedSightings next, int[] origins) {
+        if (next == store) return this;
+
+        int[] renumber = new int[store.size()];
+        Arrays.fill(renumber, -1);
+        HashMap<String, IntList> addedTerms = new HashMap<>();
+        HashMap<Integer, IntList> addedSpecies = new HashMap<>();
+        HashSet<String> rowTerms = new HashSet<>();
+
+        // Rows are added in increasing order, so every list stays sorted
+        for (int row = 0; row < next.size(); row++) {
+            int origin = origins[row];
+            if (origin >= 0) {
+                renumber[origin] = row;
+                continue;
+            }
+
+            int ordinal = next.speciesOrdinalAt(row);
+            if (ordinal >= 0) listFor(addedSpecies, ordinal).add(row);
+
+            rowTerms.clear();
+            rowTerms.addAll(SightingQuery.tokenize(next.descriptionAt(row)));
+            Species species = SpeciesRegistry.getInstance().byOrdinal(ordinal);
+            if (species != null) rowTerms.addAll(SightingQuery.tokenize(species.getName()));
+            for (String term : rowTerms) listFor(addedTerms, term).add(row);
+        }
+
+        // Species lists
+        int speciesCount = bySpecies.length;
+        for (Integer ordinal : addedSpecies.keySet()) speciesCount = Math.max(speciesCount, ordinal + 1);
+        int[][] nextBySpecies = new int[speciesCount][];
+        for (int ordinal = 0; ordinal < speciesCount; ordinal++) {
+            int[] old = (ordinal < bySpecies.length ? bySpecies[ordinal] : NO_ROWS);
+            nextBySpecies[ordinal] = merge(old, renumber, addedSpecies.get(ordinal));
+        }
+
+        // Terms: renumber the existing ones, then merge in the new ones in sorted order
+        String[] newTerms = addedTerms.keySet().toArray(new String[addedTerms.size()]);
+        Arrays.sort(newTerms);
+        ArrayList<String> nextTerms = new ArrayList<>(terms.length + newTerms.length);
+        ArrayList<int[]> nextPostings = new ArrayList<>(terms.length + newTerms.length);
+        int i = 0, j = 0;
+        while (i < terms.length || j < newTerms.length) {
+            String term;
+            int[] rows;
+            if (j >= newTerms.length || (i < terms.length && terms[i].compareTo(newTerms[j]) < 0)) {
+                term = terms[i];
+                rows = merge(postings[i++], renumber, null);
+            } else if (i >= terms.length || terms[i].compareTo(newTerms[j]) > 0) {
+                term = newTerms[j];
+                rows = addedTerms.get(newTerms[j++]).toArray();
+            } else {
+                term = terms[i];
+                rows = merge(postings[i++], renumber, addedTerms.get(newTerms[j++]));
+            }
+            if (rows.length == 0) continue;     // Every row with the term was removed
+            nextTerms.add(term);
+            nextPostings.add(rows);
+        }
+
+        return new SightingIndex(next, nextBySpecies, nextTerms.toArray(new String[nextTerms.size()]),
+                nextPostings.toArray(new int[nextPostings.size()][]));
+    }
+
+    /**
+     * Finds the rows that match a query
+     * @param query Query
+     * @return Matching rows of the store in ascending order, or null if the query matches everything
+     */
+    public int[] find(SightingQuery query) {
+        if (query.isEmpty()) return null;
+
+        int from = (query.getFromMillis() == Long.MIN_VALUE ? 0 : store.lowerBound(query.getFromMillis()));
+        int to = (query.getToMillis() == Long.MAX_VALUE ? store.size() : store.lowerBound(query.getToMillis()));
+        if (from >= to) return NO_ROWS;
+
+        BitSet matches = null;
+        for (String word : query.getWords()) {
+            BitSet rows = new BitSet(store.size());
+            // Every term the word is a prefix of, e.g. while the user is still typing
+            for (int t = lowerBound(terms, word); t < terms.length && terms[t].startsWith(word); t++) set(rows, postings[t]);
+            matches = and(matches, rows);
+            if (matches.isEmpty()) return NO_ROWS;
+        }
+
+        if (!query.getSpecies().isEmpty()) {
+            BitSet rows = new BitSet(store.size());
+            SpeciesRegistry registry = SpeciesRegistry.getInstance();
+            for (Species s : query.getSpecies()) {
+                int ordinal = registry.findOrdinal(s);     // A species nobody has seen has no rows
+                if (ordinal >= 0 && ordinal < bySpecies.length) set(rows, bySpecies[ordinal]);
+            }
+            matches = and(matches, rows);
+        }
+
+        if (matches == null) {
+            // Only a time range
+            int[] rows = new int[to - from];
+            for (int k = 0; k < rows.length; k++) rows[k] = from + k;
+            return rows;
+        }
+
+        matches.clear(0, from);
+        matches.clear(to, Math.max(to, matches.length()));
+        int[] rows = new int[matches.cardinality()];
+        int k = 0;
+        for (int row = matches.nextSetBit(0); row >= 0; row = matches.nextSetBit(row + 1)) rows[k++] = row;
+        return rows;
+    }
+
+    private static BitSet and(BitSet matches, BitSet rows) {
+        if (matches == null) return rows;
+        matches.and(rows);
+        return matches;
+    }
+
+    private static void set(BitSet bits, int[] rows) {
+        for (int row : rows) bits.set(row);
+    }
+
+    /**
+     * Renumbers a sorted list of old rows, drops the removed ones and merges in added rows
+     */
+    private static int[] merge(int[] old, int[] renumber, IntList added) {
+        int addedCount = (added != null ? added.size : 0);
+        int[] out = new int[old.length + addedCount];
+        int n = 0, a = 0;
+        for (int row : old) {
+            int renumbered = renumber[row];
+            if (renumbered < 0) continue;
+            while (a < addedCount && added.values[a] < renumbered) out[n++] = added.values[a++];
+            out[n++] = renumbered;
+        }
+        while (a < addedCount) out[n++] = added.values[a++];
+        return (n == out.length ? out : Arrays.copyOf(out, n));
+    }
+
+    private static int lowerBound(String[] sorted, String key) {
+        int lo = 0, hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid].compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static <K> IntList listFor(Map<K, IntList> lists, K key) {
+        IntList list = lists.get(key);
+        if (list == null) {
+            list = new IntList();
+            lists.put(key, list);
+        }
+        return list;
+    }
+
+    /**
+     * Growable int array, saves boxing every row number
+     */
+    private static class IntList {
+
+        int[] values = new int[4];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package net.markmakinen.duckclient.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Immutable filter for the Sighting listing, answered by SightingIndex.
+ *
+ * A Sighting matches if it is one of the given Species, its dateTime is in the time range,
+ * and every word of the text starts a word of its description or species name (ignoring case).
+ * Parts that aren't set don't filter anything.
+ */
+public class SightingQuery {
+
+    private static final SightingQuery ALL = new SightingQuery(Collections.<Species>emptySet(), Long.MIN_VALUE, Long.MAX_VALUE,
+            Collections.<String>emptyList());
+
+    private final Set<Species> species;
+    private final long fromMillis;
+    private final long toMillis;
+    private final List<String> words;
+
+    private SightingQuery(Set<Species> species, long fromMillis, long toMillis, List<String> words) {
+        this.species = species;
+        this.fromMillis = fromMillis;
+        this.toMillis = toMillis;
+        this.words = words;
+    }
+
+    /**
+     * Gets the query that matches everything
+     * @return SightingQuery
+     */
+    public static SightingQuery all() {
+        return ALL;
+    }
+
+    /**
+     * Makes a copy that searches for text
+     * @param text Words to look for, e.g. what the user typed
+     * @return New query
+     */
+    public SightingQuery withText(String text) {
+        return new SightingQuery(species, fromMillis, toMillis, Collections.unmodifiableList(tokenize(text)));
+    }
+
+    /**
+     * Makes a copy that only matches some Species
+     * @param species Species to match, empty for any Species
+     * @return New query
+     */
+    public SightingQuery withSpecies(Collection<Species> species) {
+        return new SightingQuery(Collections.unmodifiableSet(new HashSet<>(species)), fromMillis, toMillis, words);
+    }
+
+    /**
+     * Makes a copy that only matches a time range
+     * @param fromMillis Earliest dateTime as epoch milliseconds, inclusive. Long.MIN_VALUE for no limit.
+     * @param toMillis Latest dateTime as epoch milliseconds, exclusive. Long.MAX_VALUE for no limit.
+     * @return New query
+     */
+    public SightingQuery withTimeRange(long fromMillis, long toMillis) {
+        return new SightingQuery(species, fromMillis, toMillis, words);
+    }
+
+    public Set<Species> getSpecies() {
+        return species;
+    }
+
+    public long getFromMillis() {
+        return fromMillis;
+    }
+
+    public long getToMillis() {
+        return toMillis;
+    }
+
+    /**
+     * Words of the text, lower case
+     * @return Words
+     */
+    public List<String> getWords() {
+        return words;
+    }
+
+    /**
+     * Tells if the query filters anything
+     * @return true if every Sighting matches
+     */
+    public boolean isEmpty() {
+        return species.isEmpty() && fromMillis == Long.MIN_VALUE && toMillis == Long.MAX_VALUE && words.isEmpty();
+    }
+
+    /**
+     * Splits text into lower case words of letters and digits. Used for both the indexed text and the queries.
+     * @param text Text, may be null
+     * @return Words in order, with duplicates
+     */
+    static ArrayList<String> tokenize(String text) {
+        ArrayList<String> words = new ArrayList<>();
+        if (text == null) return words;
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof SightingQuery)) return false;
+        SightingQuery q = (SightingQuery)obj;
+        return fromMillis == q.fromMillis && toMillis == q.toMillis && species.equals(q.species) && words.equals(q.words);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(new Object[] {species, fromMillis, toMillis, words});
+    }
+}
@@ -0,0 +1,282 @@
+package net.markmakinen.duckclient.model;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Running totals of a SortedSightings: Sightings and ducks per species, per calendar day and per hour of day.
+ *
+ * Fed by the merge path: apply looks at which rows a merge added and removed and only adjusts
+ * the counters of those, so the totals never need a pass over every Sighting. The counters are
+ * primitive arrays indexed by species ordinal, day and hour. Days and hours are in the default time zone;
+ * if it changes, the next apply counts everything again.
+ *
+ * Not thread-safe, use from one thread. Snapshots can be handed to any thread.
+ */
+public class SightingStats {
+
+    private static final long MILLIS_PER_DAY = 86400000L;
+    private static final long MILLIS_PER_HOUR = 3600000L;
+
+    private DateTimeZone zone;      // Zone of the day and hour counters, null until counted
+
+    private int totalSightings;
+    private long totalDucks;
+
+    private int[] speciesSightings = new int[0];      // By species ordinal
+    private long[] speciesDucks = new long[0];
+
+    private int firstDay;                               // Day of index 0, days since the epoch in the zone
+    private int[] daySightings = new int[0];
+    private long[] dayDucks = new long[0];
+
+    private final int[] hourSightings = new int[24];
+    private final long[] hourDucks = new long[24];
+
+    /**
+     * Adjusts the totals after a merge
+     * @param previous Collection before the merge, the one these totals are of
+     * @param next Merged collection
+     * @param origins Origins of the rows of next, from SortedSightings.with
+     */
+    public void apply(SortedSightings previous, SortedSightings next, int[] origins) {
+        if (zone == null || !zone.equals(DateTimeZone.getDefault())) {
+            rebuild(next);
+            return;
+        }
+
+        boolean[] kept = new boolean[previous.size()];
+        for (int row = 0; row < next.size(); row++) {
+            if (origins[row] >= 0) {
+                kept[origins[row]] = true;
+            } else {
+                count(next, row, 1);
+            }
+        }
+        for (int row = 0; row < kept.length; row++) {
+            if (!kept[row]) count(previous, row, -1);
+        }
+    }
+
+    /**
+     * Counts a collection from scratch in the current default time zone
+     * @param store Collection
+     */
+    public void rebuild(SortedSightings store) {
+        zone = DateTimeZone.getDefault();
+        totalSightings = 0;
+        totalDucks = 0;
+        speciesSightings = new int[0];
+        speciesDucks = new long[0];
+        daySightings = new int[0];
+        dayDucks = new long[0];
+        Arrays.fill(hourSightings, 0);
+        Arrays.fill(hourDucks, 0);
+        for (int row = 0; row < store.size(); row++) count(store, row, 1);
+    }
+
+    /**
+     * Copies the totals. Takes time by the number of species and days, not by the number of Sightings.
+     * @return Snapshot
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Adds (sign 1) or subtracts (sign -1) one row
+     */
+    private void count(SortedSightings store, int row, int sign) {
+        long ducks = (long)store.countAt(row) * sign;
+        totalSightings += sign;
+        totalDucks += ducks;
+
+        int ordinal = store.speciesOrdinalAt(row);
+        if (ordinal >= 0) {
+            if (ordinal >= speciesSightings.length) {
+                speciesSightings = Arrays.copyOf(speciesSightings, ordinal + 1);
+                speciesDucks = Arrays.copyOf(speciesDucks, ordinal + 1);
+            }
+            speciesSightings[ordinal] += sign;
+            speciesDucks[ordinal] += ducks;
+        }
+
+        long millis = store.millisAt(row);
+        if (millis == Long.MIN_VALUE) return;   // No dateTime
+
+        long local = millis + zone.getOffset(millis);
+        long day = floorDiv(local, MILLIS_PER_DAY);
+        int hour = (int)((local - day * MILLIS_PER_DAY) / MILLIS_PER_HOUR);
+        hourSightings[hour] += sign;
+        hourDucks[hour] += ducks;
+
+        int index = dayIndex((int)day);
+        daySightings[index] += sign;
+        dayDucks[index] += ducks;
+    }
+
+    /**
+     * Index of a day in the day arrays, growing them if needed
+     */
+    private int dayIndex(int day) {
+        if (daySightings.length == 0) {
+            firstDay = day;
+            daySightings = new int[32];
+            dayDucks = new long[32];
+        }
+
+        if (day < firstDay) {
+            // Grow at the front, with room for more days further back
+            int shift = Math.max(firstDay - day, daySightings.length);
+            int[] sightings = new int[daySightings.length + shift];
+            long[] ducks = new long[dayDucks.length + shift];
+            System.arraycopy(daySightings, 0, sightings, shift, daySightings.length);
+            System.arraycopy(dayDucks, 0, ducks, shift, dayDucks.length);
+            daySightings = sightings;
+            dayDucks = ducks;
+            firstDay -= shift;
+        } else if (day - firstDay >= daySightings.length) {
+            int length = Math.max(day - firstDay + 1, daySightings.length * 2);
+            daySightings = Arrays.copyOf(daySightings, length);
+            dayDucks = Arrays.copyOf(dayDucks, length);
+        }
+        return day - firstDay;
+    }
+
+    /**
+     * Division rounding down, Math.floorDiv needs API level 24
+     */
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        if ((x % y != 0) && ((x < 0) != (y < 0))) q--;
+        return q;
+    }
+
+    /**
+     * Immutable copy of the totals
+     */
+    public static class Snapshot {
+
+        private final int totalSightings;
+        private final long totalDucks;
+        private final int[] speciesSightings;
+        private final long[] speciesDucks;
+        private final int firstDay;
+        private final int[] daySightings;
+        private final long[] dayDucks;
+        private final int[] hourSightings;
+        private final long[] hourDucks;
+
+        private Snapshot(SightingStats stats) {
+            totalSightings = stats.totalSightings;
+            totalDucks = stats.totalDucks;
+            speciesSightings = stats.speciesSightings.clone();
+            speciesDucks = stats.speciesDucks.clone();
+            firstDay = stats.firstDay;
+            daySightings = stats.daySightings.clone();
+            dayDucks = stats.dayDucks.clone();
+            hourSightings = stats.hourSightings.clone();
+            hourDucks = stats.hourDucks.clone();
+        }
+
+        public int getTotalSightings() {
+            return totalSightings;
+        }
+
+        /**
+         * Sum of the counts of all Sightings
+         * @return Duck count
+         */
+        public long getTotalDucks() {
+            return totalDucks;
+        }
+
+        /**
+         * Sightings per species
+         * @return Counts by Species, only species with Sightings
+         */
+        public Map<Species, Integer> getSightingsBySpecies() {
+            LinkedHashMap<Species, Integer> out = new LinkedHashMap<>();
+            SpeciesRegistry registry = SpeciesRegistry.getInstance();
+            for (int ordinal = 0; ordinal < speciesSightings.length; ordinal++) {
+                if (speciesSightings[ordinal] != 0) out.put(registry.byOrdinal(ordinal), speciesSightings[ordinal]);
+            }
+            return out;
+        }
+
+        /**
+         * Ducks per species
+         * @return Duck counts by Species, only species with Sightings
+         */
+        public Map<Species, Long> getDucksBySpecies() {
+            LinkedHashMap<Species, Long> out = new LinkedHashMap<>();
+            SpeciesRegistry registry = SpeciesRegistry.getInstance();
+            for (int ordinal = 0; ordinal < speciesDucks.length; ordinal++) {
+                if (speciesSightings[ordinal] != 0) out.put(registry.byOrdinal(ordinal), speciesDucks[ordinal]);
+            }
+            return out;
+        }
+
+        /**
+         * Sightings per calendar day
+         * @return Counts by day, only days with Sightings
+         */
+        public SortedMap<LocalDate, Integer> getSightingsByDay() {
+            TreeMap<LocalDate, Integer> out = new TreeMap<>();
+            for (int i = 0; i < daySightings.length; i++) {
+                if (daySightings[i] != 0) out.put(dateOf(i), daySightings[i]);
+            }
+            return out;
+        }
+
+        /**
+         * Ducks per calendar day
+         * @return Duck counts by day, only days with Sightings
+         */
+        public SortedMap<LocalDate, Long> getDucksByDay() {
+            TreeMap<LocalDate, Long> out = new TreeMap<>();
+            for (int i = 0; i < dayDucks.length; i++) {
+                if (daySightings[i] != 0) out.put(dateOf(i), dayDucks[i]);
+            }
+            return out;
+        }
+
+        /**
+         * Sightings per hour of day
+         * @return 24 counts, index 0 is from midnight to 1 am
+         */
+        public int[] getSightingsByHour() {
+            return hourSightings.clone();
+        }
+
+        /**
+         * Ducks per hour of day
+         * @return 24 duck counts, index 0 is from midnight to 1 am
+         */
+        public long[] getDucksByHour() {
+            return hourDucks.clone();
+        }
+
+        /**
+         * Hour of day with the most Sightings
+         * @return Hour from 0 to 23, or -1 if there are no Sightings with a dateTime
+         */
+        public int getBusiestHour() {
+            int busiest = -1;
+            for (int hour = 0; hour < 24; hour++) {
+                if (hourSightings[hour] > 0 && (busiest < 0 || hourSightings[hour] > hourSightings[busiest])) busiest = hour;
+            }
+            return busiest;
+        }
+
+        private LocalDate dateOf(int index) {
+            return new LocalDate((firstDay + index) * MILLIS_PER_DAY, DateTimeZone.UTC);
+        }
+    }
+}
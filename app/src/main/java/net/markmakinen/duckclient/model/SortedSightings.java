@@ -0,0 +1,255 @@
+package net.markmakinen.duckclient.model;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+
+/**
+ * Immutable, compact collection of Sightings kept in ascending dateTime order.
+ *
+ * The Sightings are stored column by column in primitive arrays: epoch milliseconds, counts and
+ * species ordinals (see SpeciesRegistry). Only the ID and description Strings are kept as objects,
+ * and those are shared with whoever parsed them. Sighting objects are created on demand with get.
+ *
+ * Changes are merged into the existing order instead of sorting everything again,
+ * and either direction is just a different index mapping over the same arrays.
+ */
+public class SortedSightings {
+
+    private static final SpeciesRegistry REGISTRY = SpeciesRegistry.getInstance();
+    private static final SortedSightings EMPTY = new SortedSightings(0);
+
+    private static final Comparator<Sighting> BY_MILLIS = new Comparator<Sighting>() {
+        @Override
+        public int compare(Sighting a, Sighting b) {
+            long ma = millisOf(a);
+            long mb = millisOf(b);
+            return (ma < mb ? -1 : (ma == mb ? 0 : 1));
+        }
+    };
+
+    // Columns, ascending by millis
+    private final long[] millis;            // dateTime as epoch milliseconds
+    private final int[] counts;
+    private final short[] species;          // Species ordinal, -1 if none
+    private final String[] ids;             // Backend ID, or local ID for pending Sightings
+    private final boolean[] pending;
+    private final String[] descriptions;
+    private int size;
+
+    private SortedSightings(int capacity) {
+        millis = new long[capacity];
+        counts = new int[capacity];
+        species = new short[capacity];
+        ids = new String[capacity];
+        pending = new boolean[capacity];
+        descriptions = new String[capacity];
+    }
+
+    /**
+     * Gets an empty collection
+     * @return SortedSightings
+     */
+    public static SortedSightings empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Sorts Sightings into a new collection. This is a full sort, so don't call it on the main thread with large input.
+     * @param sightings Sightings in any order
+     * @return SortedSightings
+     */
+    public static SortedSightings of(Collection<Sighting> sightings) {
+        return EMPTY.with(sightings, new HashSet<String>());
+    }
+
+    /**
+     * Identity of a Sighting: the backend ID, or the local ID while it hasn't been sent
+     * @param s Sighting
+     * @return Key, or null if the Sighting has neither ID
+     */
+    public static String keyOf(Sighting s) {
+        return s.isPending() ? "local:" + s.getLocalId() : s.getSightingId();
+    }
+
+    /**
+     * Makes a new collection with changes applied. Only the changes are sorted, they are merged into
+     * the existing order in linear time.
+     * @param upserts Added Sightings and new versions of existing ones (matched by key)
+     * @param removedKeys Keys of the Sightings to remove
+     * @return New collection, this one is unchanged
+     */
+    public SortedSightings with(Collection<Sighting> upserts, Collection<String> removedKeys) {
+        return with(upserts, removedKeys, null);
+    }
+
+    /**
+     * Like with, and also tells where every row of the new collection came from, so indexes over
+     * this collection can be carried over instead of rebuilt (see SightingIndex)
+     * @param upserts Added Sightings and new versions of existing ones (matched by key)
+     * @param removedKeys Keys of the Sightings to remove
+     * @param origins Gets the index in this collection of every row of the new one, or -1 for rows from upserts.
+     *                Must have room for size() + upserts.size() rows. May be null.
+     * @return New collection, this one is unchanged
+     */
+    public SortedSightings with(Collection<Sighting> upserts, Collection<String> removedKeys, int[] origins) {
+        if (upserts.isEmpty() && removedKeys.isEmpty()) {
+            if (origins != null) for (int i = 0; i < size; i++) origins[i] = i;
+            return this;
+        }
+
+        HashSet<String> replaced = new HashSet<>(removedKeys);
+        if (size > 0) {
+            for (Sighting s : upserts) {
+                String key = keyOf(s);
+                if (key != null) replaced.add(key);
+            }
+        }
+
+        Sighting[] added = upserts.toArray(new Sighting[upserts.size()]);
+        Arrays.sort(added, BY_MILLIS);
+
+        SortedSightings out = new SortedSightings(size + added.length);
+        int i = 0, j = 0;
+        while (i < size || j < added.length) {
+            // Existing items go first on ties, so equal timestamps keep their order
+            if (j >= added.length || (i < size && millis[i] <= millisOf(added[j]))) {
+                if (replaced.isEmpty() || !replaced.contains(keyAt(i))) {
+                    if (origins != null) origins[out.size] = i;
+                    out.copyRow(this, i);
+                }
+                i++;
+            } else {
+                if (origins != null) origins[out.size] = -1;
+                out.addRow(added[j++]);
+            }
+        }
+        return out;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Maps a position in the wanted order to an index. Takes constant time.
+     * @param position Position in the listing
+     * @param ascending true for the oldest first, false for the newest first
+     * @return Index for the accessors
+     */
+    public int indexOf(int position, boolean ascending) {
+        if (position < 0 || position >= size) throw new IndexOutOfBoundsException("Position: " + position);
+        return (ascending ? position : size - 1 - position);
+    }
+
+    /**
+     * Finds where a time would be inserted
+     * @param millis Epoch milliseconds
+     * @return Index of the first Sighting at or after the time, size() if there is none
+     */
+    public int lowerBound(long millis) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (this.millis[mid] < millis) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    long millisAt(int index) {
+        return millis[index];
+    }
+
+    int countAt(int index) {
+        return counts[index];
+    }
+
+    int speciesOrdinalAt(int index) {
+        return species[index];
+    }
+
+    String descriptionAt(int index) {
+        return descriptions[index];
+    }
+
+    /**
+     * Creates a Sighting object of a stored Sighting
+     * @param index Index, ascending by dateTime
+     * @return New Sighting
+     */
+    public Sighting get(int index) {
+        Sighting s = new Sighting();
+        if (pending[index]) {
+            s.setLocalId(ids[index]);
+        } else {
+            s.setSightingId(ids[index]);
+        }
+        if (millis[index] != Long.MIN_VALUE) s.setDateTime(new DateTime(millis[index], DateTimeZone.UTC));
+        s.setCount(counts[index]);
+        s.setSpecies(REGISTRY.byOrdinal(species[index]));
+        s.setDescription(descriptions[index]);
+        return s;
+    }
+
+    /**
+     * Key of a stored Sighting, see keyOf
+     * @param index Index, ascending by dateTime
+     * @return Key
+     */
+    public String keyAt(int index) {
+        return pending[index] ? "local:" + ids[index] : ids[index];
+    }
+
+    /**
+     * Compares the content of two stored Sightings without creating Sighting objects
+     * @param index Index in this collection
+     * @param other Other collection
+     * @param otherIndex Index in the other collection
+     * @return true if the dateTime, count, species, description and pending state are equal
+     */
+    public boolean sameContent(int index, SortedSightings other, int otherIndex) {
+        if (millis[index] != other.millis[otherIndex]) return false;
+        if (counts[index] != other.counts[otherIndex]) return false;
+        if (species[index] != other.species[otherIndex]) return false;
+        if (pending[index] != other.pending[otherIndex]) return false;
+        String d = descriptions[index];
+        String od = other.descriptions[otherIndex];
+        return (d == null ? od == null : d.equals(od));
+    }
+
+    private void copyRow(SortedSightings from, int i) {
+        millis[size] = from.millis[i];
+        counts[size] = from.counts[i];
+        species[size] = from.species[i];
+        ids[size] = from.ids[i];
+        pending[size] = from.pending[i];
+        descriptions[size] = from.descriptions[i];
+        size++;
+    }
+
+    private void addRow(Sighting s) {
+        millis[size] = millisOf(s);
+        counts[size] = s.getCount();
+        species[size] = (short)REGISTRY.ordinalOf(s.getSpecies());
+        pending[size] = s.isPending();
+        ids[size] = (s.isPending() ? s.getLocalId() : s.getSightingId());
+        descriptions[size] = s.getDescription();
+        size++;
+    }
+
+    private static long millisOf(Sighting s) {
+        return (s.getDateTime() != null ? s.getDateTime().getMillis() : Long.MIN_VALUE);
+    }
+}
@@ -4,16 +4,16 @@ package net.markmakinen.duckclient.model;
  * Created by Zini on 16.12.2016 19.39.
  */
 
-import com.google.gson.annotations.Expose;
-
 /**
- * Class for representing Species
+ * Class for representing Species.
+ * Species are immutable, so one instance can be shared by every Sighting of the species (see SpeciesRegistry).
  */
 public class Species {
 
-    @Expose private String name;
+    private final String name;
+    int ordinal = -1;   // Index in SpeciesRegistry, -1 if not interned
 
-    // Getter & setter
+    // Getter
     /**
      * Get the species' name
      * @return Name
@@ -22,14 +22,6 @@ public class Species {
         return name;
     }
 
-    /**
-     * Set the species' name
-     * @param name Name to be set
-     */
-    public void setName(String name) {
-        this.name = name;
-    }
-
     /**
      * Creates a new Species
      * @param name Name of the species
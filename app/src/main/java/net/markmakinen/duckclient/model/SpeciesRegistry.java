@@ -0,0 +1,135 @@
+package net.markmakinen.duckclient.model;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Canonical Species instances and the set of Species the backend allows.
+ *
+ * There are only a handful of species but possibly tens of thousands of Sightings, so every
+ * Sighting of a species refers to the same Species instance instead of a copy of its own.
+ * Interned Species also get a small ordinal, so compact stores can refer to them by number.
+ * Thread-safe: interning may happen on any thread, the allowed set is replaced as a whole under the lock.
+ */
+public class SpeciesRegistry {
+
+    private static final SpeciesRegistry instance = new SpeciesRegistry();
+
+    private final ConcurrentHashMap<String, Species> byName = new ConcurrentHashMap<>();
+    private volatile Species[] byOrdinal = new Species[0];   // Copied on write, new species are rare
+    private volatile Set<Species> allowed = Collections.emptySet();    // Immutable snapshot
+
+    /**
+     * Gets the registry shared by the whole app
+     * @return SpeciesRegistry
+     */
+    public static SpeciesRegistry getInstance() {
+        return instance;
+    }
+
+    /**
+     * Gets the canonical Species for a name, creating it on first use
+     * @param name Species name
+     * @return Species
+     */
+    public Species intern(String name) {
+        Species species = byName.get(name);
+        if (species != null) return species;
+
+        synchronized (this) {
+            species = byName.get(name);
+            if (species == null) {
+                if (byOrdinal.length > Short.MAX_VALUE) throw new IllegalStateException("Too many species");
+                species = new Species(name);
+                species.ordinal = byOrdinal.length;
+                Species[] grown = Arrays.copyOf(byOrdinal, byOrdinal.length + 1);
+                grown[species.ordinal] = species;
+                byOrdinal = grown;
+                byName.put(name, species);
+            }
+        }
+        return species;
+    }
+
+    /**
+     * Gets the canonical instance of a Species
+     * @param species Species, may be a copy
+     * @return Canonical Species
+     */
+    public Species intern(Species species) {
+        return intern(species.getName());
+    }
+
+    /**
+     * Gets the ordinal of a Species, interning it if needed
+     * @param species Species, may be null
+     * @return Ordinal, or -1 for null or unnamed Species
+     */
+    public int ordinalOf(Species species) {
+        if (species == null || species.getName() == null) return -1;
+        return intern(species.getName()).ordinal;
+    }
+
+    /**
+     * Gets the ordinal of a Species without interning it, e.g. for a query that mustn't add species
+     * @param species Species, may be null
+     * @return Ordinal, or -1 for null, unnamed or never interned Species
+     */
+    public int findOrdinal(Species species) {
+        if (species == null || species.getName() == null) return -1;
+        Species known = byName.get(species.getName());
+        return (known != null ? known.ordinal : -1);
+    }
+
+    /**
+     * Gets a Species by its ordinal
+     * @param ordinal Ordinal from ordinalOf
+     * @return Species, or null for -1
+     */
+    public Species byOrdinal(int ordinal) {
+        return (ordinal < 0 ? null : byOrdinal[ordinal]);
+    }
+
+    /**
+     * Replaces the allowed Species, e.g. with the listing from the backend
+     * @param species Allowed Species
+     */
+    public synchronized void setAllowed(Collection<Species> species) {
+        HashSet<Species> set = new HashSet<>(species.size() * 2);
+        for (Species s : species) set.add(intern(s));
+        allowed = Collections.unmodifiableSet(set);
+    }
+
+    /**
+     * Sets the allowed Species unless they are already known, e.g. with a list from local storage that
+     * mustn't replace a fresher one from the backend. Atomic with respect to setAllowed.
+     * @param species Allowed Species
+     * @return true if the Species were set
+     */
+    public synchronized boolean setAllowedIfEmpty(Collection<Species> species) {
+        if (species.isEmpty() || !allowed.isEmpty()) return false;
+        setAllowed(species);
+        return true;
+    }
+
+    /**
+     * Tells if the allowed Species are known
+     * @return true if setAllowed has been called with at least one Species
+     */
+    public boolean hasAllowed() {
+        return !allowed.isEmpty();
+    }
+
+    /**
+     * Checks a Species against the allowed set in constant time
+     * @param species Species to check
+     * @return true if the Species is allowed
+     */
+    public boolean isAllowed(Species species) {
+        return species != null && allowed.contains(species);
+    }
+}
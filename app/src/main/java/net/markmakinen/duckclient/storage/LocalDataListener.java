@@ -0,0 +1,10 @@
+package net.markmakinen.duckclient.storage;
+
+import net.markmakinen.duckclient.model.Sighting;
+import net.markmakinen.duckclient.model.Species;
+
+import java.util.ArrayList;
+
+public interface LocalDataListener {
+    void loaded(ArrayList<Species> species, ArrayList<Sighting> sightings, ArrayList<Sighting> pending);
+}
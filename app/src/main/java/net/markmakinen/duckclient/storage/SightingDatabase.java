@@ -0,0 +1,66 @@
+package net.markmakinen.duckclient.storage;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+/**
+ * SQLite database holding the locally stored Species and Sightings,
+ * and the new Sightings waiting to be sent to the backend
+ */
+class SightingDatabase extends SQLiteOpenHelper {
+
+    private static final String DATABASE_NAME = "sightings.db";
+    private static final int DATABASE_VERSION = 2;   // 2: outbox table
+
+    static final String TABLE_SPECIES = "species";
+    static final String TABLE_SIGHTINGS = "sightings";
+    static final String TABLE_OUTBOX = "outbox";
+
+    // Sightings table columns
+    static final String COL_ID = "id";
+    static final String COL_DATE_TIME = "date_time";     // UTC epoch milliseconds
+    static final String COL_SPECIES = "species";
+    static final String COL_COUNT = "count";
+    static final String COL_DESCRIPTION = "description";
+
+    // Species table columns
+    static final String COL_NAME = "name";
+
+    // Outbox table columns, plus the Sighting columns except the ID
+    static final String COL_LOCAL_ID = "local_id";
+    static final String COL_CREATED = "created";         // UTC epoch milliseconds, gives the sending order
+
+    SightingDatabase(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_SPECIES + " (" +
+                COL_NAME + " TEXT PRIMARY KEY)");
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_SIGHTINGS + " (" +
+                COL_ID + " TEXT PRIMARY KEY, " +
+                COL_DATE_TIME + " INTEGER NOT NULL, " +
+                COL_SPECIES + " TEXT NOT NULL, " +
+                COL_COUNT + " INTEGER NOT NULL, " +
+                COL_DESCRIPTION + " TEXT)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS sightings_date_time ON " + TABLE_SIGHTINGS + " (" + COL_DATE_TIME + ")");
+        db.execSQL("CREATE INDEX IF NOT EXISTS sightings_species ON " + TABLE_SIGHTINGS + " (" + COL_SPECIES + ")");
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_OUTBOX + " (" +
+                COL_LOCAL_ID + " TEXT PRIMARY KEY, " +
+                COL_DATE_TIME + " INTEGER NOT NULL, " +
+                COL_SPECIES + " TEXT NOT NULL, " +
+                COL_COUNT + " INTEGER NOT NULL, " +
+                COL_DESCRIPTION + " TEXT, " +
+                COL_CREATED + " INTEGER NOT NULL)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // The cached tables can be fetched from the backend again, the outbox can't and is kept
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_SIGHTINGS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_SPECIES);
+        onCreate(db);
+    }
+}
@@ -0,0 +1,239 @@
+package net.markmakinen.duckclient.storage;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import net.markmakinen.duckclient.backend.OutboxStore;
+import net.markmakinen.duckclient.model.Sighting;
+import net.markmakinen.duckclient.model.Species;
+import net.markmakinen.duckclient.model.SpeciesRegistry;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static net.markmakinen.duckclient.storage.SightingDatabase.*;
+
+/**
+ * Local copy of the backend data, so the listing can be shown before the network answers.
+ * All database access happens in order on one background thread, listeners are called on the main thread.
+ * The outbox methods are the exception: they are called by the BackendClient on its own thread and run right away.
+ */
+public class SightingRepository implements OutboxStore {
+
+    private static SightingRepository instance;
+
+    private final SightingDatabase db;
+    private final ExecutorService dbExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Gets the process-wide repository
+     * @param context Any Context, the application context is used
+     * @return SightingRepository
+     */
+    public static synchronized SightingRepository getInstance(Context context) {
+        if (instance == null) instance = new SightingRepository(context.getApplicationContext());
+        return instance;
+    }
+
+    private SightingRepository(Context context) {
+        this.db = new SightingDatabase(context);
+    }
+
+    /**
+     * Reads the stored Species and Sightings, and the Sightings still waiting to be sent
+     * @param listener Listener to notify
+     */
+    public void load(final LocalDataListener listener) {
+        dbExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final ArrayList<Species> species = new ArrayList<>();
+                final ArrayList<Sighting> sightings = new ArrayList<>();
+                final ArrayList<Sighting> pending = new ArrayList<>();
+                try {
+                    SQLiteDatabase sdb = db.getReadableDatabase();
+                    readSpecies(sdb, species);
+                    readSightings(sdb, sightings);
+                    readPending(sdb, pending);
+                } catch (RuntimeException e) {
+                    // A broken local copy only means that we have to wait for the backend
+                    Log.e("SightingRepository", "Reading local data failed: " + e.getMessage());
+                    species.clear();
+                    sightings.clear();
+                    pending.clear();
+                }
+
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (listener != null) listener.loaded(species, sightings, pending);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Replaces the stored Species
+     * @param species Species from the backend
+     */
+    public void saveSpecies(List<Species> species) {
+        final ArrayList<Species> copy = new ArrayList<>(species);
+        dbExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase sdb = db.getWritableDatabase();
+                sdb.beginTransaction();
+                try {
+                    sdb.delete(TABLE_SPECIES, null, null);
+                    SQLiteStatement insert = sdb.compileStatement("INSERT OR REPLACE INTO " + TABLE_SPECIES + " (" + COL_NAME + ") VALUES (?)");
+                    for (Species s : copy) {
+                        insert.bindString(1, s.getName());
+                        insert.executeInsert();
+                    }
+                    insert.close();
+                    sdb.setTransactionSuccessful();
+                } catch (RuntimeException e) {
+                    Log.e("SightingRepository", "Saving species failed: " + e.getMessage());
+                } finally {
+                    sdb.endTransaction();
+                }
+            }
+        });
+    }
+
+    /**
+     * Updates the stored Sightings
+     * @param upserts Added and changed Sightings
+     * @param removedIds IDs of the Sightings to delete
+     */
+    public void saveSightingChanges(List<Sighting> upserts, List<String> removedIds) {
+        final ArrayList<Sighting> upsertCopy = new ArrayList<>(upserts);
+        final ArrayList<String> removedCopy = new ArrayList<>(removedIds);
+        dbExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase sdb = db.getWritableDatabase();
+                sdb.beginTransaction();
+                try {
+                    SQLiteStatement delete = sdb.compileStatement("DELETE FROM " + TABLE_SIGHTINGS + " WHERE " + COL_ID + " = ?");
+                    for (String id : removedCopy) {
+                        delete.bindString(1, id);
+                        delete.executeUpdateDelete();
+                    }
+                    delete.close();
+
+                    SQLiteStatement insert = sdb.compileStatement("INSERT OR REPLACE INTO " + TABLE_SIGHTINGS + " (" +
+                            COL_ID + ", " + COL_DATE_TIME + ", " + COL_SPECIES + ", " + COL_COUNT + ", " + COL_DESCRIPTION +
+                            ") VALUES (?, ?, ?, ?, ?)");
+                    for (Sighting s : upsertCopy) {
+                        if (s.getSightingId() == null) continue;    // Not saved on the backend yet
+                        bindSighting(insert, s);
+                        insert.executeInsert();
+                    }
+                    insert.close();
+                    sdb.setTransactionSuccessful();
+                } catch (RuntimeException e) {
+                    Log.e("SightingRepository", "Saving sightings failed: " + e.getMessage());
+                } finally {
+                    sdb.endTransaction();
+                }
+            }
+        });
+    }
+
+    @Override
+    public ArrayList<Sighting> loadPending() {
+        ArrayList<Sighting> pending = new ArrayList<>();
+        readPending(db.getReadableDatabase(), pending);
+        return pending;
+    }
+
+    @Override
+    public void addPending(Sighting sighting) {
+        SQLiteStatement insert = db.getWritableDatabase().compileStatement("INSERT OR REPLACE INTO " + TABLE_OUTBOX + " (" +
+                COL_LOCAL_ID + ", " + COL_DATE_TIME + ", " + COL_SPECIES + ", " + COL_COUNT + ", " + COL_DESCRIPTION + ", " + COL_CREATED +
+                ") VALUES (?, ?, ?, ?, ?, ?)");
+        try {
+            insert.bindString(1, sighting.getLocalId());
+            insert.bindLong(2, sighting.getDateTime().getMillis());
+            insert.bindString(3, sighting.getSpecies().getName());
+            insert.bindLong(4, sighting.getCount());
+            if (sighting.getDescription() != null) insert.bindString(5, sighting.getDescription());
+            insert.bindLong(6, System.currentTimeMillis());
+            insert.executeInsert();
+        } finally {
+            insert.close();
+        }
+    }
+
+    @Override
+    public void removePending(String localId) {
+        db.getWritableDatabase().delete(TABLE_OUTBOX, COL_LOCAL_ID + " = ?", new String[]{localId});
+    }
+
+    private static void bindSighting(SQLiteStatement stmt, Sighting s) {
+        stmt.clearBindings();
+        stmt.bindString(1, s.getSightingId());
+        stmt.bindLong(2, s.getDateTime().getMillis());
+        stmt.bindString(3, s.getSpecies().getName());
+        stmt.bindLong(4, s.getCount());
+        if (s.getDescription() != null) stmt.bindString(5, s.getDescription());
+    }
+
+    private static void readSpecies(SQLiteDatabase sdb, ArrayList<Species> out) {
+        Cursor c = sdb.query(TABLE_SPECIES, new String[]{COL_NAME}, null, null, null, null, null);
+        try {
+            while (c.moveToNext()) out.add(SpeciesRegistry.getInstance().intern(c.getString(0)));
+        } finally {
+            c.close();
+        }
+    }
+
+    private static void readSightings(SQLiteDatabase sdb, ArrayList<Sighting> out) {
+        Cursor c = sdb.query(TABLE_SIGHTINGS, new String[]{COL_ID, COL_DATE_TIME, COL_SPECIES, COL_COUNT, COL_DESCRIPTION},
+                null, null, null, null, COL_DATE_TIME + " DESC");
+        try {
+            while (c.moveToNext()) {
+                Sighting s = new Sighting();
+                s.setSightingId(c.getString(0));
+                s.setDateTime(new DateTime(c.getLong(1), DateTimeZone.UTC));
+                s.setSpecies(SpeciesRegistry.getInstance().intern(c.getString(2)));
+                s.setCount(c.getInt(3));
+                s.setDescription(c.isNull(4) ? "" : c.getString(4));
+                out.add(s);
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private static void readPending(SQLiteDatabase sdb, ArrayList<Sighting> out) {
+        Cursor c = sdb.query(TABLE_OUTBOX, new String[]{COL_LOCAL_ID, COL_DATE_TIME, COL_SPECIES, COL_COUNT, COL_DESCRIPTION},
+                null, null, null, null, COL_CREATED + " ASC");
+        try {
+            while (c.moveToNext()) {
+                Sighting s = new Sighting();
+                s.setLocalId(c.getString(0));
+                s.setDateTime(new DateTime(c.getLong(1), DateTimeZone.UTC));
+                s.setSpecies(SpeciesRegistry.getInstance().intern(c.getString(2)));
+                s.setCount(c.getInt(3));
+                s.setDescription(c.isNull(4) ? "" : c.getString(4));
+                out.add(s);
+            }
+        } finally {
+            c.close();
+        }
+    }
+}
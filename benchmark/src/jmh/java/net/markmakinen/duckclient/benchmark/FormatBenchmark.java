@@ -0,0 +1,69 @@
+package net.markmakinen.duckclient.benchmark;
+
+import net.markmakinen.duckclient.model.Sighting;
+import net.markmakinen.duckclient.model.SightingDisplay;
+import net.markmakinen.duckclient.model.SightingFormatter;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDateTime;
+import org.joda.time.format.DateTimeFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Display strings of one row: the old per-call formatting against SightingFormatter
+ */
+@State(Scope.Benchmark)
+public class FormatBenchmark {
+
+    private static final int COUNT = 1000;
+
+    private ArrayList<Sighting> sightings;
+    private SightingFormatter formatter;
+
+    @Setup
+    public void setUp() {
+        sightings = Payloads.sightings(COUNT);
+        formatter = new SightingFormatter(Locale.US, DateTimeZone.forID("Europe/Helsinki"));
+    }
+
+    /**
+     * What SightingArrayAdapter.getView did for every row it bound
+     */
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public void legacyFormatting(Blackhole bh) {
+        DateTimeZone zone = DateTimeZone.forID("Europe/Helsinki");
+        for (Sighting s : sightings) {
+            String speciesName = s.getSpecies().getName() + (s.getCount() > 1 ? "s" : "");
+            bh.consume(String.format("%d %s", s.getCount(), speciesName));
+
+            LocalDateTime local = s.getDateTime().withZone(zone).toLocalDateTime();
+            String date;
+            try {
+                date = DateTimeFormat.fullDateTime().withLocale(Locale.US).print(local);
+            } catch (IllegalArgumentException e) {
+                date = DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss").print(local);
+            }
+            bh.consume(date);
+
+            String description = s.getDescription();
+            String shortDesc = description.substring(0, Math.min(description.length(), 254));
+            if (shortDesc.length() >= 254) shortDesc += "...";
+            bh.consume(shortDesc);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public void displayModel(Blackhole bh) {
+        for (Sighting s : sightings) bh.consume(new SightingDisplay(s, formatter, null));
+    }
+}
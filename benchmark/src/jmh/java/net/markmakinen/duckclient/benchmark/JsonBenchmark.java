@@ -0,0 +1,72 @@
+package net.markmakinen.duckclient.benchmark;
+
+import com.google.gson.stream.JsonReader;
+
+import net.markmakinen.duckclient.backend.JsonCodec;
+import net.markmakinen.duckclient.model.Sighting;
+import net.markmakinen.duckclient.model.Species;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+
+/**
+ * JSON decoding and encoding as BackendClient does it: a streaming JsonReader over the response body
+ * and the hand-written adapters in JsonCodec
+ */
+@State(Scope.Benchmark)
+public class JsonBenchmark {
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int size;
+
+    private final JsonCodec codec = new JsonCodec();
+    private byte[] sightingsBody;
+    private byte[] speciesBody;
+    private ArrayList<Sighting> sightings;
+
+    @Setup
+    public void setUp() {
+        sightings = Payloads.sightings(size);
+        sightingsBody = Payloads.sightingsJson(sightings);
+        speciesBody = Payloads.speciesJson();
+    }
+
+    @Benchmark
+    public ArrayList<Sighting> parseSightings() throws IOException {
+        JsonReader reader = reader(sightingsBody);
+        ArrayList<Sighting> items = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) items.add(codec.readSighting(reader));
+        reader.endArray();
+        return items;
+    }
+
+    @Benchmark
+    public ArrayList<Species> parseSpecies() throws IOException {
+        JsonReader reader = reader(speciesBody);
+        ArrayList<Species> items = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) items.add(codec.readSpecies(reader));
+        reader.endArray();
+        return items;
+    }
+
+    @Benchmark
+    public int serializeSightings() {
+        int length = 0;
+        for (Sighting s : sightings) length += codec.toJson(s).length();
+        return length;
+    }
+
+    private static JsonReader reader(byte[] body) throws IOException {
+        return new JsonReader(new InputStreamReader(new ByteArrayInputStream(body), "UTF-8"));
+    }
+}
@@ -0,0 +1,90 @@
+package net.markmakinen.duckclient.benchmark;
+
+import net.markmakinen.duckclient.backend.IsoTimestamps;
+import net.markmakinen.duckclient.model.Sighting;
+import net.markmakinen.duckclient.model.SpeciesRegistry;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Synthetic backend data. Always the same for the same size, so runs can be compared.
+ */
+final class Payloads {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final String[] SPECIES = {"mallard", "redhead", "gadwall", "canvasback", "lesser scaup"};
+
+    private static final long START = 1325376000000L;     // 2012-01-01T00:00:00Z
+    private static final String[] WORDS = {"duck", "pond", "swimming", "near", "the", "shore", "flock", "of",
+            "quacking", "loudly", "in", "morning", "sun", "two", "juveniles", "feeding"};
+
+    private Payloads() {}
+
+    /**
+     * Sightings in random dateTime order, like the backend returns them
+     */
+    static ArrayList<Sighting> sightings(int count) {
+        Random random = new Random(count);
+        SpeciesRegistry registry = SpeciesRegistry.getInstance();
+        ArrayList<Sighting> sightings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Sighting s = new Sighting();
+            s.setSightingId(Integer.toString(i + 1));
+            s.setDateTime(new DateTime(START + (random.nextInt(5 * 365 * 24 * 3600) * 1000L), DateTimeZone.UTC));
+            s.setSpecies(registry.intern(SPECIES[random.nextInt(SPECIES.length)]));
+            s.setCount(1 + random.nextInt(20));
+            s.setDescription(description(random));
+            sightings.add(s);
+        }
+        return sightings;
+    }
+
+    /**
+     * The /sightings response body for the Sightings
+     */
+    static byte[] sightingsJson(ArrayList<Sighting> sightings) {
+        StringBuilder json = new StringBuilder(sightings.size() * 160);
+        json.append('[');
+        for (int i = 0; i < sightings.size(); i++) {
+            Sighting s = sightings.get(i);
+            if (i > 0) json.append(',');
+            json.append("{\"id\":\"").append(s.getSightingId())
+                    .append("\",\"species\":\"").append(s.getSpecies().getName())
+                    .append("\",\"description\":\"").append(s.getDescription())
+                    .append("\",\"dateTime\":\"").append(IsoTimestamps.format(s.getDateTime().getMillis()))
+                    .append("\",\"count\":").append(s.getCount())
+                    .append('}');
+        }
+        json.append(']');
+        return json.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * The /species response body
+     */
+    static byte[] speciesJson() {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < SPECIES.length; i++) {
+            if (i > 0) json.append(',');
+            json.append("{\"name\":\"").append(SPECIES[i]).append("\"}");
+        }
+        json.append(']');
+        return json.toString().getBytes(UTF_8);
+    }
+
+    private static String description(Random random) {
+        StringBuilder d = new StringBuilder();
+        int words = 3 + random.nextInt(12);
+        for (int i = 0; i < words; i++) {
+            if (i > 0) d.append(' ');
+            d.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return d.toString();
+    }
+}
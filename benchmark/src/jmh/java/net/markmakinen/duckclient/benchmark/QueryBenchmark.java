@@ -0,0 +1,83 @@
+package net.markmakinen.duckclient.benchmark;
+
+import net.markmakinen.duckclient.model.Sighting;
+import net.markmakinen.duckclient.model.SightingIndex;
+import net.markmakinen.duckclient.model.SightingQuery;
+import net.markmakinen.duckclient.model.SortedSightings;
+import net.markmakinen.duckclient.model.SpeciesRegistry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Filtering the listing: a linear scan over Sighting objects against SightingIndex, and keeping the index up to date
+ */
+@State(Scope.Benchmark)
+public class QueryBenchmark {
+
+    private static final int CHUNK_SIZE = 500;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int size;
+
+    private ArrayList<Sighting> sightings;
+    private SortedSightings sorted;
+    private SightingIndex index;
+    private SightingQuery query;
+    private List<Sighting> chunk;
+
+    @Setup
+    public void setUp() {
+        sightings = Payloads.sightings(size + CHUNK_SIZE);
+        chunk = new ArrayList<>(sightings.subList(size, size + CHUNK_SIZE));
+        sightings = new ArrayList<>(sightings.subList(0, size));
+        sorted = SortedSightings.of(sightings);
+        index = SightingIndex.of(sorted);
+        query = SightingQuery.all()
+                .withText("swim po")
+                .withSpecies(Collections.singleton(SpeciesRegistry.getInstance().intern("mallard")))
+                .withTimeRange(1356998400000L, 1420070400000L);     // 2013 and 2014
+    }
+
+    /**
+     * What filtering per keystroke costs without an index
+     */
+    @Benchmark
+    public int linearScan() {
+        int matches = 0;
+        for (Sighting s : sightings) {
+            long millis = s.getDateTime().getMillis();
+            if (millis < query.getFromMillis() || millis >= query.getToMillis()) continue;
+            if (!query.getSpecies().contains(s.getSpecies())) continue;
+            String description = s.getDescription().toLowerCase();
+            boolean all = true;
+            for (String word : query.getWords()) {
+                if (!description.startsWith(word) && !description.contains(" " + word)) {
+                    all = false;
+                    break;
+                }
+            }
+            if (all) matches++;
+        }
+        return matches;
+    }
+
+    @Benchmark
+    public int[] indexedQuery() {
+        return index.find(query);
+    }
+
+    @Benchmark
+    public SightingIndex mergeChunk() {
+        int[] origins = new int[sorted.size() + chunk.size()];
+        SortedSightings next = sorted.with(chunk, Collections.<String>emptyList(), origins);
+        return index.update(next, origins);
+    }
+}
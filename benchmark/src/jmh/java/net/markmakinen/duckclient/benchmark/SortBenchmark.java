@@ -0,0 +1,66 @@
+package net.markmakinen.duckclient.benchmark;
+
+import net.markmakinen.duckclient.model.Sighting;
+import net.markmakinen.duckclient.model.SortedSightings;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Ordering the listing: the old DateTime comparator sort, building SortedSightings, and merging a chunk into it
+ */
+@State(Scope.Benchmark)
+public class SortBenchmark {
+
+    private static final int CHUNK_SIZE = 500;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int size;
+
+    private ArrayList<Sighting> sightings;
+    private SortedSightings sorted;
+    private List<Sighting> chunk;
+
+    @Setup
+    public void setUp() {
+        sightings = Payloads.sightings(size + CHUNK_SIZE);
+        chunk = new ArrayList<>(sightings.subList(size, size + CHUNK_SIZE));
+        sightings = new ArrayList<>(sightings.subList(0, size));
+        sorted = SortedSightings.of(sightings);
+    }
+
+    /**
+     * The comparator MainActivity used to sort the adapter with
+     */
+    @Benchmark
+    public ArrayList<Sighting> comparatorSort() {
+        ArrayList<Sighting> copy = new ArrayList<>(sightings);
+        final boolean ascending = false;
+        Collections.sort(copy, new Comparator<Sighting>() {
+            @Override
+            public int compare(Sighting a, Sighting b) {
+                if (ascending) return a.getDateTime().compareTo(b.getDateTime());
+                return b.getDateTime().compareTo(a.getDateTime());
+            }
+        });
+        return copy;
+    }
+
+    @Benchmark
+    public SortedSightings sortedSightingsOf() {
+        return SortedSightings.of(sightings);
+    }
+
+    @Benchmark
+    public SortedSightings mergeChunk() {
+        return sorted.with(chunk, Collections.<String>emptyList());
+    }
+}
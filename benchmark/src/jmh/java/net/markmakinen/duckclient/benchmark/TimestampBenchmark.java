@@ -0,0 +1,64 @@
+package net.markmakinen.duckclient.benchmark;
+
+import net.markmakinen.duckclient.backend.IsoTimestamps;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+
+/**
+ * Timestamp parsing and formatting, IsoTimestamps against the Joda calls it replaced
+ */
+@State(Scope.Benchmark)
+public class TimestampBenchmark {
+
+    private static final int COUNT = 1000;
+    private static final DateTimeFormatter JODA_FORMAT = ISODateTimeFormat.dateTimeNoMillis().withZoneUTC();
+
+    private String[] timestamps;
+    private long[] millis;
+
+    @Setup
+    public void setUp() {
+        ArrayList<net.markmakinen.duckclient.model.Sighting> sightings = Payloads.sightings(COUNT);
+        timestamps = new String[COUNT];
+        millis = new long[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            millis[i] = sightings.get(i).getDateTime().getMillis();
+            timestamps[i] = JODA_FORMAT.print(millis[i]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public void parseFast(Blackhole bh) {
+        for (String s : timestamps) bh.consume(IsoTimestamps.parseMillis(s));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public void parseJoda(Blackhole bh) {
+        for (String s : timestamps) bh.consume(new DateTime(s, DateTimeZone.UTC).getMillis());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public void formatFast(Blackhole bh) {
+        for (long m : millis) bh.consume(IsoTimestamps.format(m));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public void formatJoda(Blackhole bh) {
+        for (long m : millis) bh.consume(JODA_FORMAT.print(m));
+    }
+}
@@ -0,0 +1,28 @@
+package android.os;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * JVM stand-in for Android's Handler. Posted tasks run in order on one shared daemon thread.
+ */
+public class Handler {
+
+    private static final ExecutorService MAIN = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "main");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    public Handler(Looper looper) {
+    }
+
+    public boolean post(Runnable r) {
+        MAIN.execute(r);
+        return true;
+    }
+}
@@ -0,0 +1,19 @@
+package android.os;
+
+/**
+ * JVM stand-in for Android's Looper. There is one "main" looper and no thread is ever on it.
+ */
+public final class Looper {
+
+    private static final Looper MAIN = new Looper();
+
+    private Looper() {}
+
+    public static Looper getMainLooper() {
+        return MAIN;
+    }
+
+    public static Looper myLooper() {
+        return null;
+    }
+}
@@ -0,0 +1,28 @@
+package android.util;
+
+/**
+ * JVM stand-in for Android's Log. Warnings and errors go to stderr, the rest is dropped
+ * so that logging doesn't dominate a load test.
+ */
+public final class Log {
+
+    private Log() {}
+
+    public static int d(String tag, String msg) {
+        return 0;
+    }
+
+    public static int i(String tag, String msg) {
+        return 0;
+    }
+
+    public static int w(String tag, String msg) {
+        System.err.println("W/" + tag + ": " + msg);
+        return 0;
+    }
+
+    public static int e(String tag, String msg) {
+        System.err.println("E/" + tag + ": " + msg);
+        return 0;
+    }
+}
@@ -0,0 +1,561 @@
+package net.markmakinen.duckclient.loadtest;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Local stand-in for duck-be (https://github.com/jaakkoyl/duck-be).
+ *
+ * Serves GET /species, GET /sightings and POST /sightings with duck-be's JSON. Like duck-be, the
+ * since parameter is ignored and the full listing is always returned. GET /sightings/stream is a
+ * server-sent event stream of the saved Sightings, which duck-be doesn't have. Unlike duck-be, a POST
+ * with an Idempotency-Key header that was already used gets the Sighting saved the first time instead of
+ * storing another one. For testing the client,
+ * responses can be delayed, throttled to a bandwidth and replaced by errors, and the dataset
+ * size and description length are configurable. Set everything up before start.
+ */
+public class DuckServer {
+
+    private static final String[] SPECIES = {"mallard", "redhead", "gadwall", "canvasback", "lesser scaup"};
+    private static final String[] WORDS = {"duck", "pond", "swimming", "near", "the", "shore", "flock", "of",
+            "quacking", "loudly", "in", "morning", "sun", "two", "juveniles", "feeding"};
+    private static final long START = 1325376000000L;     // 2012-01-01T00:00:00Z
+    private static final int REPLAY_SIZE = 1000;            // Stream events kept for clients that resume
+    private static final long HEARTBEAT_MILLIS = 15000;     // Comment sent on an idle stream
+
+    private final Random random = new Random();
+
+    // Settings
+    private int datasetSize = 1000;
+    private int descriptionLength = 60;
+    private long latencyMillis = 0;
+    private long bandwidth = 0;             // Bytes per second, 0 for unlimited
+    private double errorRate = 0;
+    private int errorStatus = 500;          // 0 to drop the connection instead
+    private boolean compression = true;
+    private boolean etags = false;
+    private long streamLifetime = 0;        // Milliseconds before a stream is closed, 0 for never
+
+    // Data, guarded by this
+    private final ArrayList<Row> sightings = new ArrayList<>();
+    private int nextId = 1;
+    private long version = 0;
+    private byte[] body;                    // Rendered listing of the current version, null when out of date
+    private byte[] gzipBody;
+    private final ArrayList<Event> events = new ArrayList<>();     // Latest stream events, oldest first
+    private final HashMap<String, Row> savedByKey = new HashMap<>();   // Saved Sightings by Idempotency-Key
+    private long nextSequence = 1;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong openStreams = new AtomicLong();
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * Number of Sightings generated at start
+     * @param size Sighting count
+     */
+    public void setDatasetSize(int size) {
+        this.datasetSize = size;
+    }
+
+    /**
+     * Length of the generated descriptions, e.g. huge for pathological payloads
+     * @param length Characters
+     */
+    public void setDescriptionLength(int length) {
+        this.descriptionLength = length;
+    }
+
+    /**
+     * Delay before every response
+     * @param millis Milliseconds
+     */
+    public void setLatency(long millis) {
+        this.latencyMillis = millis;
+    }
+
+    /**
+     * Limits the speed each response body is sent with
+     * @param bytesPerSecond Bytes per second, 0 for unlimited
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        this.bandwidth = bytesPerSecond;
+    }
+
+    /**
+     * Makes a fraction of the requests fail
+     * @param rate Probability of a failure, 0 to 1
+     * @param status HTTP status of the failures, 0 to drop the connection without a response
+     */
+    public void setErrors(double rate, int status) {
+        this.errorRate = rate;
+        this.errorStatus = status;
+    }
+
+    /**
+     * Whether responses are gzip compressed when the client accepts it
+     * @param compression true to compress
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Whether the listing has an ETag and answers If-None-Match with 304. duck-be doesn't.
+     * @param etags true to send ETags
+     */
+    public void setETags(boolean etags) {
+        this.etags = etags;
+    }
+
+    /**
+     * Closes event streams after a while, so the clients have to reconnect and resume
+     * @param millis Milliseconds, 0 to keep streams open
+     */
+    public void setStreamLifetime(long millis) {
+        this.streamLifetime = millis;
+    }
+
+    /**
+     * Generates the dataset and starts serving on a free local port
+     * @throws IOException if the server couldn't be started
+     */
+    public void start() throws IOException {
+        Random data = new Random(datasetSize);
+        synchronized (this) {
+            for (int i = 0; i < datasetSize; i++) {
+                long millis = START + data.nextInt(5 * 365 * 24 * 3600) * 1000L;
+                sightings.add(new Row(Integer.toString(nextId++), SPECIES[data.nextInt(SPECIES.length)],
+                        description(data), formatTime(millis), 1 + data.nextInt(20)));
+            }
+        }
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 128);
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "DuckServer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        server.setExecutor(executor);
+        server.createContext("/species", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.createContext("/sightings", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Root URI of the running server
+     * @return URI
+     */
+    public URI getURI() {
+        InetSocketAddress address = server.getAddress();
+        return URI.create("http://" + address.getAddress().getHostAddress() + ":" + address.getPort() + "/");
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Injected failures so far
+     * @return Count
+     */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * Response body bytes sent, after compression
+     * @return Byte count
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * Number of stored Sightings
+     * @return Count
+     */
+    public synchronized int getSightingCount() {
+        return sightings.size();
+    }
+
+    /**
+     * Event streams connected right now
+     * @return Count
+     */
+    public long getOpenStreams() {
+        return openStreams.get();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try {
+            requests.incrementAndGet();
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+
+            if (latencyMillis > 0) Thread.sleep(latencyMillis);
+
+            if (errorRate > 0 && random.nextDouble() < errorRate) {
+                errors.incrementAndGet();
+                drain(exchange.getRequestBody());
+                if (errorStatus == 0) return;   // Closed without a response
+                respond(exchange, errorStatus, ("{\"error\":\"Injected failure\"}").getBytes("UTF-8"), null);
+                return;
+            }
+
+            if (path.equals("/species") && method.equals("GET")) {
+                respond(exchange, 200, speciesJson(), null);
+            } else if (path.equals("/sightings/stream") && method.equals("GET")) {
+                streamSightings(exchange);
+            } else if (path.equals("/sightings") && method.equals("GET")) {
+                getSightings(exchange);
+            } else if (path.equals("/sightings") && method.equals("POST")) {
+                postSighting(exchange);
+            } else {
+                respond(exchange, 404, "{\"error\":\"Not found\"}".getBytes("UTF-8"), null);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void getSightings(HttpExchange exchange) throws IOException, InterruptedException {
+        byte[] plain;
+        byte[] gzip;
+        String etag;
+        synchronized (this) {
+            if (body == null) {
+                body = renderSightings();
+                gzipBody = gzip(body);
+            }
+            plain = body;
+            gzip = gzipBody;
+            etag = "\"v" + version + "\"";
+        }
+
+        if (etags) {
+            exchange.getResponseHeaders().set("ETag", etag);
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+        }
+
+        String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (compression && accept != null && accept.contains("gzip")) {
+            respond(exchange, 200, gzip, "gzip");
+        } else {
+            respond(exchange, 200, plain, null);
+        }
+    }
+
+    /**
+     * Stores a new Sighting. Like duck-be, the species must be known and the saved Sighting is returned with its ID.
+     */
+    private void postSighting(HttpExchange exchange) throws IOException, InterruptedException {
+        InputStream in = exchange.getRequestBody();
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) in = new GZIPInputStream(in);
+
+        Row row;
+        try {
+            JsonObject json = new JsonParser().parse(new InputStreamReader(in, "UTF-8")).getAsJsonObject();
+            String species = string(json.get("species"));
+            int count = json.has("count") ? json.get("count").getAsInt() : 0;
+            if (species == null || !Arrays.asList(SPECIES).contains(species) || count <= 0) {
+                respond(exchange, 400, "{\"error\":\"Invalid sighting\"}".getBytes("UTF-8"), null);
+                return;
+            }
+            String key = exchange.getRequestHeaders().getFirst("Idempotency-Key");
+            synchronized (this) {
+                row = (key != null ? savedByKey.get(key) : null);     // A resend of a stored Sighting
+                if (row == null) {
+                    row = new Row(Integer.toString(nextId++), species, string(json.get("description")), string(json.get("dateTime")), count);
+                    sightings.add(row);
+                    if (key != null) savedByKey.put(key, row);
+                    version++;
+                    body = null;
+                    gzipBody = null;
+
+                    events.add(new Event(nextSequence++, row.toJson()));
+                    if (events.size() > REPLAY_SIZE) events.remove(0);
+                    notifyAll();    // Wakes the streams
+                }
+            }
+        } catch (RuntimeException e) {
+            respond(exchange, 400, "{\"error\":\"Malformed JSON\"}".getBytes("UTF-8"), null);
+            return;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, "UTF-8"));
+        row.write(writer);
+        writer.close();
+        respond(exchange, 200, out.toByteArray(), null);
+    }
+
+    /**
+     * Sends every saved Sighting as a server-sent event until the client goes away. The event ID is a
+     * sequence number; a client that sends Last-Event-ID gets the events it missed, or a reset event
+     * if they are no longer kept.
+     */
+    private void streamSightings(HttpExchange exchange) throws IOException, InterruptedException {
+        drain(exchange.getRequestBody());
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+
+        long cursor;    // Sequence of the last event the client has
+        StringBuilder text = new StringBuilder();
+        synchronized (this) {
+            long latest = nextSequence - 1;
+            long resume = -1;
+            try {
+                String lastEventId = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+                if (lastEventId != null) resume = Long.parseLong(lastEventId.trim());
+            } catch (NumberFormatException e) {
+                // Not ours, start from now
+            }
+            cursor = latest;
+            boolean reset = false;
+            if (resume >= 0 && resume <= latest) {
+                if (resume + 1 >= oldestSequence()) {
+                    cursor = resume;
+                } else {
+                    reset = true;
+                }
+            }
+            text.append("id: ").append(cursor).append("\n\n");     // Position to resume from, even before any event
+            if (reset) text.append("event: reset\nid: ").append(cursor).append("\ndata: gap\n\n");
+        }
+
+        openStreams.incrementAndGet();
+        try {
+            long deadline = (streamLifetime > 0 ? System.currentTimeMillis() + streamLifetime : Long.MAX_VALUE);
+            while (System.currentTimeMillis() < deadline) {
+                synchronized (this) {
+                    if (cursor >= nextSequence - 1) wait(Math.min(HEARTBEAT_MILLIS, Math.max(1, deadline - System.currentTimeMillis())));
+                    if (cursor + 1 < oldestSequence()) {
+                        // Fell behind the replay buffer
+                        text.append("event: reset\nid: ").append(nextSequence - 1).append("\ndata: gap\n\n");
+                        cursor = nextSequence - 1;
+                    }
+                    for (Event e : events) {
+                        if (e.sequence <= cursor) continue;
+                        text.append("id: ").append(e.sequence).append("\nevent: sighting\ndata: ").append(e.json).append("\n\n");
+                        cursor = e.sequence;
+                    }
+                }
+                if (text.length() == 0) text.append(": ping\n\n");
+
+                byte[] data = text.toString().getBytes("UTF-8");
+                out.write(data);
+                out.flush();
+                bytesSent.addAndGet(data.length);
+                text.setLength(0);
+            }
+        } finally {
+            openStreams.decrementAndGet();
+        }
+    }
+
+    /**
+     * Sequence of the oldest event still kept, guarded by this
+     */
+    private long oldestSequence() {
+        return (events.isEmpty() ? nextSequence : events.get(0).sequence);
+    }
+
+    private byte[] speciesJson() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, "UTF-8"));
+        writer.beginArray();
+        for (String name : SPECIES) writer.beginObject().name("name").value(name).endObject();
+        writer.endArray();
+        writer.close();
+        return out.toByteArray();
+    }
+
+    private byte[] renderSightings() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(sightings.size() * (descriptionLength + 100));
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, "UTF-8"));
+        writer.beginArray();
+        for (Row row : sightings) row.write(writer);
+        writer.endArray();
+        writer.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * Sends a response, throttled to the bandwidth
+     */
+    private void respond(HttpExchange exchange, int status, byte[] data, String encoding) throws IOException, InterruptedException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        if (encoding != null) exchange.getResponseHeaders().set("Content-Encoding", encoding);
+        drain(exchange.getRequestBody());
+        exchange.sendResponseHeaders(status, data.length);
+
+        OutputStream out = exchange.getResponseBody();
+        int chunk = (bandwidth > 0 ? (int)Math.max(1024, Math.min(64 * 1024, bandwidth / 20)) : data.length);
+        for (int off = 0; off < data.length; off += chunk) {
+            int len = Math.min(chunk, data.length - off);
+            out.write(data, off, len);
+            if (bandwidth > 0) {
+                out.flush();
+                Thread.sleep(len * 1000L / bandwidth);
+            }
+        }
+        out.close();
+        bytesSent.addAndGet(data.length);
+    }
+
+    private String description(Random data) {
+        StringBuilder d = new StringBuilder(descriptionLength + 16);
+        while (d.length() < descriptionLength) {
+            if (d.length() > 0) d.append(' ');
+            d.append(WORDS[data.nextInt(WORDS.length)]);
+        }
+        d.setLength(descriptionLength);
+        return d.toString();
+    }
+
+    private static String formatTime(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(millis));
+    }
+
+    private static String string(JsonElement e) {
+        return (e == null || e.isJsonNull() ? null : e.getAsString());
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buf = new byte[4096];
+        while (in.read(buf) != -1) {
+            // Discard
+        }
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4);
+        GZIPOutputStream gz = new GZIPOutputStream(bytes);
+        gz.write(data);
+        gz.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * One stored Sighting, in duck-be's fields
+     */
+    private static class Row {
+
+        final String id;
+        final String species;
+        final String description;
+        final String dateTime;
+        final int count;
+
+        Row(String id, String species, String description, String dateTime, int count) {
+            this.id = id;
+            this.species = species;
+            this.description = description;
+            this.dateTime = dateTime;
+            this.count = count;
+        }
+
+        String toJson() throws IOException {
+            StringWriter out = new StringWriter();
+            JsonWriter writer = new JsonWriter(out);
+            write(writer);
+            writer.close();
+            return out.toString();
+        }
+
+        void write(JsonWriter writer) throws IOException {
+            writer.beginObject();
+            writer.name("id").value(id);
+            writer.name("species").value(species);
+            writer.name("description").value(description);
+            writer.name("dateTime").value(dateTime);
+            writer.name("count").value(count);
+            writer.endObject();
+        }
+    }
+
+    /**
+     * One event of the Sighting stream
+     */
+    private static class Event {
+
+        final long sequence;
+        final String json;
+
+        Event(long sequence, String json) {
+            this.sequence = sequence;
+            this.json = json;
+        }
+    }
+
+    /**
+     * Species names the server accepts
+     * @return Names
+     */
+    public static List<String> getSpeciesNames() {
+        return Arrays.asList(SPECIES);
+    }
+}
@@ -0,0 +1,153 @@
+package net.markmakinen.duckclient.loadtest;
+
+import net.markmakinen.duckclient.backend.BackendClient;
+import net.markmakinen.duckclient.backend.BackendExecutors;
+import net.markmakinen.duckclient.backend.DiskResponseCache;
+import net.markmakinen.duckclient.backend.SightingDelta;
+import net.markmakinen.duckclient.backend.SightingSaveListener;
+import net.markmakinen.duckclient.backend.SightingsSyncListener;
+import net.markmakinen.duckclient.model.Sighting;
+import net.markmakinen.duckclient.model.SortedSightings;
+import net.markmakinen.duckclient.model.Species;
+import net.markmakinen.duckclient.model.SpeciesRegistry;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+ * Measures the heap the app keeps per Sighting once the listing is loaded: the SortedSightings listing and
+ * everything the BackendClient holds, with the response cache enabled like in the app. For comparison, the
+ * same is measured with the listing kept as an ArrayList of Sightings like before, with the same client.
+ * A full sync is made, one Sighting is saved and a second full sync parses and compares the whole changed
+ * listing, and a third one is answered with a 304 from the sync state.
+ *
+ * Usage: Footprint [sightings], 100000 by default. Run with a fixed heap, e.g. -Xms1g -Xmx1g, for stable numbers.
+ */
+public class Footprint {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable r) {
+            r.run();
+        }
+    };
+
+    private static final long SETTLE_MILLIS = 7000;     // Longer than HttpURLConnection's 5 s keep-alive
+
+    private static Object[] held;   // What is measured, in a field so the JIT can't consider it unreachable
+
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args) throws Exception {
+        int size = (args.length > 0 ? Integer.parseInt(args[0]) : 100000);
+
+        DuckServer server = new DuckServer();
+        server.setDatasetSize(size);
+        server.setETags(true);
+        server.start();
+
+        BackendClient client = new BackendClient(server.getURI(), BackendExecutors.newWorkerPool(1, 1), DIRECT);
+        client.setResponseCache(new DiskResponseCache(Files.createTempDirectory("duck-cache").toFile(), 256 * 1024 * 1024));
+        // The listing gets the saved Sighting right away and the changes of the next sync after it
+        ArrayList<Sighting> list = sync(client).getAdded();
+        Sighting saved = save(client);
+        list.add(saved);
+        SightingDelta second = sync(client);
+        for (Sighting s : second.getAdded()) {
+            if (!s.getSightingId().equals(saved.getSightingId())) list.add(s);
+        }
+        SightingDelta third = sync(client);     // 304
+        Thread.sleep(SETTLE_MILLIS);        // Idle kept-alive connections and their buffers are closed meanwhile
+
+        held = new Object[] { client, null, list };
+        list = null;
+        long withList = usedAfterGc();
+        held[1] = SortedSightings.of((ArrayList<Sighting>)held[2]);    // The same rows and ID instances
+        long withBoth = usedAfterGc();
+        held[2] = null;
+        long withListing = usedAfterGc();
+        held = null;
+        client = null;
+        long released = usedAfterGc();
+
+        System.out.printf("%d sightings, second sync %d changes, third sync %d changes%n", size,
+                second.getAdded().size() + second.getChanged().size(), third.getAdded().size() + third.getChanged().size());
+        System.out.printf("Before, ArrayList<Sighting> and the client: %.1f B/sighting%n", (withList - released) / (double)size);
+        System.out.printf("After, SortedSightings and the client: %.1f B/sighting%n", (withListing - released) / (double)size);
+        System.out.printf("While both are held: %.1f B/sighting%n", (withBoth - released) / (double)size);
+        server.stop();
+        System.exit(0);
+    }
+
+    private static SightingDelta sync(BackendClient client) throws InterruptedException {
+        final SightingDelta[] result = new SightingDelta[1];
+        final String[] error = new String[1];
+        final CountDownLatch latch = new CountDownLatch(1);
+        client.syncSightings(true, new SightingsSyncListener() {
+            @Override
+            public void gotSightingsChunk(ArrayList<Sighting> chunk) {
+            }
+
+            @Override
+            public void synced(SightingDelta delta) {
+                result[0] = delta;
+                latch.countDown();
+            }
+
+            @Override
+            public void gotError(String msg) {
+                error[0] = msg;
+                latch.countDown();
+            }
+        });
+        latch.await();
+        if (error[0] != null) throw new IllegalStateException("Sync failed: " + error[0]);
+        return result[0];
+    }
+
+    private static Sighting save(BackendClient client) throws InterruptedException {
+        ArrayList<Species> species = new ArrayList<>();
+        for (String name : DuckServer.getSpeciesNames()) species.add(SpeciesRegistry.getInstance().intern(name));
+        SpeciesRegistry.getInstance().setAllowedIfEmpty(species);
+
+        Sighting s = new Sighting();
+        s.setSpecies(species.get(0));
+        s.setCount(1);
+        s.setDescription("Footprint");
+        s.setDateTime(new DateTime(DateTimeZone.UTC));
+        final Sighting[] result = new Sighting[1];
+        final String[] error = new String[1];
+        final CountDownLatch latch = new CountDownLatch(1);
+        client.saveSighting(s, new SightingSaveListener() {
+            @Override
+            public void saveCompleted(Sighting saved) {
+                result[0] = saved;
+                latch.countDown();
+            }
+
+            @Override
+            public void saveFailed(String msg) {
+                error[0] = msg;
+                latch.countDown();
+            }
+        });
+        latch.await();
+        if (error[0] != null || result[0] == null) throw new IllegalStateException("Save failed: " + error[0]);
+        return result[0];
+    }
+
+    private static long usedAfterGc() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(50);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+}
@@ -0,0 +1,410 @@
+package net.markmakinen.duckclient.loadtest;
+
+import net.markmakinen.duckclient.backend.BackendClient;
+import net.markmakinen.duckclient.backend.BackendExecutors;
+import net.markmakinen.duckclient.backend.ClientMetrics;
+import net.markmakinen.duckclient.backend.DiskResponseCache;
+import net.markmakinen.duckclient.backend.GotSightingsListener;
+import net.markmakinen.duckclient.backend.GotSpeciesListener;
+import net.markmakinen.duckclient.backend.LiveUpdateListener;
+import net.markmakinen.duckclient.backend.RequestHandle;
+import net.markmakinen.duckclient.backend.SightingDelta;
+import net.markmakinen.duckclient.backend.SightingSaveListener;
+import net.markmakinen.duckclient.backend.SightingsSyncListener;
+import net.markmakinen.duckclient.model.Sighting;
+import net.markmakinen.duckclient.model.Species;
+import net.markmakinen.duckclient.model.SpeciesRegistry;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives concurrent BackendClient fetches and saves against a DuckServer and reports throughput,
+ * latency percentiles and the client's heap use.
+ *
+ * Options, as --name=value:
+ *   size               Sightings on the server (1000)
+ *   description        Length of their descriptions (60)
+ *   clients            BackendClient instances, like app processes (2)
+ *   concurrency        Calls in flight at once over all clients (16)
+ *   requests           Calls to make (1000)
+ *   saves              Fraction of the calls that are saves (0.1)
+ *   latency            Server delay per response in milliseconds (0)
+ *   bandwidth          Server bandwidth per response in bytes per second, 0 for unlimited (0)
+ *   errors             Fraction of requests the server fails (0)
+ *   error-status       HTTP status of the failures, 0 to drop the connection (500)
+ *   etags              true to let the server answer 304 and the clients cache (false)
+ *   live               true to subscribe every client to the live Sighting stream (false)
+ *   stream-lifetime    Milliseconds before the server closes a stream, 0 for never (0)
+ *   deadline           Milliseconds before a call fails with an error, 0 for none (0)
+ *   cancels            Fraction of the fetches cancelled within 20 ms of starting (0)
+ *
+ * Fetches of one client are coalesced while one is in flight, as in the app, so the server
+ * sees fewer requests than there are calls; the request metrics show what went over the wire.
+ * With live updates, every client should get every save of the other clients through its stream;
+ * its own saves it knows from the responses. The delivery time is from the save call to the Sighting arriving.
+ * A cancelled fetch only aborts its request if no coalesced call still waits for it.
+ */
+public class LoadTest {
+
+    private static final HashMap<String, String> DEFAULTS = new HashMap<>();
+
+    static {
+        DEFAULTS.put("size", "1000");
+        DEFAULTS.put("description", "60");
+        DEFAULTS.put("clients", "2");
+        DEFAULTS.put("concurrency", "16");
+        DEFAULTS.put("requests", "1000");
+        DEFAULTS.put("saves", "0.1");
+        DEFAULTS.put("latency", "0");
+        DEFAULTS.put("bandwidth", "0");
+        DEFAULTS.put("errors", "0");
+        DEFAULTS.put("error-status", "500");
+        DEFAULTS.put("etags", "false");
+        DEFAULTS.put("live", "false");
+        DEFAULTS.put("stream-lifetime", "0");
+        DEFAULTS.put("deadline", "0");
+        DEFAULTS.put("cancels", "0");
+    }
+
+    // Listeners are called right on the worker threads, there is no main thread here
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable r) {
+            r.run();
+        }
+    };
+
+    private static final String DESCRIPTION = "Load test sighting ";     // Followed by the client index and System.nanoTime of the save
+
+    private final HashMap<String, String> options;
+    private final Random random = new Random(1);
+
+    LoadTest(HashMap<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        HashMap<String, String> options = new HashMap<>(DEFAULTS);
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            String name = (eq > 0 ? arg.substring(2, eq) : arg.substring(2));
+            if (!arg.startsWith("--") || !DEFAULTS.containsKey(name)) {
+                System.err.println("Unknown option " + arg + ", the options are " + DEFAULTS.keySet());
+                System.exit(1);
+            }
+            options.put(name, eq > 0 ? arg.substring(eq + 1) : "true");
+        }
+        new LoadTest(options).run();
+        System.exit(0);
+    }
+
+    void run() throws Exception {
+        DuckServer server = new DuckServer();
+        server.setDatasetSize(intOption("size"));
+        server.setDescriptionLength(intOption("description"));
+        server.setLatency(intOption("latency"));
+        server.setBandwidth(Long.parseLong(options.get("bandwidth")));
+        server.setErrors(Double.parseDouble(options.get("errors")), intOption("error-status"));
+        server.setETags(Boolean.parseBoolean(options.get("etags")));
+        server.setStreamLifetime(Long.parseLong(options.get("stream-lifetime")));
+        server.start();
+        System.out.println("Server at " + server.getURI() + " with " + server.getSightingCount() + " sightings");
+
+        int concurrency = intOption("concurrency");
+        ClientMetrics metrics = new ClientMetrics();
+        BackendClient[] clients = new BackendClient[intOption("clients")];
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = new BackendClient(server.getURI(), BackendExecutors.newWorkerPool(concurrency, concurrency), DIRECT);
+            clients[i].setMetricsListener(metrics);
+            if (Boolean.parseBoolean(options.get("etags"))) {
+                clients[i].setResponseCache(new DiskResponseCache(
+                        Files.createTempDirectory("duck-cache").toFile(), 64 * 1024 * 1024));
+            }
+        }
+        ArrayList<Species> species = fetchSpecies(clients[0]);
+
+        final Results live = new Results();
+        final AtomicInteger gaps = new AtomicInteger();
+        boolean liveUpdates = Boolean.parseBoolean(options.get("live"));
+        if (liveUpdates) {
+            // Like the app: subscribe, then sync once
+            for (int i = 0; i < clients.length; i++) {
+                clients[i].startLiveUpdates(newLiveListener(i, live, gaps));
+                sync(clients[i]);
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (server.getOpenStreams() < clients.length && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        }
+        metrics.reset();
+
+        HeapSampler heap = new HeapSampler();
+        heap.start();
+
+        final Results fetches = new Results();
+        final Results saves = new Results();
+        final AtomicInteger withoutId = new AtomicInteger();
+        final AtomicInteger cancelled = new AtomicInteger();
+        final Semaphore inFlight = new Semaphore(concurrency);
+        int requests = intOption("requests");
+        double saveRatio = Double.parseDouble(options.get("saves"));
+        double cancelRatio = Double.parseDouble(options.get("cancels"));
+        int deadlineMillis = intOption("deadline");
+        ScheduledExecutorService canceller = Executors.newSingleThreadScheduledExecutor();
+        final CountDownLatch done = new CountDownLatch(requests);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            inFlight.acquire();
+            int index = i % clients.length;
+            BackendClient client = clients[index];
+            final long callStart = System.nanoTime();
+            RequestHandle handle;
+            if (random.nextDouble() < saveRatio) {
+                handle = client.saveSighting(newSighting(index, species), new SightingSaveListener() {
+                    @Override
+                    public void saveCompleted(Sighting saved) {
+                        saves.record(System.nanoTime() - callStart, true);
+                        if (saved == null) withoutId.incrementAndGet();
+                        inFlight.release();
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void saveFailed(String msg) {
+                        saves.record(System.nanoTime() - callStart, false);
+                        inFlight.release();
+                        done.countDown();
+                    }
+                });
+            } else {
+                handle = client.getSightings(new GotSightingsListener() {
+                    @Override
+                    public void gotSightingsChunk(ArrayList<Sighting> chunk) {
+                    }
+
+                    @Override
+                    public void gotSightings(ArrayList<Sighting> sightings) {
+                        fetches.record(System.nanoTime() - callStart, true);
+                        inFlight.release();
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void gotError(String msg) {
+                        fetches.record(System.nanoTime() - callStart, false);
+                        inFlight.release();
+                        done.countDown();
+                    }
+                });
+                if (random.nextDouble() < cancelRatio) {
+                    final RequestHandle fetch = handle;
+                    canceller.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            // A cancelled call gets no callback, so release its slot here
+                            if (!fetch.cancel()) return;
+                            cancelled.incrementAndGet();
+                            inFlight.release();
+                            done.countDown();
+                        }
+                    }, random.nextInt(20), TimeUnit.MILLISECONDS);
+                }
+            }
+            if (deadlineMillis > 0) handle.setDeadline(deadlineMillis);
+        }
+        done.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        canceller.shutdown();
+
+        if (liveUpdates) {
+            // Let the last saves reach every stream
+            int expected = (saves.count() - saves.failures.get()) * (clients.length - 1);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (live.count() < expected && System.currentTimeMillis() < deadline) Thread.sleep(10);
+            for (BackendClient client : clients) client.stopLiveUpdates();
+        }
+        heap.stopSampling();
+
+        System.out.println();
+        System.out.printf("%d calls in %.2f s, %.1f calls/s, %d in flight over %d clients%n",
+                requests, seconds, requests / seconds, concurrency, clients.length);
+        fetches.print("getSightings", seconds);
+        saves.print("saveSighting", seconds);
+        if (withoutId.get() > 0) System.out.println(withoutId.get() + " saves didn't get the saved sighting back");
+        if (cancelled.get() > 0) System.out.println(cancelled.get() + " fetches cancelled before they finished");
+        live.print("live delivery", seconds);
+        if (liveUpdates) System.out.println("Live updates: " + live.count() + " of " + (saves.count() - saves.failures.get()) * (clients.length - 1) +
+                " sightings saved by other clients delivered, " + gaps.get() + " gaps");
+        System.out.printf("Server: %d requests, %d injected failures, %.1f MB sent%n",
+                server.getRequests(), server.getErrors(), server.getBytesSent() / 1e6);
+        System.out.printf("Client heap: peak %.1f MB used, %.1f MB after GC%n", heap.peak / 1e6, heap.usedAfterGc() / 1e6);
+        System.out.println();
+        System.out.println(metrics.dump());
+
+        server.stop();
+    }
+
+    private LiveUpdateListener newLiveListener(int index, final Results live, final AtomicInteger gaps) {
+        final String others = DESCRIPTION + index + " ";
+        return new LiveUpdateListener() {
+            @Override
+            public void gotLiveUpdate(SightingDelta delta) {
+                long now = System.nanoTime();
+                for (Sighting s : delta.getAdded()) {
+                    String description = s.getDescription();
+                    // Own saves may arrive too if the stream is faster than the response, they aren't counted
+                    if (description != null && description.startsWith(DESCRIPTION) && !description.startsWith(others)) {
+                        live.record(now - Long.parseLong(description.substring(description.lastIndexOf(' ') + 1)), true);
+                    }
+                }
+            }
+
+            @Override
+            public void liveGap() {
+                gaps.incrementAndGet();
+            }
+        };
+    }
+
+    private void sync(BackendClient client) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        client.syncSightings(true, new SightingsSyncListener() {
+            @Override
+            public void gotSightingsChunk(ArrayList<Sighting> chunk) {
+            }
+
+            @Override
+            public void synced(SightingDelta delta) {
+                latch.countDown();
+            }
+
+            @Override
+            public void gotError(String msg) {
+                latch.countDown();
+            }
+        });
+        latch.await();
+    }
+
+    private ArrayList<Species> fetchSpecies(BackendClient client) throws InterruptedException {
+        final ArrayList<Species> species = new ArrayList<>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        client.getSpecies(new GotSpeciesListener() {
+            @Override
+            public void gotSpecies(ArrayList<Species> list) {
+                species.addAll(list);
+                latch.countDown();
+            }
+
+            @Override
+            public void gotError(String msg) {
+                latch.countDown();
+            }
+        });
+        latch.await();
+        if (species.isEmpty()) {
+            // Saves are validated against the species, so take them from the server directly
+            for (String name : DuckServer.getSpeciesNames()) species.add(SpeciesRegistry.getInstance().intern(name));
+            SpeciesRegistry.getInstance().setAllowed(species);
+        }
+        return species;
+    }
+
+    private Sighting newSighting(int index, ArrayList<Species> species) {
+        Sighting s = new Sighting();
+        s.setSpecies(species.get(random.nextInt(species.size())));
+        s.setCount(1 + random.nextInt(10));
+        s.setDescription(DESCRIPTION + index + " " + System.nanoTime());
+        s.setDateTime(new DateTime(DateTimeZone.UTC));
+        return s;
+    }
+
+    private int intOption(String name) {
+        return Integer.parseInt(options.get(name));
+    }
+
+    /**
+     * Latencies of one kind of call. All of them are kept, so the percentiles are exact.
+     */
+    private static class Results {
+
+        private long[] latencies = new long[1024];
+        private int count;
+        private final AtomicInteger failures = new AtomicInteger();
+
+        synchronized void record(long nanos, boolean success) {
+            if (!success) failures.incrementAndGet();
+            if (count == latencies.length) latencies = Arrays.copyOf(latencies, count * 2);
+            latencies[count++] = nanos;
+        }
+
+        synchronized int count() {
+            return count;
+        }
+
+        synchronized void print(String name, double seconds) {
+            if (count == 0) return;
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            System.out.printf("%-13s %6d calls %5d failed %8.1f/s   p50 %7.1f ms  p90 %7.1f ms  p99 %7.1f ms  p99.9 %7.1f ms  max %7.1f ms%n",
+                    name, count, failures.get(), count / seconds, percentile(sorted, 0.5), percentile(sorted, 0.9),
+                    percentile(sorted, 0.99), percentile(sorted, 0.999), sorted[count - 1] / 1e6);
+        }
+
+        private static double percentile(long[] sorted, double fraction) {
+            int index = (int)Math.ceil(fraction * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+        }
+    }
+
+    /**
+     * Samples the used heap while the test runs
+     */
+    private static class HeapSampler extends Thread {
+
+        private volatile boolean running = true;
+        volatile long peak;
+
+        HeapSampler() {
+            super("HeapSampler");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            Runtime runtime = Runtime.getRuntime();
+            while (running) {
+                peak = Math.max(peak, runtime.totalMemory() - runtime.freeMemory());
+                try {
+                    TimeUnit.MILLISECONDS.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        void stopSampling() {
+            running = false;
+        }
+
+        long usedAfterGc() {
+            Runtime runtime = Runtime.getRuntime();
+            System.gc();
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package net.markmakinen.duckclient.backend;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import net.markmakinen.duckclient.model.Sighting;
+import net.markmakinen.duckclient.model.Species;
+import net.markmakinen.duckclient.model.SpeciesRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Failed requests must reach every caller and leave nothing in flight
+ */
+public class BackendClientTest {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable r) {
+            r.run();
+        }
+    };
+
+    private HttpServer server;
+    private volatile String body;
+    private volatile String idempotencyKey;     // Of the last request
+    private volatile String etag;               // Sent with the body and checked against If-None-Match, if set
+    private final CountDownLatch release = new CountDownLatch(1);   // Holds the responses until both calls are made
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                idempotencyKey = exchange.getRequestHeaders().getFirst("Idempotency-Key");
+                if (etag != null) {
+                    exchange.getResponseHeaders().set("ETag", etag);
+                    if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                        exchange.sendResponseHeaders(304, -1);
+                        exchange.close();
+                        return;
+                    }
+                }
+                byte[] bytes = body.getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, bytes.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(bytes);
+                out.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private BackendClient newClient() {
+        URI uri = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+        return new BackendClient(uri, BackendExecutors.newWorkerPool(2, 2), DIRECT);
+    }
+
+    /**
+     * Counts the errors of getSightings calls
+     */
+    private static class Errors implements GotSightingsListener {
+
+        final CountDownLatch done;
+
+        Errors(CountDownLatch done) {
+            this.done = done;
+        }
+
+        @Override
+        public void gotSightingsChunk(ArrayList<Sighting> chunk) {
+        }
+
+        @Override
+        public void gotSightings(ArrayList<Sighting> sightings) {
+        }
+
+        @Override
+        public void gotError(String msg) {
+            done.countDown();
+        }
+    }
+
+    @Test
+    public void malformedListingFailsLeaderFollowerAndNextCall() throws InterruptedException {
+        body = "[{\"id\":\"1\",\"count\":\"x\"}]";
+        BackendClient client = newClient();
+
+        CountDownLatch both = new CountDownLatch(2);
+        client.getSightings(new Errors(both));
+        client.getSightings(new Errors(both));     // Joins the first one
+        release.countDown();
+        assertTrue("Both calls got an error", both.await(5, TimeUnit.SECONDS));
+
+        CountDownLatch next = new CountDownLatch(1);
+        client.getSightings(new Errors(next));
+        assertTrue("A later call doesn't join the failed one", next.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void speciesWithoutNameFailsTheCall() throws InterruptedException {
+        body = "[{\"name\":\"mallard\"},{\"latin\":\"Anas\"}]";
+        release.countDown();
+        final CountDownLatch done = new CountDownLatch(1);
+        final String[] error = new String[1];
+        newClient().getSpecies(new GotSpeciesListener() {
+            @Override
+            public void gotSpecies(ArrayList<Species> species) {
+                done.countDown();
+            }
+
+            @Override
+            public void gotError(String msg) {
+                error[0] = msg;
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("species name missing", error[0]);
+    }
+
+    @Test
+    public void saveSendsLocalIdAsIdempotencyKey() throws InterruptedException {
+        body = "{\"id\":\"7\",\"species\":\"mallard\",\"count\":1}";
+        release.countDown();
+        Species mallard = SpeciesRegistry.getInstance().intern("mallard");
+        SpeciesRegistry.getInstance().setAllowed(Collections.singletonList(mallard));
+
+        Sighting sighting = new Sighting();
+        sighting.setSpecies(mallard);
+        sighting.setCount(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        newClient().saveSighting(sighting, new SightingSaveListener() {
+            @Override
+            public void saveCompleted(Sighting saved) {
+                done.countDown();
+            }
+
+            @Override
+            public void saveFailed(String msg) {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(sighting.getLocalId(), idempotencyKey);
+    }
+
+    @Test
+    public void fullSyncIsNeededUntilOneSucceeds() throws InterruptedException {
+        body = "[{\"id\":\"1\",\"species\":\"mallard\",\"count\":1,\"dateTime\":\"2016-11-08T10:00:00Z\"}]";
+        release.countDown();
+        BackendClient client = newClient();
+        assertTrue(client.needsFullSync());
+        syncFull(client, new ArrayList<Sighting>());
+        assertFalse(client.needsFullSync());
+
+        client.requestFullSync();
+        assertTrue(client.needsFullSync());
+    }
+
+    @Test
+    public void notModifiedFullSyncIsAnsweredFromTheSyncState() throws IOException, InterruptedException {
+        body = "[{\"id\":\"1\",\"species\":\"mallard\",\"count\":1,\"dateTime\":\"2016-11-08T10:00:00Z\"}]";
+        etag = "\"v1\"";
+        release.countDown();
+        File dir = Files.createTempDirectory("cache").toFile();
+        BackendClient client = newClient();
+        client.setResponseCache(new DiskResponseCache(dir, 1024 * 1024));
+
+        ArrayList<Sighting> chunks = new ArrayList<>();
+        assertEquals(1, syncFull(client, chunks).getAdded().size());
+        assertEquals(1, chunks.size());
+
+        // Parsing the cached body again would fail now
+        for (File f : dir.listFiles()) {
+            if (f.getName().endsWith(".body")) Files.write(f.toPath(), "[{".getBytes("UTF-8"));
+        }
+        chunks.clear();
+        assertTrue(syncFull(client, chunks).isEmpty());
+        assertTrue(chunks.isEmpty());
+    }
+
+    /**
+     * Makes a full sync and waits for its result
+     * @param chunks Gets the chunks of the listing
+     */
+    private static SightingDelta syncFull(BackendClient client, final ArrayList<Sighting> chunks) throws InterruptedException {
+        final SightingDelta[] result = new SightingDelta[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        client.syncSightings(true, new SightingsSyncListener() {
+            @Override
+            public void gotSightingsChunk(ArrayList<Sighting> chunk) {
+                chunks.addAll(chunk);
+            }
+
+            @Override
+            public void synced(SightingDelta delta) {
+                result[0] = delta;
+                done.countDown();
+            }
+
+            @Override
+            public void gotError(String msg) {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertNotNull("Sync succeeded", result[0]);
+        return result[0];
+    }
+}
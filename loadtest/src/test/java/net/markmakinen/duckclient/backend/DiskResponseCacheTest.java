@@ -0,0 +1,69 @@
+package net.markmakinen.duckclient.backend;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class DiskResponseCacheTest {
+
+    private static String read(DiskResponseCache.Entry entry) throws IOException {
+        InputStream in = entry.openBody();
+        try {
+            StringBuilder sb = new StringBuilder();
+            int b;
+            while ((b = in.read()) != -1) sb.append((char)b);
+            return sb.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void put(DiskResponseCache cache, String path, String body, String etag) throws IOException {
+        DiskResponseCache.Editor editor = cache.edit(path);
+        editor.getStream().write(body.getBytes("UTF-8"));
+        editor.commit(etag, null);
+    }
+
+    @Test
+    public void newEntryReplacesBodyAndValidators() throws IOException {
+        DiskResponseCache cache = new DiskResponseCache(Files.createTempDirectory("cache").toFile(), 1024);
+        put(cache, "/species", "[1]", "\"a\"");
+        put(cache, "/species", "[2]", "\"b\"");
+
+        DiskResponseCache.Entry entry = cache.get("/species");
+        assertEquals("\"b\"", entry.getETag());
+        assertEquals("[2]", read(entry));
+    }
+
+    @Test
+    public void abortedEditKeepsOldEntry() throws IOException {
+        DiskResponseCache cache = new DiskResponseCache(Files.createTempDirectory("cache").toFile(), 1024);
+        put(cache, "/species", "[1]", "\"a\"");
+        DiskResponseCache.Editor editor = cache.edit("/species");
+        editor.getStream().write('[');
+        editor.abort();
+
+        DiskResponseCache.Entry entry = cache.get("/species");
+        assertEquals("\"a\"", entry.getETag());
+        assertEquals("[1]", read(entry));
+        assertNull(cache.get("/sightings"));
+    }
+
+    @Test
+    public void leftoverTempFilesAreDeleted() throws IOException {
+        File dir = Files.createTempDirectory("cache").toFile();
+        File leftover = new File(dir, "0123456789abcdef.tmp");
+        new FileOutputStream(leftover).close();
+
+        new DiskResponseCache(dir, 1024);
+        assertFalse(leftover.exists());
+    }
+}
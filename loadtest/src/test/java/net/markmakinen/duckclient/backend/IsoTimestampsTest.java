@@ -0,0 +1,87 @@
+package net.markmakinen.duckclient.backend;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * The hand-written parser and formatter must agree with Joda, which they replaced
+ */
+public class IsoTimestampsTest {
+
+    private static final DateTimeFormatter JODA_FORMAT = ISODateTimeFormat.dateTimeNoMillis().withZoneUTC();
+
+    private static long jodaMillis(String s) {
+        return new DateTime(s, DateTimeZone.UTC).getMillis();
+    }
+
+    private static void assertInvalid(String s) {
+        try {
+            IsoTimestamps.parseMillis(s);
+            fail("Parsed " + s);
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void roundTripsLikeJoda() {
+        Random random = new Random(1);
+        long min = jodaMillis("0001-01-01T00:00:00Z");
+        long max = jodaMillis("9999-12-31T23:59:59Z");
+        for (int i = 0; i < 100000; i++) {
+            long millis = min + (long)(random.nextDouble() * (max - min));
+            String text = IsoTimestamps.format(millis);
+            assertEquals(JODA_FORMAT.print(millis), text);
+            assertEquals(text, millis - ((millis % 1000) + 1000) % 1000, IsoTimestamps.parseMillis(text));
+        }
+    }
+
+    @Test
+    public void parsesFractions() {
+        assertEquals(jodaMillis("2016-12-16T20:10:00.500Z"), IsoTimestamps.parseMillis("2016-12-16T20:10:00.5Z"));
+        assertEquals(jodaMillis("2016-12-16T20:10:00.123Z"), IsoTimestamps.parseMillis("2016-12-16T20:10:00.123456789Z"));
+        assertInvalid("2016-12-16T20:10:00.Z");
+    }
+
+    @Test
+    public void leapYears() {
+        assertEquals(jodaMillis("2016-02-29T12:00:00Z"), IsoTimestamps.parseMillis("2016-02-29T12:00:00Z"));
+        assertEquals(jodaMillis("2000-02-29T12:00:00Z"), IsoTimestamps.parseMillis("2000-02-29T12:00:00Z"));
+        assertEquals("2000-02-29T12:00:00Z", IsoTimestamps.format(jodaMillis("2000-02-29T12:00:00Z")));
+        assertInvalid("2015-02-29T12:00:00Z");
+        assertInvalid("1900-02-29T12:00:00Z");
+        assertEquals(jodaMillis("2016-03-01T00:00:00Z"), IsoTimestamps.parseMillis("2016-02-29T23:59:59Z") + 1000);
+    }
+
+    @Test
+    public void rejectsOutOfRangeFields() {
+        assertInvalid("2016-13-01T00:00:00Z");
+        assertInvalid("2016-00-01T00:00:00Z");
+        assertInvalid("2016-04-31T00:00:00Z");
+        assertInvalid("2016-12-16T24:00:00Z");
+        assertInvalid("2016-12-16T20:60:00Z");
+        assertInvalid("2016-12-16T20:10:60Z");
+        assertInvalid("yesterday at noon, UTC");
+    }
+
+    @Test
+    public void otherLayoutsGoToJoda() {
+        assertEquals(jodaMillis("2016-12-16T20:10:00Z"), IsoTimestamps.parseMillis("2016-12-16T22:10:00+02:00"));
+        assertEquals(jodaMillis("2016-12-16T20:10Z"), IsoTimestamps.parseMillis("2016-12-16T20:10Z"));
+    }
+
+    @Test
+    public void formatsYearsOutsideFourDigitsLikeJoda() {
+        long[] millis = {jodaMillis("-0001-06-01T00:00:00Z"), jodaMillis("10000-01-01T00:00:00Z"), Long.MIN_VALUE / 2};
+        for (long m : millis) assertEquals(JODA_FORMAT.print(m), IsoTimestamps.format(m));
+    }
+}
@@ -0,0 +1,74 @@
+package net.markmakinen.duckclient.backend;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+
+import net.markmakinen.duckclient.model.Sighting;
+import net.markmakinen.duckclient.model.SpeciesRegistry;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Malformed field values must end as JsonParseException, which the client reports as a failed request
+ */
+public class JsonCodecTest {
+
+    private final JsonCodec codec = new JsonCodec(SpeciesRegistry.getInstance());
+
+    private Sighting read(String json) throws IOException {
+        return codec.readSighting(new JsonReader(new StringReader(json)));
+    }
+
+    private void assertInvalid(String json, String path) throws IOException {
+        try {
+            read(json);
+            fail("Parsed " + json);
+        } catch (JsonParseException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(path));
+        }
+    }
+
+    @Test
+    public void readsValidSighting() throws IOException {
+        Sighting s = read("{\"id\":\"1\",\"dateTime\":\"2016-12-16T20:10:00Z\",\"species\":\"mallard\",\"count\":3}");
+        assertEquals("1", s.getSightingId());
+        assertEquals(3, s.getCount());
+    }
+
+    @Test
+    public void countThatIsNotANumber() throws IOException {
+        assertInvalid("{\"id\":\"1\",\"count\":\"x\"}", "$.count");
+    }
+
+    @Test
+    public void countWithFraction() throws IOException {
+        assertInvalid("{\"count\":1.5}", "$.count");
+    }
+
+    @Test
+    public void dateTimeThatIsNotATimestamp() throws IOException {
+        assertInvalid("{\"id\":\"1\",\"dateTime\":\"yesterday\"}", "$.dateTime");
+    }
+
+    @Test
+    public void dateTimeOutOfRange() throws IOException {
+        assertInvalid("{\"dateTime\":\"2016-13-45T25:00:00Z\"}", "$.dateTime");
+    }
+
+    @Test
+    public void speciesObjectWithoutName() throws IOException {
+        try {
+            codec.readSpecies(new JsonReader(new StringReader("{\"latin\":\"Anas\"}")));
+            fail("Parsed a species without a name");
+        } catch (JsonParseException e) {
+            assertEquals("species name missing", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package net.markmakinen.duckclient.backend;
+
+import net.markmakinen.duckclient.model.Sighting;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The outbox sends several Sightings at once and doesn't get stuck when its store fails
+ */
+public class SightingOutboxTest {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable r) {
+            r.run();
+        }
+    };
+
+    /**
+     * Keeps the pending Sightings in memory, optionally failing the first removal
+     */
+    private static class MemoryStore implements OutboxStore {
+
+        final ArrayList<String> stored = new ArrayList<>();
+        volatile boolean failNextRemove = false;
+
+        @Override
+        public synchronized ArrayList<Sighting> loadPending() {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public synchronized void addPending(Sighting sighting) {
+            stored.add(sighting.getLocalId());
+        }
+
+        @Override
+        public synchronized void removePending(String localId) {
+            if (failNextRemove) {
+                failNextRemove = false;
+                throw new IllegalStateException("database is locked");
+            }
+            stored.remove(localId);
+        }
+    }
+
+    /**
+     * Takes a while to send, and remembers how many sends ran at once
+     */
+    private static class SlowSender implements SightingOutbox.Sender {
+
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final AtomicInteger sends = new AtomicInteger();
+
+        @Override
+        public Sighting send(Sighting sighting, int retries) throws IOException {
+            int now = running.incrementAndGet();
+            while (true) {
+                int max = maxRunning.get();
+                if (now <= max || maxRunning.compareAndSet(max, now)) break;
+            }
+            sends.incrementAndGet();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } finally {
+                running.decrementAndGet();
+            }
+            return sighting;
+        }
+    }
+
+    private static SightingSaveListener countDown(final CountDownLatch done) {
+        return new SightingSaveListener() {
+            @Override
+            public void saveCompleted(Sighting saved) {
+                done.countDown();
+            }
+
+            @Override
+            public void saveFailed(String msg) {
+            }
+        };
+    }
+
+    @Test
+    public void sendsSeveralSightingsAtOnce() throws InterruptedException {
+        MemoryStore store = new MemoryStore();
+        SlowSender sender = new SlowSender();
+        SightingOutbox outbox = new SightingOutbox(store, sender, DIRECT);
+
+        CountDownLatch done = new CountDownLatch(12);
+        for (int i = 0; i < 12; i++) outbox.add(new Sighting(), countDown(done));
+        assertTrue("Everything was sent", done.await(5, TimeUnit.SECONDS));
+        assertTrue("Sends overlapped", sender.maxRunning.get() > 1);
+        assertTrue("Sends stayed within the window", sender.maxRunning.get() <= 4);
+        synchronized (store) {
+            assertTrue(store.stored.isEmpty());
+        }
+    }
+
+    @Test
+    public void failingStoreIsRetried() throws InterruptedException {
+        MemoryStore store = new MemoryStore();
+        store.failNextRemove = true;
+        SlowSender sender = new SlowSender();
+        SightingOutbox outbox = new SightingOutbox(store, sender, DIRECT);
+
+        CountDownLatch done = new CountDownLatch(1);
+        outbox.add(new Sighting(), countDown(done));
+        assertEquals(1, waitForSends(sender, 1));
+        Thread.sleep(200);     // Let the failed removal schedule its retry
+        outbox.flushNow();
+        assertTrue("Sent again and removed", done.await(5, TimeUnit.SECONDS));
+        assertEquals(2, sender.sends.get());
+        synchronized (store) {
+            assertTrue(store.stored.isEmpty());
+        }
+    }
+
+    private static int waitForSends(SlowSender sender, int count) throws InterruptedException {
+        for (int i = 0; i < 100 && sender.sends.get() < count; i++) Thread.sleep(10);
+        return sender.sends.get();
+    }
+}
@@ -0,0 +1,99 @@
+package net.markmakinen.duckclient.backend;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The live stream must survive events it can't parse
+ */
+public class SightingStreamTest {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable r) {
+            r.run();
+        }
+    };
+
+    private HttpServer server;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final CountDownLatch stop = new CountDownLatch(1);
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/sightings/stream", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                // The first connection sends an invalid Sighting, the reconnect a valid one
+                String event = (connections.incrementAndGet() == 1 ?
+                        "id: 1\nevent: sighting\ndata: {\"id\":\"a\",\"count\":\"x\"}\n\n" :
+                        "id: 2\nevent: sighting\ndata: {\"id\":\"b\",\"dateTime\":\"2016-12-16T20:10:00Z\",\"count\":1}\n\n");
+                exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = exchange.getResponseBody();
+                out.write(event.getBytes("UTF-8"));
+                out.flush();
+                try {
+                    stop.await(10, TimeUnit.SECONDS);     // Keep the stream open
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        stop.countDown();
+        server.stop(0);
+    }
+
+    @Test
+    public void invalidEventReportsGapAndReconnects() throws InterruptedException {
+        URI uri = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+        BackendClient client = new BackendClient(uri, BackendExecutors.newWorkerPool(1, 1), DIRECT);
+
+        final CountDownLatch gap = new CountDownLatch(1);
+        final CountDownLatch update = new CountDownLatch(1);
+        final String[] received = new String[1];
+        client.startLiveUpdates(new LiveUpdateListener() {
+            @Override
+            public void gotLiveUpdate(SightingDelta delta) {
+                received[0] = delta.getAdded().get(0).getSightingId();
+                update.countDown();
+            }
+
+            @Override
+            public void liveGap() {
+                gap.countDown();
+            }
+        });
+
+        assertTrue("The lost Sighting was reported", gap.await(5, TimeUnit.SECONDS));
+        assertTrue("The stream reconnected", update.await(5, TimeUnit.SECONDS));
+        assertEquals("b", received[0]);
+        client.stopLiveUpdates();
+    }
+}
@@ -0,0 +1,133 @@
+package net.markmakinen.duckclient.backend;
+
+import net.markmakinen.duckclient.model.Sighting;
+import net.markmakinen.duckclient.model.SpeciesRegistry;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Merging sync results into the sync state reports exactly what changed
+ */
+public class SightingSyncStateTest {
+
+    private static Sighting sighting(String id, long millis, int count) {
+        Sighting s = new Sighting();
+        s.setSightingId(new String(id));    // A new instance, like a parsed one
+        s.setDateTime(new DateTime(millis, DateTimeZone.UTC));
+        s.setCount(count);
+        s.setSpecies(SpeciesRegistry.getInstance().intern("mallard"));
+        s.setDescription("Sighting " + id);
+        return s;
+    }
+
+    private static List<String> ids(List<Sighting> sightings) {
+        ArrayList<String> ids = new ArrayList<>();
+        for (Sighting s : sightings) ids.add(s.getSightingId());
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private static SightingDelta full(SightingSyncState state, Sighting... all) {
+        return state.mergeFull(Arrays.asList(all), state.mark(), null);
+    }
+
+    @Test
+    public void fullMergeFindsAddedChangedAndRemoved() {
+        SightingSyncState state = new SightingSyncState();
+        SightingDelta first = full(state, sighting("1", 1000, 1), sighting("2", 2000, 1), sighting("3", 3000, 1));
+        assertEquals(Arrays.asList("1", "2", "3"), ids(first.getAdded()));
+        assertEquals(3000, state.getHighWaterMark());
+
+        SightingDelta second = full(state, sighting("1", 1000, 1), sighting("2", 2000, 5), sighting("4", 4000, 1));
+        assertEquals(Arrays.asList("4"), ids(second.getAdded()));
+        assertEquals(Arrays.asList("2"), ids(second.getChanged()));
+        assertEquals(Arrays.asList("3"), second.getRemoved());
+        assertTrue(second.isFullSync());
+        assertEquals(4000, state.getHighWaterMark());
+
+        // Removing the newest one moves the high-water mark back
+        SightingDelta third = full(state, sighting("1", 1000, 1), sighting("2", 2000, 5));
+        assertEquals(Arrays.asList("4"), third.getRemoved());
+        assertEquals(2000, state.getHighWaterMark());
+        assertTrue(full(state, sighting("1", 1000, 1), sighting("2", 2000, 5)).isEmpty());
+    }
+
+    @Test
+    public void unchangedSightingsKeepTheirIdInstance() {
+        SightingSyncState state = new SightingSyncState();
+        Sighting original = sighting("1", 1000, 1);
+        full(state, original, sighting("2", 2000, 1));
+        full(state, sighting("1", 1000, 1), sighting("2", 2000, 7));
+
+        // The listing got the first instance, the second one wasn't delivered
+        SightingDelta removed = full(state, sighting("2", 2000, 7));
+        assertTrue(removed.getRemoved().get(0) == original.getSightingId());
+    }
+
+    @Test
+    public void incrementalMergeFindsNewerAndChanged() {
+        SightingSyncState state = new SightingSyncState();
+        full(state, sighting("1", 1000, 1));
+        SightingDelta delta = state.mergeIncremental(Arrays.asList(sighting("1", 1000, 2), sighting("2", 5000, 1),
+                sighting("2", 5000, 1)));
+        assertEquals(Arrays.asList("2"), ids(delta.getAdded()));
+        assertEquals(Arrays.asList("1"), ids(delta.getChanged()));
+        assertTrue(delta.getRemoved().isEmpty());
+        assertFalse(delta.isFullSync());
+        assertEquals(5000, state.getHighWaterMark());
+    }
+
+    @Test
+    public void sightingsMergedDuringAFullSyncAreNotRemoved() {
+        SightingSyncState state = new SightingSyncState();
+        full(state, sighting("1", 1000, 1));
+        long mark = state.mark();
+        state.mergeIncremental(Arrays.asList(sighting("2", 2000, 1)));     // From the stream, after the listing was made
+        state.rememberSaved(sighting("3", 3000, 1));
+
+        SightingDelta delta = state.mergeFull(Arrays.asList(sighting("1", 1000, 1)), mark, null);
+        assertTrue(delta.getRemoved().isEmpty());
+        assertTrue(state.mergeIncremental(Arrays.asList(sighting("2", 2000, 1), sighting("3", 3000, 1))).isEmpty());
+
+        // A listing made after them is trusted
+        SightingDelta later = full(state, sighting("1", 1000, 1));
+        assertEquals(Arrays.asList("2", "3"), sortedCopy(later.getRemoved()));
+    }
+
+    @Test
+    public void unchangedListingIsAnsweredFromTheVersion() {
+        SightingSyncState state = new SightingSyncState();
+        assertNull(state.mergeUnchanged("v1"));
+        state.mergeFull(Arrays.asList(sighting("1", 1000, 1)), state.mark(), "v1");
+        assertEquals("v1", state.getListingVersion());
+        assertTrue(state.mergeUnchanged("v1").isEmpty());
+        assertNull(state.mergeUnchanged("v2"));
+    }
+
+    @Test
+    public void undeliveredChangesComeWithTheNextResult() {
+        SightingSyncState state = new SightingSyncState();
+        state.keepUndelivered(full(state, sighting("1", 1000, 1)));
+        SightingDelta next = state.withUndelivered(state.mergeIncremental(Arrays.asList(sighting("2", 2000, 1))));
+        assertEquals(Arrays.asList("1", "2"), ids(next.getAdded()));
+        assertTrue(state.withUndelivered(state.mergeIncremental(new ArrayList<Sighting>())).isEmpty());
+    }
+
+    private static List<String> sortedCopy(List<String> list) {
+        ArrayList<String> copy = new ArrayList<>(list);
+        Collections.sort(copy);
+        return copy;
+    }
+}
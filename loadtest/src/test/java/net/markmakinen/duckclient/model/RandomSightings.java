@@ -0,0 +1,74 @@
+package net.markmakinen.duckclient.model;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+/**
+ * Random merges for the model tests, with the expected collection kept as a plain map by key
+ */
+class RandomSightings {
+
+    static final String[] SPECIES = {"mallard", "redhead", "gadwall", "canvasback", "lesser scaup"};
+    static final String[] WORDS = {"duck", "ducks", "pond", "shore", "flock", "quacking", "morning", "sun", "two"};
+    static final long START = 1325376000000L;     // 2012-01-01T00:00:00Z
+
+    final Random random;
+    final LinkedHashMap<String, Sighting> expected = new LinkedHashMap<>();    // By key
+    private int nextId = 1;
+
+    RandomSightings(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * Makes a random Sighting, a few hours apart and sometimes at the same moment as another one
+     */
+    Sighting sighting(String id, boolean pending) {
+        Sighting s = new Sighting();
+        if (pending) {
+            s.setLocalId(id);
+        } else {
+            s.setSightingId(id);
+        }
+        if (random.nextInt(50) != 0) s.setDateTime(new DateTime(START + random.nextInt(2000) * 3600000L, DateTimeZone.UTC));
+        s.setCount(1 + random.nextInt(20));
+        if (random.nextInt(20) != 0) s.setSpecies(SpeciesRegistry.getInstance().intern(SPECIES[random.nextInt(SPECIES.length)]));
+        StringBuilder description = new StringBuilder();
+        for (int i = random.nextInt(6); i > 0; i--) description.append(WORDS[random.nextInt(WORDS.length)]).append(i % 2 == 0 ? " " : ", ");
+        s.setDescription(random.nextInt(10) == 0 ? null : description.toString());
+        return s;
+    }
+
+    /**
+     * Random changes: new Sightings, new versions of existing ones and removals, each key at most once.
+     * The expected map is updated.
+     * @param upserts Gets the upserts
+     * @param removedKeys Gets the removed keys
+     * @param size Number of changes
+     */
+    void changes(Collection<Sighting> upserts, Collection<String> removedKeys, int size) {
+        ArrayList<String> keys = new ArrayList<>(expected.keySet());
+        for (int i = 0; i < size; i++) {
+            int kind = random.nextInt(4);
+            if (kind == 0 && !keys.isEmpty()) {
+                String key = keys.remove(random.nextInt(keys.size()));
+                removedKeys.add(key);
+                expected.remove(key);
+            } else if (kind == 1 && !keys.isEmpty()) {
+                Sighting old = expected.get(keys.remove(random.nextInt(keys.size())));     // Once per batch
+                Sighting s = sighting(old.isPending() ? old.getLocalId() : old.getSightingId(), old.isPending());
+                upserts.add(s);
+                expected.put(SortedSightings.keyOf(s), s);
+            } else {
+                Sighting s = sighting(Integer.toString(nextId++), random.nextInt(10) == 0);
+                upserts.add(s);
+                expected.put(SortedSightings.keyOf(s), s);
+            }
+        }
+    }
+}
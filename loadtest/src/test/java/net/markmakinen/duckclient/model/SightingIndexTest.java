@@ -0,0 +1,137 @@
+package net.markmakinen.duckclient.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * The index, also when carried over merge by merge, must find the same rows as a scan of the collection
+ */
+public class SightingIndexTest {
+
+    private static final String[] PREFIXES = {"d", "du", "duck", "ducks", "po", "pond", "sh", "qua", "mall", "lesser", "sc", "zebra"};
+
+    /**
+     * Answers a query the slow way, by looking at every row
+     */
+    private static int[] scan(SortedSightings store, SightingQuery query) {
+        ArrayList<Integer> rows = new ArrayList<>();
+        for (int row = 0; row < store.size(); row++) {
+            Sighting s = store.get(row);
+            long millis = store.millisAt(row);
+            if (millis < query.getFromMillis() || (query.getToMillis() != Long.MAX_VALUE && millis >= query.getToMillis())) continue;
+            if (!query.getSpecies().isEmpty() && !query.getSpecies().contains(s.getSpecies())) continue;
+
+            ArrayList<String> words = SightingQuery.tokenize(s.getDescription());
+            if (s.getSpecies() != null) words.addAll(SightingQuery.tokenize(s.getSpecies().getName()));
+            boolean all = true;
+            for (String wanted : query.getWords()) {
+                boolean found = false;
+                for (String word : words) found |= word.startsWith(wanted);
+                all &= found;
+            }
+            if (all) rows.add(row);
+        }
+        int[] out = new int[rows.size()];
+        for (int i = 0; i < out.length; i++) out[i] = rows.get(i);
+        return out;
+    }
+
+    private static SightingQuery randomQuery(Random random) {
+        SightingQuery query = SightingQuery.all();
+        if (random.nextBoolean()) {
+            StringBuilder text = new StringBuilder();
+            for (int i = 1 + random.nextInt(2); i > 0; i--) text.append(PREFIXES[random.nextInt(PREFIXES.length)]).append(' ');
+            query = query.withText(text.toString().toUpperCase());
+        }
+        if (random.nextInt(3) == 0) {
+            HashSet<Species> species = new HashSet<>();
+            for (int i = 1 + random.nextInt(2); i > 0; i--) {
+                species.add(SpeciesRegistry.getInstance().intern(RandomSightings.SPECIES[random.nextInt(RandomSightings.SPECIES.length)]));
+            }
+            query = query.withSpecies(species);
+        }
+        if (random.nextInt(3) == 0) {
+            long from = RandomSightings.START + random.nextInt(2000) * 3600000L;
+            query = query.withTimeRange(random.nextBoolean() ? from : Long.MIN_VALUE, from + random.nextInt(500) * 3600000L);
+        }
+        return query;
+    }
+
+    private static void assertFinds(SightingIndex index, SightingQuery query) {
+        int[] found = index.find(query);
+        if (query.isEmpty()) {
+            assertNull(found);
+        } else {
+            assertArrayEquals(query.getWords() + " " + query.getSpecies(), scan(index.getStore(), query), found);
+        }
+    }
+
+    @Test
+    public void findsWhatAScanFinds() {
+        RandomSightings random = new RandomSightings(4);
+        Random queries = new Random(5);
+        SightingIndex index = SightingIndex.empty();
+        for (int round = 0; round < 40; round++) {
+            ArrayList<Sighting> upserts = new ArrayList<>();
+            ArrayList<String> removedKeys = new ArrayList<>();
+            random.changes(upserts, removedKeys, 1 + random.random.nextInt(round < 5 ? 400 : 40));
+            SortedSightings store = index.getStore();
+            int[] origins = new int[store.size() + upserts.size()];
+            index = index.update(store.with(upserts, removedKeys, origins), origins);
+
+            for (int i = 0; i < 20; i++) assertFinds(index, randomQuery(queries));
+        }
+        SightingIndex fresh = SightingIndex.of(index.getStore());
+        for (int i = 0; i < 100; i++) {
+            SightingQuery query = randomQuery(queries);
+            assertFinds(fresh, query);
+            if (!query.isEmpty()) assertArrayEquals(fresh.find(query), index.find(query));
+        }
+    }
+
+    @Test
+    public void updatesOverSeveralMerges() {
+        RandomSightings random = new RandomSightings(6);
+        Random queries = new Random(7);
+        SightingIndex index = SightingIndex.empty();
+        SortedSightings store = SortedSightings.empty();
+        int[] combined = null;
+        for (int round = 0; round < 40; round++) {
+            ArrayList<Sighting> upserts = new ArrayList<>();
+            ArrayList<String> removedKeys = new ArrayList<>();
+            random.changes(upserts, removedKeys, 1 + random.random.nextInt(100));
+            int[] origins = new int[store.size() + upserts.size()];
+            SortedSightings next = store.with(upserts, removedKeys, origins);
+            if (combined != null) {
+                for (int row = 0; row < next.size(); row++) if (origins[row] >= 0) origins[row] = combined[origins[row]];
+            }
+            combined = origins;
+            store = next;
+
+            // Like the list adapter with the chunks of a listing, indexed every few merges
+            if (round % 5 == 4) {
+                index = index.update(store, combined);
+                combined = null;
+                for (int i = 0; i < 20; i++) assertFinds(index, randomQuery(queries));
+            }
+        }
+    }
+
+    @Test
+    public void unknownSpeciesFindsNothingAndIsNotInterned() {
+        SortedSightings store = SortedSightings.of(Collections.singletonList(new RandomSightings(8).sighting("1", false)));
+        SightingIndex index = SightingIndex.of(store);
+        Species unknown = new Species("mandarin duck, never seen");
+        assertEquals(0, index.find(SightingQuery.all().withSpecies(Arrays.asList(unknown))).length);
+        assertEquals(-1, SpeciesRegistry.getInstance().findOrdinal(unknown));
+    }
+}
@@ -0,0 +1,120 @@
+package net.markmakinen.duckclient.model;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Totals adjusted merge by merge must equal counting the final collection
+ */
+public class SightingStatsTest {
+
+    // Half-hour offset and daylight saving time, so days and hours don't line up with UTC
+    private static final DateTimeZone ZONE = DateTimeZone.forID("America/St_Johns");
+
+    /**
+     * Counts the expected Sightings the slow way and compares
+     */
+    private static void assertCounts(Iterable<Sighting> sightings, SightingStats.Snapshot stats) {
+        DateTimeZone zone = DateTimeZone.getDefault();
+        int total = 0;
+        long ducks = 0;
+        HashMap<Species, Integer> bySpecies = new HashMap<>();
+        HashMap<Species, Long> ducksBySpecies = new HashMap<>();
+        TreeMap<LocalDate, Integer> byDay = new TreeMap<>();
+        int[] byHour = new int[24];
+        long[] ducksByHour = new long[24];
+        for (Sighting s : sightings) {
+            total++;
+            ducks += s.getCount();
+            if (s.getSpecies() != null) {
+                bySpecies.put(s.getSpecies(), (bySpecies.containsKey(s.getSpecies()) ? bySpecies.get(s.getSpecies()) : 0) + 1);
+                ducksBySpecies.put(s.getSpecies(), (ducksBySpecies.containsKey(s.getSpecies()) ? ducksBySpecies.get(s.getSpecies()) : 0L) + s.getCount());
+            }
+            if (s.getDateTime() != null) {
+                DateTime local = s.getDateTime().withZone(zone);
+                LocalDate day = local.toLocalDate();
+                byDay.put(day, (byDay.containsKey(day) ? byDay.get(day) : 0) + 1);
+                byHour[local.getHourOfDay()]++;
+                ducksByHour[local.getHourOfDay()] += s.getCount();
+            }
+        }
+
+        assertEquals(total, stats.getTotalSightings());
+        assertEquals(ducks, stats.getTotalDucks());
+        assertEquals(bySpecies, new HashMap<>(stats.getSightingsBySpecies()));
+        assertEquals(ducksBySpecies, new HashMap<>(stats.getDucksBySpecies()));
+        assertEquals(byDay, stats.getSightingsByDay());
+        assertTrue(Arrays.equals(byHour, stats.getSightingsByHour()));
+        assertTrue(Arrays.equals(ducksByHour, stats.getDucksByHour()));
+    }
+
+    @Test
+    public void applyMatchesCounting() {
+        DateTimeZone defaultZone = DateTimeZone.getDefault();
+        DateTimeZone.setDefault(ZONE);
+        try {
+            RandomSightings random = new RandomSightings(9);
+            SightingStats stats = new SightingStats();
+            SortedSightings store = SortedSightings.empty();
+            for (int round = 0; round < 60; round++) {
+                ArrayList<Sighting> upserts = new ArrayList<>();
+                ArrayList<String> removedKeys = new ArrayList<>();
+                random.changes(upserts, removedKeys, 1 + random.random.nextInt(round < 10 ? 300 : 30));
+                int[] origins = new int[store.size() + upserts.size()];
+                SortedSightings next = store.with(upserts, removedKeys, origins);
+                stats.apply(store, next, origins);
+                store = next;
+                assertCounts(random.expected.values(), stats.snapshot());
+            }
+
+            // Everything is counted again in a new time zone
+            DateTimeZone.setDefault(DateTimeZone.forID("Asia/Kolkata"));
+            ArrayList<Sighting> upserts = new ArrayList<>();
+            ArrayList<String> removedKeys = new ArrayList<>();
+            random.changes(upserts, removedKeys, 10);
+            int[] origins = new int[store.size() + upserts.size()];
+            SortedSightings next = store.with(upserts, removedKeys, origins);
+            stats.apply(store, next, origins);
+            assertCounts(random.expected.values(), stats.snapshot());
+        } finally {
+            DateTimeZone.setDefault(defaultZone);
+        }
+    }
+
+    @Test
+    public void removingEverythingLeavesNothing() {
+        DateTimeZone defaultZone = DateTimeZone.getDefault();
+        DateTimeZone.setDefault(ZONE);
+        try {
+            RandomSightings random = new RandomSightings(10);
+            ArrayList<Sighting> all = new ArrayList<>();
+            random.changes(all, new ArrayList<String>(), 200);
+            SightingStats stats = new SightingStats();
+            SortedSightings store = SortedSightings.of(all);
+            stats.rebuild(store);
+
+            ArrayList<String> keys = new ArrayList<>(random.expected.keySet());
+            int[] origins = new int[store.size()];
+            SortedSightings empty = store.with(new ArrayList<Sighting>(), keys, origins);
+            stats.apply(store, empty, origins);
+            SightingStats.Snapshot snapshot = stats.snapshot();
+            assertEquals(0, snapshot.getTotalSightings());
+            assertEquals(0, snapshot.getTotalDucks());
+            assertTrue(snapshot.getSightingsBySpecies().isEmpty());
+            assertTrue(snapshot.getSightingsByDay().isEmpty());
+            assertEquals(-1, snapshot.getBusiestHour());
+        } finally {
+            DateTimeZone.setDefault(defaultZone);
+        }
+    }
+}
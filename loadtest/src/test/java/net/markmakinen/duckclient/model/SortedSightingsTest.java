@@ -0,0 +1,116 @@
+package net.markmakinen.duckclient.model;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Merging changes into the columns must give the same collection as applying them to a map and sorting it
+ */
+public class SortedSightingsTest {
+
+    private static long millisOf(Sighting s) {
+        return (s.getDateTime() != null ? s.getDateTime().getMillis() : Long.MIN_VALUE);
+    }
+
+    private static void assertSameSighting(Sighting expected, Sighting actual) {
+        assertEquals(SortedSightings.keyOf(expected), SortedSightings.keyOf(actual));
+        assertEquals(millisOf(expected), millisOf(actual));
+        assertEquals(expected.getCount(), actual.getCount());
+        assertEquals(expected.getSpecies(), actual.getSpecies());
+        assertEquals(expected.getDescription(), actual.getDescription());
+        assertEquals(expected.isPending(), actual.isPending());
+    }
+
+    @Test
+    public void withMatchesAMap() {
+        RandomSightings random = new RandomSightings(2);
+        SortedSightings store = SortedSightings.empty();
+        for (int round = 0; round < 60; round++) {
+            ArrayList<Sighting> upserts = new ArrayList<>();
+            ArrayList<String> removedKeys = new ArrayList<>();
+            random.changes(upserts, removedKeys, 1 + random.random.nextInt(round < 10 ? 500 : 50));
+            int[] origins = new int[store.size() + upserts.size()];
+            SortedSightings next = store.with(upserts, removedKeys, origins);
+
+            assertEquals(random.expected.size(), next.size());
+            HashSet<String> upsertKeys = new HashSet<>();
+            for (Sighting s : upserts) upsertKeys.add(SortedSightings.keyOf(s));
+            boolean[] used = new boolean[store.size()];
+            for (int row = 0; row < next.size(); row++) {
+                if (row > 0) assertTrue(next.millisAt(row - 1) <= next.millisAt(row));
+                String key = next.keyAt(row);
+                assertSameSighting(random.expected.get(key), next.get(row));
+
+                int origin = origins[row];
+                if (origin < 0) {
+                    assertTrue(key, upsertKeys.contains(key));
+                } else {
+                    assertTrue(!used[origin]);
+                    used[origin] = true;
+                    assertEquals(store.keyAt(origin), key);
+                    assertTrue(next.sameContent(row, store, origin));
+                }
+            }
+            store = next;
+        }
+    }
+
+    @Test
+    public void existingRowsGoFirstOnTies() {
+        Sighting a = sighting("a", 1000);
+        Sighting b = sighting("b", 1000);
+        Sighting c = sighting("c", 1000);
+        SortedSightings store = SortedSightings.of(Arrays.asList(a, sighting("early", 500)));
+        SortedSightings next = store.with(Arrays.asList(b, c), Collections.<String>emptyList());
+        assertEquals(Arrays.asList("early", "a", "b", "c"), keys(next));
+    }
+
+    @Test
+    public void noChangesKeepTheCollection() {
+        SortedSightings store = SortedSightings.of(Arrays.asList(sighting("a", 1000), sighting("b", 2000)));
+        int[] origins = new int[2];
+        assertTrue(store.with(new ArrayList<Sighting>(), new ArrayList<String>(), origins) == store);
+        assertEquals(1, origins[1]);
+    }
+
+    @Test
+    public void positionsAndLowerBound() {
+        RandomSightings random = new RandomSightings(3);
+        ArrayList<Sighting> all = new ArrayList<>();
+        random.changes(all, new ArrayList<String>(), 300);
+        SortedSightings store = SortedSightings.of(all);
+
+        for (int p = 0; p < store.size(); p++) {
+            assertEquals(p, store.indexOf(p, true));
+            assertEquals(store.size() - 1 - p, store.indexOf(p, false));
+        }
+        for (int i = 0; i < 200; i++) {
+            long millis = RandomSightings.START + random.random.nextInt(2000) * 3600000L;
+            int expected = 0;
+            while (expected < store.size() && store.millisAt(expected) < millis) expected++;
+            assertEquals(expected, store.lowerBound(millis));
+        }
+    }
+
+    private static Sighting sighting(String id, long millis) {
+        Sighting s = new Sighting();
+        s.setSightingId(id);
+        s.setDateTime(new DateTime(millis, DateTimeZone.UTC));
+        return s;
+    }
+
+    private static ArrayList<String> keys(SortedSightings store) {
+        ArrayList<String> keys = new ArrayList<>();
+        for (int i = 0; i < store.size(); i++) keys.add(store.keyAt(i));
+        return keys;
+    }
+}